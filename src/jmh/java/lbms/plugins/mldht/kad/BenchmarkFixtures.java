@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static the8472.bencode.Utils.str2ary;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import the8472.bencode.BEncoder;
+
+/**
+ * Shared, deterministic inputs for the benchmarks.
+ *
+ * Packets mirror the shape of typical mainline traffic (field sets, client versions, token and node list sizes)
+ * with seeded random content, so runs are reproducible.
+ */
+public class BenchmarkFixtures {
+
+	public static final InetSocketAddress SOURCE = new InetSocketAddress(address(new byte[] {81, 2, 3, 4}), 51413);
+
+	public static final ByteBuffer PING_REQUEST;
+	public static final ByteBuffer FIND_NODE_REQUEST;
+	public static final ByteBuffer GET_PEERS_REQUEST;
+	public static final ByteBuffer ANNOUNCE_PEER_REQUEST;
+	public static final ByteBuffer FIND_NODE_RESPONSE;
+	public static final ByteBuffer GET_PEERS_RESPONSE;
+
+	public static final Key LOCAL_ID;
+	public static final Key POPULAR_INFOHASH;
+
+	static {
+		Random rnd = new Random(0x6d6c6468);
+
+		LOCAL_ID = key(rnd);
+		POPULAR_INFOHASH = key(rnd);
+
+		PING_REQUEST = request(rnd, "ping", "LT\u0001\u0002", a -> {});
+		FIND_NODE_REQUEST = request(rnd, "find_node", "UTu\u0001", a -> a.put("target", bytes(rnd, 20)));
+		GET_PEERS_REQUEST = request(rnd, "get_peers", "LT\u0001\u0001", a -> a.put("info_hash", POPULAR_INFOHASH.getHash()));
+		ANNOUNCE_PEER_REQUEST = request(rnd, "announce_peer", "LT\u0001\u0002", a -> {
+			a.put("implied_port", 1);
+			a.put("info_hash", POPULAR_INFOHASH.getHash());
+			a.put("port", 6881);
+			a.put("token", bytes(rnd, 8));
+		});
+
+		FIND_NODE_RESPONSE = response(rnd, Method.FIND_NODE, r -> {
+			r.put("nodes", bytes(rnd, 8 * DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH));
+		});
+		GET_PEERS_RESPONSE = response(rnd, Method.GET_PEERS, r -> {
+			List<byte[]> values = new ArrayList<>();
+			for(int i=0;i<50;i++)
+				values.add(bytes(rnd, 6));
+			r.put("token", bytes(rnd, 8));
+			r.put("values", values);
+		});
+	}
+
+	interface Filler {
+		void fill(Map<String, Object> m);
+	}
+
+	static ByteBuffer request(Random rnd, String method, String version, Filler args) {
+		Map<String, Object> a = new TreeMap<>();
+		a.put("id", bytes(rnd, 20));
+		args.fill(a);
+		Map<String, Object> root = new TreeMap<>();
+		root.put("a", a);
+		root.put("q", method);
+		root.put("t", bytes(rnd, 2));
+		root.put("v", str2ary(version));
+		root.put("y", "q");
+		return encode(root);
+	}
+
+	static ByteBuffer response(Random rnd, Method m, Filler inner) {
+		Map<String, Object> r = new TreeMap<>();
+		r.put("id", bytes(rnd, 20));
+		inner.fill(r);
+		byte[] mtid = bytes(rnd, 6);
+		mtid[0] = (byte) m.ordinal();
+		Map<String, Object> root = new TreeMap<>();
+		root.put("ip", bytes(rnd, 6));
+		root.put("r", r);
+		root.put("t", mtid);
+		root.put("v", str2ary("ml\u0000\u000b"));
+		root.put("y", "r");
+		return encode(root);
+	}
+
+	static ByteBuffer encode(Map<String, Object> root) {
+		ByteBuffer encoded = new BEncoder().encode(root, 1500);
+		ByteBuffer direct = ByteBuffer.allocateDirect(encoded.remaining());
+		direct.put(encoded);
+		direct.flip();
+		return direct.asReadOnlyBuffer();
+	}
+
+	/**
+	 * resolves response methods from the first byte of the transaction ID, see {@link #response(Random, Method, Filler)}
+	 */
+	public static final Function<byte[], Optional<Method>> TRANSACTION_MAPPER = mtid -> Optional.of(Method.values()[mtid[0]]);
+
+	public static byte[] bytes(Random rnd, int length) {
+		byte[] b = new byte[length];
+		rnd.nextBytes(b);
+		return b;
+	}
+
+	public static Key key(Random rnd) {
+		return new Key(bytes(rnd, Key.SHA1_HASH_LENGTH));
+	}
+
+	public static InetAddress address(byte[] raw) {
+		try {
+			return InetAddress.getByAddress(raw);
+		} catch (UnknownHostException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static InetSocketAddress randomPublicAddress(Random rnd) {
+		byte[] ip = {(byte) (20 + rnd.nextInt(180)), (byte) rnd.nextInt(256), (byte) rnd.nextInt(256), (byte) (1 + rnd.nextInt(250))};
+		return new InetSocketAddress(address(ip), 1024 + rnd.nextInt(60000));
+	}
+
+	static class Config implements DHTConfiguration {
+		@Override
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		@Override
+		public Path getStoragePath() {
+			return Paths.get(".");
+		}
+
+		@Override
+		public int getListeningPort() {
+			return 0;
+		}
+
+		@Override
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		@Override
+		public boolean allowMultiHoming() {
+			return false;
+		}
+	}
+
+	/**
+	 * an unstarted IPv4 DHT with its components initialized and a routing table shaped like that of a long-running node,
+	 * i.e. buckets split down towards the local ID.
+	 */
+	public static DHT populatedDHT(int entriesPerDepth) {
+		DHT dht = new DHT(DHTtype.IPV4_DHT);
+		dht.config = new Config();
+		dht.setScheduler(Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "benchmark DHT scheduler");
+			t.setDaemon(true);
+			return t;
+		}));
+		dht.populate();
+		Node node = dht.getNode();
+		node.initKey(dht.config);
+		node.registerId();
+
+		Random rnd = new Random(0x726f7574);
+		byte[] local = node.getRootID().getHash();
+
+		for(int depth=0;depth<24;depth++) {
+			for(int i=0;i<entriesPerDepth;i++) {
+				// share exactly depth leading bits with the local ID
+				byte[] id = bytes(rnd, Key.SHA1_HASH_LENGTH);
+				for(int bit=0;bit<=depth;bit++) {
+					int mask = 0x80 >>> (bit % 8);
+					boolean set = (local[bit / 8] & mask) != 0;
+					if(bit == depth)
+						set = !set;
+					id[bit / 8] = (byte) (set ? id[bit / 8] | mask : id[bit / 8] & ~mask);
+				}
+				KBucketEntry e = new KBucketEntry(randomPublicAddress(rnd), new Key(id));
+				e.setVerified(true);
+				node.insertEntry(e, true);
+			}
+		}
+
+		return dht;
+	}
+
+	/**
+	 * a database holding peers for {@link #POPULAR_INFOHASH} and a few thousand other torrents
+	 */
+	public static Database populatedDatabase(int peersForPopular) {
+		return populatedDatabase(peersForPopular, false);
+	}
+
+	public static Database populatedDatabase(int peersForPopular, boolean offHeap) {
+		Database db = new Database(offHeap);
+		populateDatabase(db, peersForPopular);
+		return db;
+	}
+
+	public static void populateDatabase(Database db, int peersForPopular) {
+		Random rnd = new Random(0x64617461);
+
+		for(int i=0;i<peersForPopular;i++) {
+			InetSocketAddress addr = randomPublicAddress(rnd);
+			db.store(POPULAR_INFOHASH, PeerAddressDBItem.createFromAddress(addr.getAddress(), addr.getPort(), rnd.nextInt(4) == 0));
+		}
+
+		for(int i=0;i<5000;i++) {
+			InetSocketAddress addr = randomPublicAddress(rnd);
+			db.store(key(rnd), PeerAddressDBItem.createFromAddress(addr.getAddress(), addr.getPort(), false));
+		}
+	}
+
+}
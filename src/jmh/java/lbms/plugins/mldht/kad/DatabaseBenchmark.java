@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.POPULAR_INFOHASH;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+
+	@Param({"10", "1000"})
+	int peers;
+
+	@Param({"false", "true"})
+	boolean offHeap;
+
+	Database db;
+	PeerAddressDBItem churn;
+	boolean churnSeed;
+
+	@Setup
+	public void setup() {
+		db = BenchmarkFixtures.populatedDatabase(peers, offHeap);
+		churn = (PeerAddressDBItem) db.sample(POPULAR_INFOHASH, 1, DHTtype.IPV4_DHT, false).get(0);
+	}
+
+	@Benchmark
+	public List<DBItem> sample() {
+		return db.sample(POPULAR_INFOHASH, 50, DHTtype.IPV4_DHT, false);
+	}
+
+	/**
+	 * a peer switching between the seed and peer sets, followed by a scrape of one of them
+	 */
+	@Benchmark
+	public BloomFilterBEP33 scrapeUnderChurn() {
+		churnSeed = !churnSeed;
+		db.store(POPULAR_INFOHASH, new PeerAddressDBItem(churn.getData(), churnSeed));
+		return db.createScrapeFilter(POPULAR_INFOHASH, true);
+	}
+
+}
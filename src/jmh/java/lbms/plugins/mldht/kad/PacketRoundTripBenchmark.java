@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.FIND_NODE_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.GET_PEERS_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.PING_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.SOURCE;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.messages.FindNodeResponse;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingResponse;
+
+/**
+ * incoming request to encoded response without sockets: {@link RPCServer#handlePacket(ByteBuffer, java.net.SocketAddress)}
+ * decodes and dispatches to the DHT handlers, the response is encoded where it would normally be queued for sending
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketRoundTripBenchmark {
+
+	static class CapturingServer extends RPCServer {
+		final ByteBuffer out = ByteBuffer.allocateDirect(1500);
+		int responses;
+
+		CapturingServer(DHT dht) {
+			super(dht.getServerManager(), InetAddress.getLoopbackAddress(), 49001, new RPCStats());
+		}
+
+		@Override
+		public void sendMessage(MessageBase msg) {
+			// same decoration as EnqueuedSend
+			if(msg.getID() == null)
+				msg.setID(getDerivedID());
+			if((msg instanceof PingResponse || msg instanceof FindNodeResponse) && msg.getPublicIP() == null)
+				msg.setPublicIP(msg.getDestination());
+			out.clear();
+			try {
+				msg.encode(out);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			responses++;
+		}
+	}
+
+	@Param({"ping", "find_node", "get_peers"})
+	String request;
+
+	ByteBuffer raw;
+	CapturingServer srv;
+
+	@Setup
+	public void setup() {
+		switch(request) {
+			case "ping": raw = PING_REQUEST; break;
+			case "find_node": raw = FIND_NODE_REQUEST; break;
+			case "get_peers": raw = GET_PEERS_REQUEST; break;
+			default: throw new IllegalArgumentException(request);
+		}
+		DHT dht = BenchmarkFixtures.populatedDHT(16);
+		BenchmarkFixtures.populateDatabase(dht.getDatabase(), 100);
+		srv = new CapturingServer(dht);
+
+		srv.handlePacket(raw.duplicate(), SOURCE);
+		if(srv.responses != 1)
+			throw new IllegalStateException("request did not produce a response");
+	}
+
+	@Benchmark
+	public ByteBuffer roundTrip() {
+		srv.handlePacket(raw.duplicate(), SOURCE);
+		return srv.out;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+	static final int KEYS = 1024;
+
+	Key[] keys;
+	int idx;
+	DHT dht;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(0x6b657973);
+		keys = new Key[KEYS];
+		for(int i=0;i<KEYS;i++)
+			keys[i] = BenchmarkFixtures.key(rnd);
+		dht = BenchmarkFixtures.populatedDHT(16);
+	}
+
+	Key nextKey() {
+		idx = (idx + 1) & (KEYS - 1);
+		return keys[idx];
+	}
+
+	@Benchmark
+	public int threeWayDistance() {
+		Key target = nextKey();
+		return target.threeWayDistance(keys[(idx + 1) & (KEYS - 1)], keys[(idx + 2) & (KEYS - 1)]);
+	}
+
+	@Benchmark
+	public KClosestNodesSearch closestNodes() {
+		KClosestNodesSearch kns = new KClosestNodesSearch(nextKey(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+		kns.fill();
+		return kns;
+	}
+
+	@Benchmark
+	public byte[] closestNodesPacked() {
+		KClosestNodesSearch kns = new KClosestNodesSearch(nextKey(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+		kns.fill();
+		return kns.pack();
+	}
+
+}
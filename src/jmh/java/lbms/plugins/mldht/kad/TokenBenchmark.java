@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.POPULAR_INFOHASH;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.SOURCE;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.Database.TokenAlgorithm;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBenchmark {
+
+	@Param({"SHA1", "SIPHASH"})
+	String algorithm;
+
+	Database db;
+	Key requester;
+	byte[] token;
+	byte[] stale;
+
+	@Setup
+	public void setup() {
+		db = new Database();
+		db.tokenAlgorithm = TokenAlgorithm.valueOf(algorithm);
+		requester = Key.createRandomKey();
+		token = db.genToken(requester, SOURCE.getAddress(), SOURCE.getPort(), POPULAR_INFOHASH);
+		stale = new byte[] {(byte) ~token[0], token[1], token[2], token[3]};
+	}
+
+	@Benchmark
+	public byte[] genToken() {
+		return db.genToken(requester, SOURCE.getAddress(), SOURCE.getPort(), POPULAR_INFOHASH);
+	}
+
+	@Benchmark
+	public boolean checkToken() {
+		return db.checkToken(token, requester, SOURCE.getAddress(), SOURCE.getPort(), POPULAR_INFOHASH);
+	}
+
+	/**
+	 * invalid tokens are checked against both the current and the previous timestamp
+	 */
+	@Benchmark
+	public boolean checkInvalidToken() {
+		return db.checkToken(stale, requester, SOURCE.getAddress(), SOURCE.getPort(), POPULAR_INFOHASH);
+	}
+
+}
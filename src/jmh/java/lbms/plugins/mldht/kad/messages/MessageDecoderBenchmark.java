@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.ANNOUNCE_PEER_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.FIND_NODE_RESPONSE;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.GET_PEERS_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.GET_PEERS_RESPONSE;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.TRANSACTION_MAPPER;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import the8472.bencode.BDecoder;
+import the8472.bencode.BFlyweight;
+
+/**
+ * packet to message object, via the generic map decoder and via the flyweight path used for common requests
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+
+	@Param({"get_peers_request", "announce_peer_request", "find_node_response", "get_peers_response"})
+	String packet;
+
+	ByteBuffer raw;
+	BDecoder decoder;
+	BFlyweight flyweight;
+	MessageDecoder messageDecoder;
+
+	@Setup
+	public void setup() {
+		switch(packet) {
+			case "get_peers_request": raw = GET_PEERS_REQUEST; break;
+			case "announce_peer_request": raw = ANNOUNCE_PEER_REQUEST; break;
+			case "find_node_response": raw = FIND_NODE_RESPONSE; break;
+			case "get_peers_response": raw = GET_PEERS_RESPONSE; break;
+			default: throw new IllegalArgumentException(packet);
+		}
+		decoder = new BDecoder();
+		flyweight = new BFlyweight();
+		messageDecoder = new MessageDecoder(TRANSACTION_MAPPER, DHTtype.IPV4_DHT);
+	}
+
+	@Benchmark
+	public MessageBase parseMessage() throws MessageException, IOException {
+		ByteBuffer p = raw.duplicate();
+		messageDecoder.toDecode(p, decoder.decode(p));
+		return messageDecoder.parseMessage();
+	}
+
+	/**
+	 * null for packets that are not eligible for the flyweight path
+	 */
+	@Benchmark
+	public MessageBase parseFlyweight() {
+		try {
+			flyweight.decode(raw.duplicate());
+			return MessageDecoder.parseRequest(flyweight, DHTtype.IPV4_DHT);
+		} finally {
+			flyweight.release();
+		}
+	}
+
+}
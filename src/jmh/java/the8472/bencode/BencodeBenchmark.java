@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.GET_PEERS_REQUEST;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.GET_PEERS_RESPONSE;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BencodeBenchmark {
+
+	BDecoder decoder;
+	BEncoder encoder;
+	BFlyweight flyweight;
+	Map<String, Object> response;
+	ByteBuffer target;
+
+	@Setup
+	public void setup() {
+		decoder = new BDecoder();
+		encoder = new BEncoder();
+		flyweight = new BFlyweight();
+		response = decoder.decode(GET_PEERS_RESPONSE.duplicate());
+		target = ByteBuffer.allocateDirect(1500);
+	}
+
+	@Benchmark
+	public Map<String, Object> decodeRequest() {
+		return decoder.decode(GET_PEERS_REQUEST.duplicate());
+	}
+
+	@Benchmark
+	public Map<String, Object> decodeResponse() {
+		return decoder.decode(GET_PEERS_RESPONSE.duplicate());
+	}
+
+	@Benchmark
+	public int flyweightRequest() {
+		int count = flyweight.decode(GET_PEERS_REQUEST.duplicate());
+		flyweight.release();
+		return count;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeResponse() {
+		target.clear();
+		encoder.encodeInto(response, target);
+		return target;
+	}
+
+}
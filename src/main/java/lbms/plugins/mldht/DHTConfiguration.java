@@ -6,6 +6,7 @@
 package lbms.plugins.mldht;
 
 import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.PacketTransport;
 
 import java.net.InetAddress;
 import java.nio.file.Path;
@@ -52,4 +53,65 @@ public interface DHTConfiguration {
 	public default Predicate<InetAddress> filterBindAddress() {
 		return (unused) -> true;
 	}
+
+	/**
+	 * Number of sockets each RPC server binds to its address and port. Values above 1 enable SO_REUSEPORT
+	 * (where supported by the JDK and OS) and give every additional socket its own selector thread so that the kernel
+	 * can spread inbound packets over several receive loops. Outstanding calls and the send pipeline remain shared.
+	 * 
+	 * The default of 1 uses a single socket on the DHT-wide selector.
+	 */
+	public default int getReceiveSocketCount() {
+		return 1;
+	}
+
+	/**
+	 * If true the per-source flood protection on the receive path uses a fixed-size sketch with lazy decay instead of
+	 * a map that grows with the number of distinct source addresses. Slightly less precise, but memory use and per-packet
+	 * cost stay constant under floods from spoofed sources.
+	 */
+	public default boolean useFixedSizeThrottle() {
+		return false;
+	}
+
+	/**
+	 * If true each server sizes the number of outstanding calls and the request concurrency of its tasks with an AIMD
+	 * controller driven by observed RTTs and timeouts instead of static limits.
+	 */
+	public default boolean useAdaptiveConcurrency() {
+		return false;
+	}
+
+	/**
+	 * If true announced peers are stored in sharded slabs of direct memory with fixed-width records instead of one heap
+	 * object per peer. Reduces heap usage and GC load for nodes holding large numbers of announces.
+	 */
+	public default boolean useOffHeapPeerStore() {
+		return false;
+	}
+
+	/**
+	 * If true announced peers and stored items are journaled to the storage path and restored on startup, so that a
+	 * restarted node can serve them without waiting for clients to re-announce.
+	 */
+	public default boolean isPersistingAnnounces() {
+		return false;
+	}
+	
+	/**
+	 * If true write tokens are computed with SipHash-2-4 over the request's primitives instead of SHA1 over a copied buffer.
+	 * Tokens are only ever checked by the node that issued them, so this is invisible to other nodes except that tokens
+	 * handed out before a restart with a different setting won't be accepted, which is the case anyway since the secret changes.
+	 */
+	public default boolean useSipHashTokens() {
+		return false;
+	}
+
+	/**
+	 * Non-null to run the DHT on a custom packet transport instead of UDP sockets, e.g. a simulated network.
+	 * Bind address selection and router bootstrapping are skipped in that case.
+	 */
+	public default PacketTransport getTransport() {
+		return null;
+	}
 }
@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+
+/**
+ * Journal of announced peers and stored BEP44 items so that a restarted node can serve them immediately instead of
+ * waiting for clients to re-announce.
+ *
+ * Mutations are appended to one of two memory-mapped segments, each tagged with a generation. Compaction switches to
+ * the other segment, then writes a snapshot of the in-memory state which covers every record of older generations.
+ * Replay loads the snapshot followed by all segments at least as new as the snapshot, dropping entries that expired
+ * in the meantime. Expiry itself is never journaled since it follows from the timestamps.
+ *
+ * Record layout: length, generation, CRC32 of the payload, payload. Replay of a segment ends at the first record that
+ * does not belong to its generation or fails the checksum.
+ */
+public class AnnounceJournal {
+
+	static final int MAGIC = 0x6d6c4a31;
+	static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+	static final int SEGMENT_HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 12;
+	static final int COMPACTION_THRESHOLD = SEGMENT_SIZE / 4 * 3;
+	// larger than any record
+	static final int SNAPSHOT_BUFFER_SIZE = 256 * 1024;
+
+	static final byte TYPE_PEER = 1;
+	static final byte TYPE_ITEM = 2;
+
+	static final byte ITEM_MUTABLE = 1;
+	static final byte ITEM_SALTED = 2;
+
+	final Path snapshotFile;
+	final Path[] segmentFiles = new Path[2];
+	final FileChannel[] channels = new FileChannel[2];
+	final MappedByteBuffer[] segments = new MappedByteBuffer[2];
+
+	// guarded by this
+	private int generation;
+	private int writePosition;
+	private boolean closed;
+
+	private volatile int snapshotGeneration;
+
+	/**
+	 * @param prefix file name prefix within the directory, e.g. the DHT type
+	 */
+	public AnnounceJournal(Path dir, String prefix) throws IOException {
+		snapshotFile = dir.resolve(prefix + "-announces.snapshot");
+
+		for(int i=0;i<2;i++) {
+			segmentFiles[i] = dir.resolve(prefix + "-announces." + i + ".journal");
+			channels[i] = FileChannel.open(segmentFiles[i], StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			segments[i] = channels[i].map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	/**
+	 * loads the snapshot and journal segments into the stores and positions the journal for appending. must be called once before anything is logged
+	 */
+	public synchronized void replay(Database db, GenericStorage storage) {
+		long now = System.currentTimeMillis();
+		int[] counts = new int[2];
+
+		int covered = 0;
+		if(Files.isRegularFile(snapshotFile)) {
+			try(FileChannel chan = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+				// don't use mmap, that would keep the file undeletable on windows, which would interfere with write-atomicmove persistence
+				ByteBuffer buf = ByteBuffer.allocate((int) chan.size());
+				while(buf.hasRemaining() && chan.read(buf) >= 0)
+					;
+				buf.flip();
+				if(buf.remaining() >= SEGMENT_HEADER_SIZE && buf.getInt() == MAGIC) {
+					covered = buf.getInt();
+					apply(buf, covered, db, storage, now, counts);
+				}
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+
+		snapshotGeneration = covered;
+		generation = covered;
+
+		// older generation first so newer records win
+		Integer[] order = {0, 1};
+		Arrays.sort(order, Comparator.comparingInt(i -> segments[i].getInt(4)));
+
+		int active = -1;
+		for(int i : order) {
+			ByteBuffer seg = segments[i].duplicate();
+			if(seg.getInt(0) != MAGIC)
+				continue;
+			int gen = seg.getInt(4);
+			if(gen < covered)
+				continue;
+			seg.position(SEGMENT_HEADER_SIZE);
+			int end = apply(seg, gen, db, storage, now, counts);
+			if(gen >= generation) {
+				generation = gen;
+				writePosition = end;
+				active = i;
+			}
+		}
+
+		if(active == -1)
+			resetSegment(generation);
+
+		DHT.logInfo("Replayed " + counts[0] + " peers and " + counts[1] + " storage items from announce journal " + snapshotFile.getParent());
+	}
+
+	/**
+	 * @return position after the last valid record
+	 */
+	private int apply(ByteBuffer buf, int gen, Database db, GenericStorage storage, long now, int[] counts) {
+		CRC32 crc = new CRC32();
+
+		while(buf.remaining() >= RECORD_HEADER_SIZE) {
+			int start = buf.position();
+			int length = buf.getInt();
+			if(length <= 0 || buf.getInt() != gen || length > buf.remaining() - 4) {
+				buf.position(start);
+				break;
+			}
+			int checksum = buf.getInt();
+
+			ByteBuffer payload = buf.slice();
+			payload.limit(length);
+			crc.reset();
+			crc.update(payload.duplicate());
+			if((int) crc.getValue() != checksum) {
+				buf.position(start);
+				break;
+			}
+			buf.position(buf.position() + length);
+
+			try {
+				byte type = payload.get();
+				if(type == TYPE_PEER) {
+					Key k = readKey(payload);
+					long created = payload.getLong();
+					boolean seed = payload.get() != 0;
+					byte[] data = new byte[payload.get() & 0xFF];
+					payload.get(data);
+					PeerAddressDBItem item = new PeerAddressDBItem(data, seed, created);
+					if(!item.expired(now)) {
+						db.store(k, item);
+						counts[0]++;
+					}
+				} else if(type == TYPE_ITEM) {
+					Key k = readKey(payload);
+					StorageItem item = readItem(payload);
+					if(item.expirationDate >= now && storage.putOrUpdate(k, item, -1) == GenericStorage.UpdateResult.SUCCESS)
+						counts[1]++;
+				}
+			} catch (RuntimeException e) {
+				// corrupt payload with valid checksum shouldn't happen, skip the record
+				DHT.log(e, LogLevel.Debug);
+			}
+		}
+
+		return buf.position();
+	}
+
+	static Key readKey(ByteBuffer buf) {
+		byte[] hash = new byte[Key.SHA1_HASH_LENGTH];
+		buf.get(hash);
+		return new Key(hash);
+	}
+
+	static StorageItem readItem(ByteBuffer buf) {
+		long expiration = buf.getLong();
+		long seq = buf.getLong();
+		byte flags = buf.get();
+		byte[] value = new byte[buf.getShort() & 0xFFFF];
+		buf.get(value);
+
+		StorageItem item;
+		if((flags & ITEM_MUTABLE) != 0) {
+			byte[] pubkey = new byte[buf.get() & 0xFF];
+			buf.get(pubkey);
+			byte[] signature = new byte[buf.get() & 0xFF];
+			buf.get(signature);
+			byte[] salt = null;
+			if((flags & ITEM_SALTED) != 0) {
+				salt = new byte[buf.get() & 0xFF];
+				buf.get(salt);
+			}
+			item = new StorageItem(value, pubkey, signature, salt, seq);
+		} else {
+			item = new StorageItem(value);
+		}
+		item.expirationDate = expiration;
+		return item;
+	}
+
+	static void writePeer(ByteBuffer buf, Key k, PeerAddressDBItem item) {
+		byte[] data = item.getData();
+		buf.put(TYPE_PEER);
+		k.toBuffer(buf);
+		buf.putLong(item.getCreatedAt());
+		buf.put((byte) (item.isSeed() ? 1 : 0));
+		buf.put((byte) data.length);
+		buf.put(data);
+	}
+
+	static void writeItem(ByteBuffer buf, Key k, StorageItem item) {
+		buf.put(TYPE_ITEM);
+		k.toBuffer(buf);
+		buf.putLong(item.expirationDate);
+		buf.putLong(item.sequenceNumber);
+		buf.put((byte) ((item.mutable() ? ITEM_MUTABLE : 0) | (item.salt != null ? ITEM_SALTED : 0)));
+		buf.putShort((short) item.value.length);
+		buf.put(item.value);
+		if(item.mutable()) {
+			buf.put((byte) item.pubkey.length);
+			buf.put(item.pubkey);
+			buf.put((byte) item.signature.length);
+			buf.put(item.signature);
+			if(item.salt != null) {
+				buf.put((byte) item.salt.length);
+				buf.put(item.salt);
+			}
+		}
+	}
+
+	static int itemRecordSize(StorageItem item) {
+		int size = 1 + Key.SHA1_HASH_LENGTH + 8 + 8 + 1 + 2 + item.value.length;
+		if(item.mutable())
+			size += 1 + item.pubkey.length + 1 + item.signature.length + (item.salt != null ? 1 + item.salt.length : 0);
+		return size;
+	}
+
+	static int peerRecordSize(PeerAddressDBItem item) {
+		return 1 + Key.SHA1_HASH_LENGTH + 8 + 1 + 1 + item.getData().length;
+	}
+
+	/**
+	 * to be called after the peer has been added to the database
+	 */
+	public void peerStored(Key k, PeerAddressDBItem item) {
+		ByteBuffer payload = ByteBuffer.allocate(peerRecordSize(item));
+		writePeer(payload, k, item);
+		append(payload);
+	}
+
+	/**
+	 * to be called after the item has been accepted by the storage
+	 */
+	public void itemStored(Key k, StorageItem item) {
+		ByteBuffer payload = ByteBuffer.allocate(itemRecordSize(item));
+		writeItem(payload, k, item);
+		append(payload);
+	}
+
+	private void append(ByteBuffer payload) {
+		payload.flip();
+		CRC32 crc = new CRC32();
+		crc.update(payload.duplicate());
+		int length = payload.remaining();
+
+		synchronized (this) {
+			if(closed)
+				return;
+			// compaction is overdue, the state is still in memory and will be part of the next snapshot
+			if(writePosition + RECORD_HEADER_SIZE + length > SEGMENT_SIZE)
+				return;
+			ByteBuffer seg = segments[generation & 1];
+			int pos = writePosition;
+			seg.putInt(pos + 4, generation);
+			seg.putInt(pos + 8, (int) crc.getValue());
+			ByteBuffer dst = seg.duplicate();
+			dst.position(pos + RECORD_HEADER_SIZE);
+			dst.put(payload);
+			// length last, a record is not visible to replay before it's complete
+			seg.putInt(pos, length);
+			writePosition = pos + RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	public synchronized boolean needsCompaction() {
+		return !closed && (writePosition > COMPACTION_THRESHOLD || snapshotGeneration < generation);
+	}
+
+	/**
+	 * switches to the other segment and writes a snapshot covering everything logged before the switch.
+	 * must not be called concurrently with itself
+	 */
+	public void compact(Database db, GenericStorage storage) throws IOException {
+		if(!Files.isDirectory(snapshotFile.getParent()))
+			return;
+
+		int covers;
+		synchronized (this) {
+			if(closed)
+				return;
+			// the inactive segment may only be overwritten once the previous snapshot made it obsolete
+			if(snapshotGeneration == generation)
+				resetSegment(generation + 1);
+			covers = generation;
+		}
+
+		// the stores are updated before the journal, so their current state includes all records of older generations
+		Map<Key, Database.PeersSeeds> peers = db.getData();
+		Map<Key, StorageItem> items = storage.getItems();
+
+		Path tempFile = Files.createTempFile(snapshotFile.getParent(), "announces", ".tmp");
+		try {
+			try(SeekableByteChannel chan = Files.newByteChannel(tempFile, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_BUFFER_SIZE);
+				buf.putInt(MAGIC);
+				buf.putInt(covers);
+
+				CRC32 crc = new CRC32();
+				ByteBuffer record = ByteBuffer.allocate(1024);
+
+				for(Map.Entry<Key, Database.PeersSeeds> e : peers.entrySet()) {
+					for(Database.ItemSet set : Arrays.asList(e.getValue().seeds(), e.getValue().peers())) {
+						for(PeerAddressDBItem item : set.snapshot()) {
+							record.clear();
+							writePeer(record, e.getKey(), item);
+							flushRecord(chan, buf, record, covers, crc);
+						}
+					}
+				}
+
+				for(Map.Entry<Key, StorageItem> e : items.entrySet()) {
+					int size = itemRecordSize(e.getValue());
+					if(record.capacity() < size)
+						record = ByteBuffer.allocate(size);
+					record.clear();
+					writeItem(record, e.getKey(), e.getValue());
+					flushRecord(chan, buf, record, covers, crc);
+				}
+
+				buf.flip();
+				while(buf.hasRemaining())
+					chan.write(buf);
+			}
+			// only move once the channel is closed and everything has been flushed
+			Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+
+		snapshotGeneration = covers;
+	}
+
+	private static void flushRecord(SeekableByteChannel chan, ByteBuffer buf, ByteBuffer record, int gen, CRC32 crc) throws IOException {
+		record.flip();
+		if(buf.remaining() < RECORD_HEADER_SIZE + record.remaining()) {
+			buf.flip();
+			while(buf.hasRemaining())
+				chan.write(buf);
+			buf.clear();
+		}
+		crc.reset();
+		crc.update(record.duplicate());
+		buf.putInt(record.remaining());
+		buf.putInt(gen);
+		buf.putInt((int) crc.getValue());
+		buf.put(record);
+	}
+
+	// guarded by this
+	private void resetSegment(int newGeneration) {
+		MappedByteBuffer seg = segments[newGeneration & 1];
+		seg.putInt(SEGMENT_HEADER_SIZE, 0);
+		seg.putInt(4, newGeneration);
+		seg.putInt(0, MAGIC);
+		generation = newGeneration;
+		writePosition = SEGMENT_HEADER_SIZE;
+	}
+
+	public synchronized void close() {
+		if(closed)
+			return;
+		closed = true;
+		for(int i=0;i<2;i++) {
+			segments[i].force();
+			try {
+				channels[i].close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+}
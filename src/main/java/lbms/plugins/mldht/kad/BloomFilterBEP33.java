@@ -19,7 +19,7 @@ import lbms.plugins.mldht.kad.utils.BitVector;
 public class BloomFilterBEP33 implements Comparable<BloomFilterBEP33>, Cloneable {
 
 	public final static int m = 256 * 8;
-	private final static int k = 2;
+	final static int k = 2;
 
 	
 	MessageDigest sha1;
@@ -45,16 +45,18 @@ public class BloomFilterBEP33 implements Comparable<BloomFilterBEP33>, Cloneable
         
         byte[] hash = sha1.digest(addr.getAddress());
         
-        int index1 = (hash[0]&0xFF) | (hash[1]&0xFF) << 8;
-        int index2 = (hash[2]&0xFF) | (hash[3]&0xFF) << 8;
-
-        // truncate index to m (11 bits required)
-        index1 %= m;
-        index2 %= m;
-
         // set bits at index1 and index2
-        filter.set(index1);
-        filter.set(index2);
+        filter.set(index(hash, 0));
+        filter.set(index(hash, 1));
+    }
+    
+    /**
+     * @return the i-th of the k bit indices for the SHA1 hash of an address
+     */
+    static int index(byte[] hash, int i) {
+        int index = (hash[i * 2]&0xFF) | (hash[i * 2 + 1]&0xFF) << 8;
+        // truncate index to m (11 bits required)
+        return index % m;
     }
 	
 	
@@ -96,6 +98,16 @@ public class BloomFilterBEP33 implements Comparable<BloomFilterBEP33>, Cloneable
 		return (int) (log1p(-c/m) / (k * logB()));
 	}
 	
+	/**
+	 * @return a new filter containing all elements of the given ones
+	 */
+	public static BloomFilterBEP33 union(Collection<BloomFilterBEP33> filters) {
+		BloomFilterBEP33 union = new BloomFilterBEP33();
+		for(BloomFilterBEP33 f : filters)
+			union.filter.or(f.filter);
+		return union;
+	}
+	
 	public byte[] serialize() {
 		return filter.getSerializedFormat();
 	}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.security.MessageDigest;
+
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+/**
+ * Counting variant of {@link BloomFilterBEP33} that supports removals, so that scrape filters of peer sets under churn
+ * can be maintained incrementally instead of being rehashed from scratch after each change.
+ *
+ * Keeps a saturating 8-bit counter per filter bit, bits of saturated counters are never cleared again. The bitset itself
+ * is maintained alongside the counters, a {@link BloomFilterBEP33} is only materialized after it changed.
+ *
+ * Not thread-safe.
+ */
+final class CountingBloomFilterBEP33 {
+
+	/**
+	 * smaller sets are cheaper to rehash than the 2KiB of counters are worth keeping around
+	 */
+	static final int MIN_SET_SIZE = 32;
+
+	private final byte[] counters = new byte[BloomFilterBEP33.m];
+	private final byte[] bits = new byte[BloomFilterBEP33.m / 8];
+	private BloomFilterBEP33 materialized;
+
+	void add(InetAddress addr) {
+		add(addr.getAddress());
+	}
+
+	void remove(InetAddress addr) {
+		remove(addr.getAddress());
+	}
+
+	void add(byte[] rawAddress) {
+		byte[] hash = digest(rawAddress);
+		for(int i=0;i<BloomFilterBEP33.k;i++)
+			increment(BloomFilterBEP33.index(hash, i));
+	}
+
+	void remove(byte[] rawAddress) {
+		byte[] hash = digest(rawAddress);
+		for(int i=0;i<BloomFilterBEP33.k;i++)
+			decrement(BloomFilterBEP33.index(hash, i));
+	}
+
+	private static byte[] digest(byte[] rawAddress) {
+		MessageDigest sha1 = ThreadLocalUtils.getThreadLocalSHA1();
+		sha1.reset();
+		return sha1.digest(rawAddress);
+	}
+
+	private void increment(int idx) {
+		int c = counters[idx] & 0xFF;
+		if(c == 0xFF)
+			return;
+		counters[idx] = (byte) (c + 1);
+		if(c == 0) {
+			bits[idx >>> 3] |= 1 << (idx & 7);
+			materialized = null;
+		}
+	}
+
+	private void decrement(int idx) {
+		int c = counters[idx] & 0xFF;
+		if(c == 0 || c == 0xFF)
+			return;
+		counters[idx] = (byte) (c - 1);
+		if(c == 1) {
+			bits[idx >>> 3] &= ~(1 << (idx & 7));
+			materialized = null;
+		}
+	}
+
+	/**
+	 * @return a filter of the current contents. shared until the next change of the bitset, must not be modified
+	 */
+	BloomFilterBEP33 toFilter() {
+		BloomFilterBEP33 f = materialized;
+		if(f == null)
+			f = materialized = new BloomFilterBEP33(bits);
+		return f;
+	}
+
+}
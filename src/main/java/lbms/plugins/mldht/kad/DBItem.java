@@ -30,6 +30,14 @@ public class DBItem implements Comparable<DBItem> {
 		item = ip_port.clone();
 	}
 
+	/**
+	 * takes ownership of the array
+	 */
+	protected DBItem (final byte[] ip_port, long createdAt) {
+		time_stamp = createdAt;
+		item = ip_port;
+	}
+
 	/// See if the item is expired
 	public boolean expired (final long now) {
 		return (now - time_stamp >= DHTConstants.MAX_ITEM_AGE);
@@ -40,9 +40,10 @@ import lbms.plugins.mldht.kad.tasks.Task;
 import lbms.plugins.mldht.kad.tasks.TaskListener;
 import lbms.plugins.mldht.kad.tasks.TaskManager;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
-import lbms.plugins.mldht.kad.utils.ByteWrapper;
 import lbms.plugins.mldht.kad.utils.PopulationEstimator;
+import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
+import lbms.plugins.mldht.utils.TimingWheel;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -158,6 +159,8 @@ public class DHT implements DHTBase {
     private Node node;
     private RPCServerManager serverManager;
     private GenericStorage storage;
+    private SignatureVerifier sigVerifier;
+    private AnnounceJournal journal;
     private Database db;
     private TaskManager tman;
     IDMismatchDetector mismatchDetector;
@@ -172,12 +175,14 @@ public class DHT implements DHTBase {
     private DHTStatus status;
     private PopulationEstimator estimator;
     private AnnounceNodeCache cache;
-    NIOConnectionManager connectionManager;
+    private PeerLookupCache lookupCache;
+    volatile NIOConnectionManager connectionManager;
 
     RPCStats serverStats;
 
     private final DHTtype type;
     private List<ScheduledFuture<?>> scheduledActions = new ArrayList<>();
+    private TimingWheel timeoutWheel;
     private List<DHT> siblingGroup = new ArrayList<>();
     private ScheduledExecutorService scheduler;
 
@@ -198,6 +203,13 @@ public class DHT implements DHTBase {
         return scheduler;
     }
 
+    /**
+     * drives stall and timeout detection of outstanding RPC calls
+     */
+    public TimingWheel getTimeoutWheel() {
+        return timeoutWheel;
+    }
+
     public void setScheduler(ScheduledExecutorService scheduler) {
         this.scheduler = scheduler;
     }
@@ -316,9 +328,7 @@ public class DHT implements DHTBase {
         Key k = req.getTarget();
 
 
-        Optional.ofNullable(db.genToken(req.getID(), req.getOrigin().getAddress(), req.getOrigin().getPort(), k)).ifPresent(token -> {
-            rsp.setToken(token.arr);
-        });
+        Optional.ofNullable(db.genToken(req.getID(), req.getOrigin().getAddress(), req.getOrigin().getPort(), k)).ifPresent(rsp::setToken);
 
         storage.get(k).ifPresent(item -> {
             if (req.getSeq() < 0 || item.sequenceNumber < 0 || req.getSeq() < item.sequenceNumber) {
@@ -342,13 +352,37 @@ public class DHT implements DHTBase {
 
         Key k = req.deriveTargetKey();
 
-        if (!db.checkToken(new ByteWrapper(req.getToken()), req.getID(), req.getOrigin().getAddress(), req.getOrigin().getPort(), k)) {
+        if (!db.checkToken(req.getToken(), req.getID(), req.getOrigin().getAddress(), req.getOrigin().getPort(), k)) {
             sendError(req, ErrorCode.ProtocolError.code, "received invalid or expired token for PUT request");
             return;
         }
 
-        UpdateResult result = storage.putOrUpdate(k, new StorageItem(req), req.getExpectedSequenceNumber());
+        StorageItem item = new StorageItem(req);
+        long expected = req.getExpectedSequenceNumber();
+
+        if (!item.mutable()) {
+            completePut(req, k, item, storage.putOrUpdate(k, item, expected));
+            return;
+        }
+
+        // don't spend a signature verification on puts that will be rejected anyway
+        UpdateResult early = storage.precheck(k, item, expected);
+        if (early != UpdateResult.SUCCESS) {
+            completePut(req, k, item, early);
+            return;
+        }
+
+        boolean accepted = sigVerifier.submit(item, valid -> {
+            if (!isRunning())
+                return;
+            completePut(req, k, item, valid ? storage.putVerified(k, item, expected) : UpdateResult.SIG_FAIL);
+        });
 
+        if (!accepted)
+            sendError(req, ErrorCode.ServerError.code, "too many pending PUT requests");
+    }
+
+    void completePut(PutRequest req, Key k, StorageItem item, UpdateResult result) {
         switch (result) {
             case CAS_FAIL:
                 sendError(req, ErrorCode.CasFail.code, "CAS failure");
@@ -363,6 +397,8 @@ public class DHT implements DHTBase {
                 sendError(req, ErrorCode.ProtocolError.code, "PUT request replacing mutable data with immutable is not supported");
                 return;
             case SUCCESS:
+                if (journal != null)
+                    journal.itemStored(k, item);
 
                 PutResponse rsp = new PutResponse(req.getMTID());
                 rsp.setDestination(req.getOrigin());
@@ -408,7 +444,7 @@ public class DHT implements DHTBase {
         }
 
         // generate a token
-        ByteWrapper token = null;
+        byte[] token = null;
         if (db.insertForKeyAllowed(r.getInfoHash()))
             token = db.genToken(r.getID(), r.getOrigin().getAddress(), r.getOrigin().getPort(), r.getInfoHash());
 
@@ -431,7 +467,7 @@ public class DHT implements DHTBase {
 
         populateResponse(r.getTarget(), resp, want4, want6);
 
-        resp.setToken(token != null ? token.arr : null);
+        resp.setToken(token);
         resp.setScrapePeers(peerFilter);
         resp.setScrapeSeeds(seedFilter);
 
@@ -454,8 +490,7 @@ public class DHT implements DHTBase {
         }
 
         // first check if the token is OK
-        ByteWrapper token = new ByteWrapper(r.getToken());
-        if (!db.checkToken(token, r.getID(), r.getOrigin().getAddress(), r.getOrigin().getPort(), r.getInfoHash())) {
+        if (!db.checkToken(r.getToken(), r.getID(), r.getOrigin().getAddress(), r.getOrigin().getPort(), r.getInfoHash())) {
             logDebug("DHT Received Announce Request with invalid token.");
             sendError(r, ErrorCode.ProtocolError.code, "Invalid Token; tokens expire after " + DHTConstants.TOKEN_TIMEOUT + "ms; only valid for the IP/port to which it was issued; only valid for the infohash for which it was issued");
             return;
@@ -467,8 +502,11 @@ public class DHT implements DHTBase {
         // everything OK, so store the value
         PeerAddressDBItem item = PeerAddressDBItem.createFromAddress(r.getOrigin().getAddress(), r.getPort(), r.isSeed());
         r.getVersion().ifPresent(item::setVersion);
-        if (!AddressUtils.isBogon(item))
+        if (!AddressUtils.isBogon(item)) {
             db.store(r.getInfoHash(), item);
+            if (journal != null)
+                journal.peerStored(r.getInfoHash(), item);
+        }
 
         // send a proper response to indicate everything is OK
         AnnounceResponse rsp = new AnnounceResponse(r.getMTID());
@@ -576,12 +614,27 @@ public class DHT implements DHTBase {
         return cache;
     }
 
+    /**
+     * shares results of recent and running peer lookups between callers that do not need to announce
+     */
+    public PeerLookupCache getPeerLookupCache() {
+        return lookupCache;
+    }
+
     public RPCServerManager getServerManager() {
         return serverManager;
     }
 
     public NIOConnectionManager getConnectionManager() {
-        return connectionManager;
+        NIOConnectionManager manager = connectionManager;
+        if (manager != null)
+            return manager;
+        // created on first use. that's during startup for sockets, on a custom transport only components that open their own connections need it
+        synchronized (this) {
+            if (connectionManager == null)
+                connectionManager = new NIOConnectionManager("mlDHT " + type.shortName + " NIO Selector");
+            return connectionManager;
+        }
     }
 
     public PopulationEstimator getEstimator() {
@@ -654,6 +707,7 @@ public class DHT implements DHTBase {
 
 
         cache = new AnnounceNodeCache();
+        lookupCache = new PeerLookupCache(this);
         stats.setRpcStats(serverStats);
 
         serverManager = new RPCServerManager(this);
@@ -662,11 +716,14 @@ public class DHT implements DHTBase {
         unreachableCache = new NonReachableCache();
 
         serverManager.notifyOnServerAdded(serverListener);
-        db = new Database();
+        db = new Database(config.useOffHeapPeerStore());
+        if (config.useSipHashTokens())
+            db.tokenAlgorithm = Database.TokenAlgorithm.SIPHASH;
         stats.setDbStats(db.getStats());
         tman = new TaskManager(this);
         running = true;
         storage = new GenericStorage();
+        sigVerifier = new SignatureVerifier(scheduler, Runtime.getRuntime().availableProcessors() / 2);
     }
 
     /*
@@ -695,16 +752,33 @@ public class DHT implements DHTBase {
 
         logInfo("Starting DHT on port " + getPort());
 
-        // we need the IPs to filter bootstrap nodes out from the routing table. but don't block startup on DNS resolution
-        scheduler.execute(this::resolveBootstrapAddresses);
+        // custom transports can't reach the routers and don't need a selector
+        if (config.getTransport() == null) {
+            // we need the IPs to filter bootstrap nodes out from the routing table. but don't block startup on DNS resolution
+            scheduler.execute(this::resolveBootstrapAddresses);
 
-        connectionManager = new NIOConnectionManager("mlDHT " + type.shortName + " NIO Selector");
+            getConnectionManager();
+        }
+
+        // one tick per RTT histogram bin, enough slots to cover the maximum call timeout in a single rotation
+        timeoutWheel = new TimingWheel(ResponseTimeoutFilter.BIN_SIZE, TimeUnit.MILLISECONDS, ResponseTimeoutFilter.NUM_BINS);
+        scheduledActions.add(scheduler.scheduleAtFixedRate(timeoutWheel::tick, ResponseTimeoutFilter.BIN_SIZE, ResponseTimeoutFilter.BIN_SIZE, TimeUnit.MILLISECONDS));
 
         populate();
 
         node.initKey(config);
         node.loadTable(table_file);
 
+        if (config.isPersistingAnnounces() && Files.isDirectory(config.getStoragePath())) {
+            try {
+                journal = new AnnounceJournal(config.getStoragePath(), type.shortName);
+                journal.replay(db, storage);
+            } catch (IOException e) {
+                log(e, LogLevel.Error);
+                journal = null;
+            }
+        }
+
 
         // these checks query the available network interfaces, which can be expensive on some platforms
         // schedule them separately
@@ -781,6 +855,18 @@ public class DHT implements DHTBase {
 
         }, 1000, DHTConstants.CHECK_FOR_EXPIRED_ENTRIES, TimeUnit.MILLISECONDS));
 
+        if (journal != null) {
+            AnnounceJournal j = journal;
+            scheduledActions.add(scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    if (j.needsCompaction())
+                        j.compact(db, storage);
+                } catch (IOException e) {
+                    log(e, LogLevel.Error);
+                }
+            }, 30, 30, TimeUnit.SECONDS));
+        }
+
         scheduledActions.add(scheduler.scheduleWithFixedDelay(node::decayThrottle, 1, Node.throttleUpdateIntervalMinutes, TimeUnit.MINUTES));
 
         // single ping to a random node per server to check socket liveness
@@ -865,11 +951,23 @@ public class DHT implements DHTBase {
             e.printStackTrace();
         }
 
+        if (journal != null) {
+            try {
+                logInfo("persisting announces on shutdown");
+                journal.compact(db, storage);
+            } catch (IOException e) {
+                log(e, LogLevel.Error);
+            }
+            journal.close();
+            journal = null;
+        }
+
         stopped();
         tman = null;
         db = null;
         node = null;
         cache = null;
+        lookupCache = null;
         serverManager = null;
         setStatus(DHTStatus.Initializing, DHTStatus.Stopped);
         setStatus(DHTStatus.Running, DHTStatus.Stopped);
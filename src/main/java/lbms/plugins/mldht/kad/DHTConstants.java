@@ -23,6 +23,7 @@ public class DHTConstants {
 	public static final int		MAX_CONCURRENT_REQUESTS					= 10;
 	public static final	int		MAX_CONCURRENT_REQUESTS_LOWPRIO			= 3;
 	public static final int		RECEIVE_BUFFER_SIZE						= 5 * 1024;
+	public static final int		RECEIVE_BUFFER_POOL_SIZE				= 1024;
 
 	public static final int		CHECK_FOR_EXPIRED_ENTRIES				= 5 * 60 * 1000;
 	public static final int		MAX_ITEM_AGE							= 60 * 60 * 1000;
@@ -55,6 +56,9 @@ public class DHTConstants {
 
 	public static final int		ANNOUNCE_CACHE_MAX_AGE					= 30 * 60 * 1000;
 	public static final int		ANNOUNCE_CACHE_FAST_LOOKUP_AGE			= 8 * 60 * 1000;
+	
+	public static final int		PEER_LOOKUP_CACHE_TTL					= 2 * 60 * 1000;
+	public static final int		PEER_LOOKUP_CACHE_MAX_ENTRIES			= 1024;
 
 
 	public static final InetSocketAddress[] UNRESOLVED_BOOTSTRAP_NODES = new InetSocketAddress[] {
@@ -22,7 +22,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
-import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.SipHash;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
 /**
@@ -31,6 +31,8 @@ import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
  */
 public class Database {
 	private ConcurrentMap<Key, PeersSeeds>	items;
+	// replaces items when not null. package-private for tests
+	final OffHeapPeerStore offHeap;
 	private AtomicLong timestampCurrent = new AtomicLong();
 	private volatile long timestampPrevious;
 	private volatile byte[] samples = new byte[0];
@@ -42,9 +44,42 @@ public class Database {
 	static {
 		ThreadLocalUtils.getThreadLocalRandom().nextBytes(sessionSecret);
 	}
+	
+	private static final ThreadLocal<SipHash> tokenMac;
+	
+	static {
+		long k0 = ThreadLocalUtils.getThreadLocalRandom().nextLong();
+		long k1 = ThreadLocalUtils.getThreadLocalRandom().nextLong();
+		tokenMac = ThreadLocal.withInitial(() -> new SipHash(k0, k1));
+	}
+	
+	enum TokenAlgorithm {
+		/** SHA1 over the token inputs and the session secret */
+		SHA1,
+		/** SipHash-2-4 keyed with a session key, computed without intermediate buffers */
+		SIPHASH
+	}
+	
+	/**
+	 * tokens are opaque to other nodes, so either algorithm can be used. see {@link lbms.plugins.mldht.DHTConfiguration#useSipHashTokens()}
+	 */
+	TokenAlgorithm tokenAlgorithm = TokenAlgorithm.SHA1;
 
 	Database() {
-		items = new ConcurrentHashMap<>(3000);
+		this(false);
+	}
+	
+	/**
+	 * @param offHeap keep peers in sharded direct memory slabs instead of one object per peer, see {@link OffHeapPeerStore}
+	 */
+	Database(boolean offHeap) {
+		if(offHeap) {
+			this.offHeap = new OffHeapPeerStore();
+			items = new ConcurrentHashMap<>();
+		} else {
+			this.offHeap = null;
+			items = new ConcurrentHashMap<>(3000);
+		}
 	}
 	
 	
@@ -91,7 +126,9 @@ public class Database {
 		
 		
 		private volatile PeerAddressDBItem[] items = NO_ITEMS;
-		private volatile BloomFilterBEP33 filter = null;
+		// guarded by this. filter caches the scrape filter for small sets, larger ones switch to counts once scraped
+		private BloomFilterBEP33 filter = null;
+		private CountingBloomFilterBEP33 counts = null;
 		
 		ItemSet(PeerAddressDBItem[] initial) {
 			this.items = initial;
@@ -116,7 +153,9 @@ public class Database {
 				System.arraycopy(current, idx+1, newItems, idx, newItems.length - idx);
 				
 				items = newItems;
-				invalidateFilters();
+				filter = null;
+				if(counts != null)
+					counts.remove(it.getInetAddress());
 			}
 		}
 		
@@ -138,13 +177,9 @@ public class Database {
 
 				items = newItems;
 				
-				// bloom filter supports adding, only deletions need a rebuild.
-				BloomFilterBEP33 currentFilter = filter;
-				if(currentFilter != null)
-					synchronized (currentFilter) {
-						currentFilter.insert(toAdd.getInetAddress());
-					}
-				
+				filter = null;
+				if(counts != null)
+					counts.add(toAdd.getInetAddress());
 				
 				return true;
 			}
@@ -166,17 +201,22 @@ public class Database {
 			return Arrays.stream(items);
 		}
 		
-		private void invalidateFilters() {
-			filter = null;
-		}
-		
 		BloomFilterBEP33 getFilter() {
-			BloomFilterBEP33 f = filter;
-			if(f == null) {
-				f = filter = buildFilter();
+			synchronized (this) {
+				if(counts == null) {
+					if(items.length < CountingBloomFilterBEP33.MIN_SET_SIZE) {
+						if(filter == null)
+							filter = buildFilter();
+						return filter;
+					}
+					
+					counts = new CountingBloomFilterBEP33();
+					for(PeerAddressDBItem item : items)
+						counts.add(item.getInetAddress());
+				}
+				
+				return counts.toFilter();
 			}
-			
-			return f;
 		}
 		
 		private BloomFilterBEP33 buildFilter() {
@@ -206,15 +246,18 @@ public class Database {
 				
 				for(int i=0;i<items.length;i++) {
 					PeerAddressDBItem e = items[i];
-					if(toRemove == 0 || !e.expired(now))
+					if(toRemove == 0 || !e.expired(now)) {
 						newItems[insertPoint++] = e;
-					else
+					} else {
 						toRemove--;
+						if(counts != null)
+							counts.remove(e.getInetAddress());
+					}
 				}
 				
 				if(insertPoint != newItems.length) {
 					this.items = Arrays.copyOf(newItems, insertPoint);
-					invalidateFilters();
+					filter = null;
 				}
 				
 			}
@@ -231,7 +274,10 @@ public class Database {
 	 *            The DBItem to store
 	 */
 	public void store(Key key, PeerAddressDBItem dbi) {
-		
+		if(offHeap != null) {
+			offHeap.store(key, dbi);
+			return;
+		}
 		
 		PeersSeeds keyEntries = null;
 		
@@ -259,6 +305,9 @@ public class Database {
 	 *            The maximum number entries
 	 */
 	List<DBItem> sample(Key key, int max_entries, DHTtype forType, boolean preferPeers) {
+		if(offHeap != null)
+			return offHeap.sample(key, max_entries, preferPeers);
+		
 		PeersSeeds keyEntry = null;
 		PeerAddressDBItem[] seedSnapshot = null;
 		PeerAddressDBItem[] peerSnapshot = null;
@@ -324,6 +373,9 @@ public class Database {
 	
 	BloomFilterBEP33 createScrapeFilter(Key key, boolean seedFilter)
 	{
+		if(offHeap != null)
+			return offHeap.filter(key, seedFilter);
+		
 		PeersSeeds dbl = items.get(key);
 		
 		if (dbl == null)
@@ -341,13 +393,17 @@ public class Database {
 	 */
 	void expire(long now) {
 		
-		for (PeersSeeds dbl : items.values())
-		{
-			dbl.expire();
+		if(offHeap != null) {
+			offHeap.expire(now);
+		} else {
+			for (PeersSeeds dbl : items.values())
+			{
+				dbl.expire();
+			}
+			
+			items.entrySet().removeIf(e -> e.getValue().size() == 0);
 		}
 		
-		items.entrySet().removeIf(e -> e.getValue().size() == 0);
-		
 		samples = null;
 		
 	}
@@ -358,7 +414,7 @@ public class Database {
 		if(currentSamples != null)
 			return ByteBuffer.wrap(currentSamples);
 		
-		List<Key> fullSet = items.keySet().stream().collect(Collectors.toCollection(ArrayList::new));
+		List<Key> fullSet = offHeap != null ? offHeap.keys() : items.keySet().stream().collect(Collectors.toCollection(ArrayList::new));
 		
 		Collections.shuffle(fullSet);
 		
@@ -382,11 +438,17 @@ public class Database {
 	
 	boolean insertForKeyAllowed(Key target)
 	{
-		PeersSeeds entries = items.get(target);
-		if(entries == null)
-			return true;
+		int size;
 		
-		int size = Math.max(entries.peers.size(), entries.seeds.size());
+		if(offHeap != null) {
+			size = offHeap.largestSet(target);
+		} else {
+			PeersSeeds entries = items.get(target);
+			if(entries == null)
+				return true;
+			
+			size = Math.max(entries.peers.size(), entries.seeds.size());
+		}
 
 		if(size < DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5)
 			return true;
@@ -409,11 +471,16 @@ public class Database {
 	 *            The IP of the peer
 	 * @param port
 	 *            The port of the peer
-	 * @return A Key
+	 * @return the 4 byte token, which ends up in the response message as is
 	 */
-	ByteWrapper genToken(Key nodeId, InetAddress ip, int port, Key lookupKey) {
+	byte[] genToken(Key nodeId, InetAddress ip, int port, Key lookupKey) {
 		updateTokenTimestamps();
 		
+		if(tokenAlgorithm == TokenAlgorithm.SIPHASH) {
+			int mac = tokenMac(nodeId, ip, port, lookupKey, timestampCurrent.get());
+			return new byte[] {(byte) (mac >>> 24), (byte) (mac >>> 16), (byte) (mac >>> 8), (byte) mac};
+		}
+		
 		byte[] tdata = new byte[Key.SHA1_HASH_LENGTH + ip.getAddress().length + 2 + 8 + Key.SHA1_HASH_LENGTH + sessionSecret.length];
 		// generate a hash of the ip port and the current time
 		// should prevent anybody from crapping things up
@@ -427,10 +494,7 @@ public class Database {
 		
 		// shorten 4bytes to not waste packet size
 		// the chance of guessing correctly would be 1 : 4 million and only be valid for a single infohash
-		byte[] token = Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
-		
-		
-		return new ByteWrapper(token);
+		return Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
 	}
 	
 	private void updateTokenTimestamps() {
@@ -458,7 +522,7 @@ public class Database {
 	 *            The port of the sender
 	 * @return true if the token was given to this peer, false other wise
 	 */
-	boolean checkToken(ByteWrapper token, Key nodeId, InetAddress ip, int port, Key lookupKey) {
+	boolean checkToken(byte[] token, Key nodeId, InetAddress ip, int port, Key lookupKey) {
 		updateTokenTimestamps();
 		boolean valid = checkToken(token, nodeId, ip, port, lookupKey, timestampCurrent.get()) || checkToken(token, nodeId, ip, port, lookupKey, timestampPrevious);
 		if(!valid)
@@ -467,7 +531,17 @@ public class Database {
 	}
 
 
-	private boolean checkToken(ByteWrapper toCheck, Key nodeId, InetAddress ip, int port, Key lookupKey, long timeStamp) {
+	private boolean checkToken(byte[] toCheck, Key nodeId, InetAddress ip, int port, Key lookupKey, long timeStamp) {
+		if(toCheck == null)
+			return false;
+		
+		if(tokenAlgorithm == TokenAlgorithm.SIPHASH) {
+			byte[] t = toCheck;
+			if(t.length != 4)
+				return false;
+			int received = (t[0] & 0xFF) << 24 | (t[1] & 0xFF) << 16 | (t[2] & 0xFF) << 8 | (t[3] & 0xFF);
+			return received == tokenMac(nodeId, ip, port, lookupKey, timeStamp);
+		}
 
 		byte[] tdata = new byte[Key.SHA1_HASH_LENGTH + ip.getAddress().length + 2 + 8 + Key.SHA1_HASH_LENGTH + sessionSecret.length];
 		ByteBuffer bb = ByteBuffer.wrap(tdata);
@@ -480,12 +554,51 @@ public class Database {
 		
 		byte[] rawToken = Arrays.copyOf(ThreadLocalUtils.getThreadLocalSHA1().digest(tdata), 4);
 		
-		return toCheck.equals(new ByteWrapper(rawToken));
+		return Arrays.equals(toCheck, rawToken);
+	}
+	
+	/**
+	 * @return 32bit MAC over the same inputs as the SHA1 token, taken straight from the keys
+	 */
+	private static int tokenMac(Key nodeId, InetAddress ip, int port, Key lookupKey, long timeStamp) {
+		SipHash mac = tokenMac.get().reset();
+		byte[] addr = ip.getAddress();
+		int addrLength = addr.length;
+		int firstAddrWord = intAt(addr, 0);
+		
+		mac.update(Integer.toUnsignedLong(nodeId.getInt(0)) << 32 | Integer.toUnsignedLong(nodeId.getInt(4)));
+		mac.update(Integer.toUnsignedLong(nodeId.getInt(8)) << 32 | Integer.toUnsignedLong(nodeId.getInt(12)));
+		// address length disambiguates v4 and v6 inputs
+		mac.update(Integer.toUnsignedLong(nodeId.getInt(16)) << 32 | (port & 0xFFFF) << 8 | addrLength);
+		mac.update(Integer.toUnsignedLong(lookupKey.getInt(0)) << 32 | Integer.toUnsignedLong(lookupKey.getInt(4)));
+		mac.update(Integer.toUnsignedLong(lookupKey.getInt(8)) << 32 | Integer.toUnsignedLong(lookupKey.getInt(12)));
+		mac.update(Integer.toUnsignedLong(lookupKey.getInt(16)) << 32 | Integer.toUnsignedLong(firstAddrWord));
+		if(addrLength == 16) {
+			mac.update(Integer.toUnsignedLong(intAt(addr, 4)) << 32 | Integer.toUnsignedLong(intAt(addr, 8)));
+			mac.update(Integer.toUnsignedLong(intAt(addr, 12)));
+		}
+		mac.update(timeStamp);
+		
+		long h = mac.finish();
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	private static int intAt(byte[] b, int offset) {
+		return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
 	}
 	
 	public Map<Key, PeersSeeds> getData() {
+		if(offHeap != null)
+			return offHeap.snapshot();
 		return new HashMap<>(items);
 	}
+	
+	/**
+	 * @return bytes of direct memory held by the off-heap peer store, 0 when peers are kept on the heap
+	 */
+	public long getOffHeapBytes() {
+		return offHeap != null ? offHeap.allocatedBytes() : 0;
+	}
 
 
 	/**
@@ -498,12 +611,15 @@ public class Database {
 			
 			@Override
 			public int getKeyCount() {
-				// TODO Auto-generated method stub
+				if(offHeap != null)
+					return offHeap.keyCount();
 				return items.size();
 			}
 			
 			@Override
 			public int getItemCount() {
+				if(offHeap != null)
+					return offHeap.itemCount();
 				return items.values().stream().mapToInt(PeersSeeds::size).sum();
 			}
 		};
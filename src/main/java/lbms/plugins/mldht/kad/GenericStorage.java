@@ -143,9 +143,12 @@ public class GenericStorage {
 		
 		public static final EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName("Ed25519");
 		
+		// initVerify resets the engine, reusing it saves the digest lookup
+		private static final ThreadLocal<Signature> verifier = ThreadLocal.withInitial(EdDSAEngine::new);
+		
 		public boolean validateSig()  {
 			try {
-				Signature sig = new EdDSAEngine();
+				Signature sig = verifier.get();
 				sig.initVerify(new EdDSAPublicKey(new EdDSAPublicKeySpec(pubkey, spec)));
 				
 				// ("4:salt" length-of-salt ":" salt) "3:seqi" seq "e1:v" len ":" and the encoded value
@@ -252,6 +255,33 @@ public class GenericStorage {
 		if(newItem.mutable() && !newItem.validateSig())
 			return UpdateResult.SIG_FAIL;
 		
+		return putVerified(k, newItem, expected);
+	}
+	
+	/**
+	 * Checks an update against the currently stored item without validating the signature, so that puts which
+	 * would be rejected anyway don't have to be verified
+	 * 
+	 * @return {@link UpdateResult#SUCCESS} if the item may be stored once its signature has been validated
+	 */
+	UpdateResult precheck(Key k, StorageItem newItem, long expected) {
+		StorageItem oldItem = items.get(k);
+		
+		if(oldItem == null || !oldItem.mutable())
+			return UpdateResult.SUCCESS;
+		if(!newItem.mutable())
+			return UpdateResult.IMMUTABLE_SUBSTITUTION_FAIL;
+		if(newItem.sequenceNumber < oldItem.sequenceNumber)
+			return UpdateResult.SEQ_FAIL;
+		if(expected >= 0 && oldItem.sequenceNumber >= 0 && oldItem.sequenceNumber != expected)
+			return UpdateResult.CAS_FAIL;
+		return UpdateResult.SUCCESS;
+	}
+	
+	/**
+	 * like {@link #putOrUpdate(Key, StorageItem, long)} but for items whose signature has already been validated
+	 */
+	UpdateResult putVerified(Key k, StorageItem newItem, long expected) {
 		while(true) {
 			StorageItem oldItem = items.putIfAbsent(k, newItem);
 			
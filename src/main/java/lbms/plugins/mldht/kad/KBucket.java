@@ -18,8 +18,10 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.utils.PackUtil;
 
 /**
  * A KBucket is just a list of KBucketEntry objects.
@@ -39,12 +41,24 @@ public class KBucket {
 	 */
 	private volatile List<KBucketEntry>	entries;
 	
+	private volatile PackedEntries				packed;
+	
 	private AtomicInteger						currentReplacementPointer;
 	private AtomicReferenceArray<KBucketEntry>	replacementBucket;
 	
 	private long						lastRefresh;
 	
+	private final Runnable				modificationListener;
+	
 	public KBucket () {
+		this(() -> {});
+	}
+	
+	/**
+	 * @param modificationListener invoked whenever the main bucket entries have been replaced
+	 */
+	public KBucket (Runnable modificationListener) {
+		this.modificationListener = modificationListener;
 		entries = new ArrayList<>(); // using arraylist here since reading/iterating is far more common than writing.
 		currentReplacementPointer = new AtomicInteger(0);
 		replacementBucket = new AtomicReferenceArray<>(DHTConstants.MAX_ENTRIES_PER_BUCKET);
@@ -161,8 +175,10 @@ public class KBucket {
 			}
 			
 			// make changes visible
-			if(added || removed)
+			if(added || removed) {
 				entries = newEntries;
+				modificationListener.run();
+			}
 		}
 	}
 
@@ -198,6 +214,53 @@ public class KBucket {
 		return entries.stream();
 	}
 	
+	/**
+	 * Compact node info of the main bucket entries, serialized once per modification of the entry list and shared by all nodes lists built until the next one.
+	 */
+	public static final class PackedEntries {
+		final List<KBucketEntry> entries;
+		final byte[] data;
+		final DHTtype type;
+		
+		PackedEntries(List<KBucketEntry> entries, DHTtype type) {
+			this.entries = entries;
+			this.type = type;
+			this.data = new byte[entries.size() * type.NODES_ENTRY_LENGTH];
+			for(int i=0;i<entries.size();i++)
+				PackUtil.PackBucketEntry(entries.get(i), data, i * type.NODES_ENTRY_LENGTH, type);
+		}
+		
+		public int size() {
+			return entries.size();
+		}
+		
+		public KBucketEntry get(int idx) {
+			return entries.get(idx);
+		}
+		
+		/**
+		 * @return the array backing all entries, the one at idx starts at {@link #offset(int)}
+		 */
+		public byte[] data() {
+			return data;
+		}
+		
+		public int offset(int idx) {
+			return idx * type.NODES_ENTRY_LENGTH;
+		}
+	}
+	
+	public PackedEntries packedEntries(DHTtype type) {
+		List<KBucketEntry> entriesRef = entries;
+		PackedEntries p = packed;
+		// entry lists are copy-on-write, identity tells us whether the cache is current. racing rebuilds are benign
+		if(p == null || p.entries != entriesRef || p.type != type) {
+			p = new PackedEntries(entriesRef, type);
+			packed = p;
+		}
+		return p;
+	}
+	
 	Stream<KBucketEntry> replacementsStream() {
 		return IntStream.range(0, replacementBucket.length()).mapToObj(replacementBucket::get).filter(Objects::nonNull);
 	}
@@ -6,16 +6,17 @@
 package lbms.plugins.mldht.kad;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
-import lbms.plugins.mldht.kad.Node.RoutingTable;
 import lbms.plugins.mldht.kad.utils.PackUtil;
+import the8472.bencode.BEncoder.StringWriter;
 
 /**
  * @author Damokles
@@ -24,9 +25,11 @@ import lbms.plugins.mldht.kad.utils.PackUtil;
 public class KClosestNodesSearch {
 	private Key							targetKey;
 	private List<KBucketEntry>			entries;
+	// compact node info of entries[i] is packedData[i][packedOffsets[i]...]
+	private byte[][]					packedData;
+	private int[]						packedOffsets;
 	private int							max_entries;
 	private DHT							owner;
-	private Comparator<KBucketEntry> comp;
 	public Predicate<KBucketEntry> filter = KBucketEntry::eligibleForNodesList;
 
 	/**
@@ -39,8 +42,9 @@ public class KClosestNodesSearch {
 		this.targetKey = key;
 		this.owner = owner;
 		this.max_entries = max_entries;
-		this.comp = new KBucketEntry.DistanceOrder(key);
-		entries = new ArrayList<>(max_entries + DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		entries = new ArrayList<>(max_entries + 1);
+		packedData = new byte[max_entries + 1][];
+		packedOffsets = new int[max_entries + 1];
 	}
 
 	/**
@@ -91,81 +95,37 @@ This requires a non-contiguous search
 
 	
 	
-	private void insertBucket(KBucket bucket) {
-		bucket.entriesStream().filter(filter).forEach(entries::add);
-	}
-	
-	private void shave() {
-		int overshoot = entries.size() - max_entries;
-		
-		if(overshoot <= 0)
-			return;
-
-		List<KBucketEntry> tail = entries.subList(Math.max(0, entries.size() - DHTConstants.MAX_ENTRIES_PER_BUCKET), entries.size());
-		tail.sort(comp);
-		entries.subList(entries.size() - overshoot, entries.size()).clear();
+	private void add(KBucketEntry e, byte[] data, int offset) {
+		int idx = entries.size();
+		if(idx == packedData.length) {
+			packedData = Arrays.copyOf(packedData, idx * 2);
+			packedOffsets = Arrays.copyOf(packedOffsets, idx * 2);
+		}
+		entries.add(e);
+		packedData[idx] = data;
+		packedOffsets[idx] = offset;
 	}
 	
 	public void fill(boolean includeOurself) {
-		RoutingTable table = owner.getNode().table();
-		
+		RoutingTableSnapshot table = owner.getNode().snapshot();
 		
-		final int initialIdx = table.indexForId(targetKey);
-		int currentIdx = initialIdx;
+		int[] found = new int[table.resultCapacity(max_entries)];
+		// walks buckets in distance order, see above. the tail is already sorted
+		int count = Math.min(table.closest(targetKey, max_entries, filter, found), max_entries);
 		
-		Node.RoutingTableEntry current = table.get(initialIdx);
-		
-		
-		while(true){
-			
-			// System.out.println(current.prefix);
-			
-			insertBucket(current.getBucket());
-			
-			if(entries.size() >= max_entries)
-				break;
-			
-			Prefix bucketPrefix = current.prefix;
-			Prefix targetToBucketDistance = new Prefix(targetKey.distance(bucketPrefix), bucketPrefix.depth); // translate into xor distance, trim trailing bits
-			Key incrementedDistance = targetToBucketDistance.add(Key.setBit(targetToBucketDistance.depth)); // increment distance by least significant *prefix* bit
-			Key nextBucketTarget = targetKey.distance(incrementedDistance); // translate back to natural distance
-			
-			
-			//System.out.println("dist    " + targetToBucketDistance.toBinString());
-			//System.out.println("newDist " +  incrementedDistance.toBinString());
-			//System.out.println("target  " +  nextBucketTarget.toBinString());
-			
-			// guess neighbor bucket that might be next in target order
-			int dir = Integer.signum(nextBucketTarget.compareTo(current.prefix));
-			int idx;
-			
-			current = null;
-			
-			idx = currentIdx + dir;
-			if(0 <= idx && idx < table.size())
-				current = table.get(idx);
-			
-			// do binary search if guess turned out incorrect
-			if(current == null || !current.prefix.isPrefixOf(nextBucketTarget)) {
-				idx = table.indexForId(nextBucketTarget);
-				current = table.get(idx);
-			}
-			
-			currentIdx = idx;
-
-			// quit if there are insufficient routing table entries to reach the desired size
-			if(currentIdx == initialIdx)
-				break;
-		}
-		
-		shave();
+		byte[] packed = table.packed();
+		for(int i=0;i<count;i++)
+			add(table.get(found[i]), packed, table.packedOffset(found[i]));
 		
 		RPCServer srv = owner.getServerManager().getRandomActiveServer(true);
 		
 		if(includeOurself && srv != null && srv.getPublicAddress() != null && entries.size() < max_entries)
 		{
 			InetSocketAddress sockAddr = new InetSocketAddress(srv.getPublicAddress(), srv.getPort());
-			entries.add(new KBucketEntry(sockAddr, srv.getDerivedID()));
+			KBucketEntry self = new KBucketEntry(sockAddr, srv.getDerivedID());
+			byte[] data = new byte[owner.getType().NODES_ENTRY_LENGTH];
+			PackUtil.PackBucketEntry(self, data, 0, owner.getType());
+			add(self, data, 0);
 		}
 	}
 	
@@ -187,16 +147,8 @@ This requires a non-contiguous search
 		int entryLength = owner.getType().NODES_ENTRY_LENGTH;
 		
 		byte[] buffer = new byte[entries.size() * entryLength];
-		int max_items = buffer.length / 26;
-		int j = 0;
-
-		for (KBucketEntry e : entries) {
-			if (j >= max_items) {
-				break;
-			}
-			PackUtil.PackBucketEntry(e, buffer, j * entryLength, owner.getType());
-			j++;
-		}
+		for (int i=0;i<entries.size();i++)
+			System.arraycopy(packedData[i], packedOffsets[i], buffer, i * entryLength, entryLength);
 		return buffer;
 	}
 	
@@ -217,6 +169,26 @@ This requires a non-contiguous search
 			public AddressType type() {
 				return owner.getType() == DHTtype.IPV4_DHT ? AddressType.V4 : AddressType.V6;
 			}
+			
+			@Override
+			public StringWriter writer() {
+				int entryLength = owner.getType().NODES_ENTRY_LENGTH;
+				int count = entries.size();
+				
+				return new StringWriter() {
+					
+					@Override
+					public void writeTo(ByteBuffer buf) {
+						for(int i=0;i<count;i++)
+							buf.put(packedData[i], packedOffsets[i], entryLength);
+					}
+					
+					@Override
+					public int length() {
+						return count * entryLength;
+					}
+				};
+			}
 		};
 	}
 
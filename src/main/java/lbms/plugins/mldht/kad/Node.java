@@ -133,7 +133,14 @@ public class Node {
 		}
 		
 		public RoutingTable() {
-			this(new RoutingTableEntry[] {new RoutingTableEntry(new Prefix(), new KBucket(), (x) -> true)});
+			this(() -> {});
+		}
+		
+		/**
+		 * @param modificationListener invoked whenever the root bucket is modified
+		 */
+		RoutingTable(Runnable modificationListener) {
+			this(new RoutingTableEntry[] {new RoutingTableEntry(new Prefix(), new KBucket(modificationListener), (x) -> true)});
 		}
 		
 		int[] buildCache() {
@@ -242,7 +249,10 @@ public class Node {
 	}
 
 	private Object CoWLock = new Object();
-	private volatile RoutingTable routingTableCOW = new RoutingTable();
+	private volatile RoutingTable routingTableCOW;
+	
+	private final AtomicInteger tableModifications = new AtomicInteger();
+	private volatile RoutingTableSnapshot snapshot;
 	
 	
 	
@@ -270,6 +280,7 @@ public class Node {
 		this.dht = dht;
 		num_receives = 0;
 		num_entries = 0;
+		setTable(new RoutingTable(this::tableModified));
 	}
 	
 	void recieved(MessageBase msg) {
@@ -520,12 +531,12 @@ public class Node {
 			if(current != expect)
 				return;
 			
-			RoutingTableEntry a = new RoutingTableEntry(entry.prefix.splitPrefixBranch(false), new KBucket(), this::isLocalBucket);
-			RoutingTableEntry b = new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), new KBucket(), this::isLocalBucket);
+			RoutingTableEntry a = new RoutingTableEntry(entry.prefix.splitPrefixBranch(false), new KBucket(this::tableModified), this::isLocalBucket);
+			RoutingTableEntry b = new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), new KBucket(this::tableModified), this::isLocalBucket);
 			
 			RoutingTable newTable = current.modify(Arrays.asList(entry), Arrays.asList(a, b));
 			
-			routingTableCOW = newTable;
+			setTable(newTable);
 			
 			// suppress recursive splitting to relinquish the lock faster. this method is generally called in a loop anyway
 			for(KBucketEntry e : entry.bucket.getEntries())
@@ -542,6 +553,32 @@ public class Node {
 		return routingTableCOW;
 	}
 	
+	/**
+	 * all table swaps go through here so that the snapshot gets invalidated
+	 */
+	private void setTable(RoutingTable table) {
+		routingTableCOW = table;
+		tableModified();
+	}
+	
+	void tableModified() {
+		tableModifications.incrementAndGet();
+	}
+	
+	/**
+	 * @return a flattened copy of the current routing table, rebuilt on demand if it has been modified since the last call
+	 */
+	public RoutingTableSnapshot snapshot() {
+		// read the counter first, concurrent modifications during the rebuild will cause another one on the next call
+		int mods = tableModifications.get();
+		RoutingTableSnapshot s = snapshot;
+		if(s == null || s.modCount != mods) {
+			s = new RoutingTableSnapshot(routingTableCOW, dht.getType(), mods);
+			snapshot = s;
+		}
+		return s;
+	}
+	
 	public Stream<Map.Entry<InetAddress, Long>> throttledEntries() {
 		return unsolicitedThrottle.entrySet().stream();
 	}
@@ -779,7 +816,7 @@ public class Node {
 						KBucket toLift = effectiveSize1 == 0 ? e2.getBucket() : e1.getBucket();
 
 						RoutingTable table = routingTableCOW;
-						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e2.prefix.getParentPrefix(), toLift, this::isLocalBucket)));
+						setTable(table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e2.prefix.getParentPrefix(), toLift, this::isLocalBucket))));
 						i -= 2;
 						continue;
 					}
@@ -789,7 +826,7 @@ public class Node {
 					if (effectiveSize1 + effectiveSize2 <= DHTConstants.MAX_ENTRIES_PER_BUCKET) {
 
 						RoutingTable table = routingTableCOW;
-						routingTableCOW = table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(), this::isLocalBucket)));
+						setTable(table.modify(Arrays.asList(e1, e2), Arrays.asList(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(this::tableModified), this::isLocalBucket))));
 						
 						// no splitting to avoid fibrillation between merge and split operations
 
@@ -833,7 +870,7 @@ public class Node {
 					continue;
 				if(changed.isEmpty())
 					break;
-				routingTableCOW = t.modify(changed, changed.stream().map(e -> new RoutingTableEntry(e.prefix, e.bucket, this::isLocalBucket)).collect(Collectors.toList()));
+				setTable(t.modify(changed, changed.stream().map(e -> new RoutingTableEntry(e.prefix, e.bucket, this::isLocalBucket)).collect(Collectors.toList())));
 				break;
 			}
 		}
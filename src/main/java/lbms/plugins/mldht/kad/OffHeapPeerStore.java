@@ -0,0 +1,589 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * Peer storage engine for {@link Database} that keeps announced peers in direct memory instead of one
+ * {@link PeerAddressDBItem} per peer.
+ *
+ * Keys are spread over shards by their leading bits, each shard owns one slab and is guarded by its own lock.
+ * Every key is assigned a power-of-two sized block of fixed-width records within its shard's slab:
+ *
+ * <pre>
+ *  0..16 address, IPv4 only uses the first 4 bytes
+ * 16..18 port
+ * 18     flags
+ * 20..24 seconds since the store was created
+ * </pre>
+ *
+ * Expiry compacts the records of a block in place. Blocks released by grown or emptied keys are recycled per size
+ * class, slabs that become mostly empty are compacted into a smaller one.
+ */
+final class OffHeapPeerStore {
+
+	static final int RECORD_SIZE = 24;
+	static final int SHARD_BITS = 6;
+	static final int MIN_BLOCK_RECORDS = 4;
+	static final int SIZE_CLASSES = 16;
+	static final int INITIAL_SLAB_SIZE = 16 * 1024;
+
+	static final int OFFSET_PORT = 16;
+	static final int OFFSET_FLAGS = 18;
+	static final int OFFSET_TIME = 20;
+
+	static final byte FLAG_SEED = 1;
+	static final byte FLAG_V6 = 2;
+
+	static final class Slot {
+		int offset;
+		int sizeClass;
+		int count;
+		int seeds;
+		// cached scrape filters for small sets, larger ones switch to counting filters once scraped
+		BloomFilterBEP33 seedFilter;
+		BloomFilterBEP33 peerFilter;
+		CountingBloomFilterBEP33 seedCounts;
+		CountingBloomFilterBEP33 peerCounts;
+
+		void added(boolean seed, byte[] address) {
+			CountingBloomFilterBEP33 counts = seed ? seedCounts : peerCounts;
+			if(counts != null)
+				counts.add(address);
+			invalidate(seed);
+		}
+
+		void removed(boolean seed, byte[] address) {
+			CountingBloomFilterBEP33 counts = seed ? seedCounts : peerCounts;
+			if(counts != null)
+				counts.remove(address);
+			invalidate(seed);
+		}
+
+		void invalidate(boolean seed) {
+			if(seed)
+				seedFilter = null;
+			else
+				peerFilter = null;
+		}
+
+		boolean counting(boolean seed) {
+			return (seed ? seedCounts : peerCounts) != null;
+		}
+
+		int capacity() {
+			return MIN_BLOCK_RECORDS << sizeClass;
+		}
+
+		int peers() {
+			return count - seeds;
+		}
+	}
+
+	final class Shard {
+		final Map<Key, Slot> index = new HashMap<>();
+		final int[][] freeBlocks = new int[SIZE_CLASSES][];
+		final int[] freeCounts = new int[SIZE_CLASSES];
+		ByteBuffer slab;
+		int top;
+		int records;
+		long freeBytes;
+
+		{
+			Arrays.fill(freeBlocks, new int[0]);
+		}
+
+		/**
+		 * @return byte offset of a block of the given size class, -1 if the slab cannot grow any further
+		 */
+		int allocate(int sizeClass) {
+			int n = freeCounts[sizeClass];
+			if(n > 0) {
+				freeCounts[sizeClass] = n - 1;
+				freeBytes -= blockSize(sizeClass);
+				return freeBlocks[sizeClass][n - 1];
+			}
+
+			long size = blockSize(sizeClass);
+			if(slab != null && top + size > slab.capacity() && freeBytes * 4 >= top) {
+				// a good part of the slab are recycled blocks of other size classes, repack before growing
+				compact();
+			}
+			if(slab == null)
+				slab = ByteBuffer.allocateDirect((int) Math.max(INITIAL_SLAB_SIZE, size));
+			if(top + size > slab.capacity()) {
+				long newCapacity = Math.max(slab.capacity() * 3L / 2, top + size);
+				if(newCapacity > Integer.MAX_VALUE)
+					return -1;
+				ByteBuffer grown = ByteBuffer.allocateDirect((int) newCapacity);
+				grown.put(range(slab, 0, top));
+				slab = grown;
+			}
+
+			int offset = top;
+			top += size;
+			return offset;
+		}
+
+		void release(int offset, int sizeClass) {
+			int n = freeCounts[sizeClass];
+			if(n == freeBlocks[sizeClass].length)
+				freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass], Math.max(4, n * 2));
+			freeBlocks[sizeClass][n] = offset;
+			freeCounts[sizeClass] = n + 1;
+			freeBytes += blockSize(sizeClass);
+		}
+
+		/**
+		 * moves all blocks into a fresh slab sized for the current contents, shrinking blocks that are mostly empty
+		 */
+		void compact() {
+			if(index.isEmpty()) {
+				slab = null;
+				top = 0;
+				Arrays.fill(freeCounts, 0);
+				freeBytes = 0;
+				return;
+			}
+
+			long needed = 0;
+			for(Slot s : index.values())
+				needed += blockSize(sizeClassFor(s.count));
+
+			ByteBuffer compacted = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_SLAB_SIZE, needed + needed / 4)));
+			int newTop = 0;
+			for(Slot s : index.values()) {
+				compacted.position(newTop);
+				compacted.put(range(slab, s.offset, s.offset + s.count * RECORD_SIZE));
+				s.offset = newTop;
+				s.sizeClass = sizeClassFor(s.count);
+				newTop += blockSize(s.sizeClass);
+			}
+
+			slab = compacted;
+			top = newTop;
+			Arrays.fill(freeCounts, 0);
+			freeBytes = 0;
+		}
+
+		boolean sparse() {
+			return slab != null && slab.capacity() > INITIAL_SLAB_SIZE && (long) records * RECORD_SIZE * 4 < slab.capacity();
+		}
+	}
+
+	final long epoch = System.currentTimeMillis();
+	final Shard[] shards = new Shard[1 << SHARD_BITS];
+
+	OffHeapPeerStore() {
+		for(int i=0;i<shards.length;i++)
+			shards[i] = new Shard();
+	}
+
+	/**
+	 * @return a view of the slab between the given byte offsets. slabs are only accessed with absolute offsets otherwise
+	 */
+	static ByteBuffer range(ByteBuffer slab, int from, int to) {
+		ByteBuffer view = slab.duplicate();
+		view.limit(to);
+		view.position(from);
+		return view;
+	}
+
+	static long blockSize(int sizeClass) {
+		return (long) RECORD_SIZE * (MIN_BLOCK_RECORDS << sizeClass);
+	}
+
+	static int sizeClassFor(int records) {
+		int sizeClass = 0;
+		while((MIN_BLOCK_RECORDS << sizeClass) < records)
+			sizeClass++;
+		return sizeClass;
+	}
+
+	Shard shardFor(Key k) {
+		return shards[k.getInt(0) >>> (32 - SHARD_BITS)];
+	}
+
+	void store(Key key, PeerAddressDBItem item) {
+		byte[] data = item.getData();
+		boolean v6 = data.length == DHTtype.IPV6_DHT.ADDRESS_ENTRY_LENGTH;
+		byte flags = (byte) ((item.seed ? FLAG_SEED : 0) | (v6 ? FLAG_V6 : 0));
+		int time = (int) ((item.getCreatedAt() - epoch) / 1000);
+
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			Slot slot = shard.index.get(key);
+			if(slot == null) {
+				int offset = shard.allocate(0);
+				if(offset < 0)
+					return;
+				slot = new Slot();
+				slot.offset = offset;
+				shard.index.put(key, slot);
+			}
+
+			ByteBuffer slab = shard.slab;
+			int pos = find(slab, slot, data, v6);
+			if(pos >= 0) {
+				// addresses are unique per key, the port and seed status may change
+				boolean wasSeed = (slab.get(pos + OFFSET_FLAGS) & FLAG_SEED) != 0;
+				write(slab, pos, data, flags, time);
+				if(wasSeed != item.seed) {
+					slot.seeds += item.seed ? 1 : -1;
+					byte[] address = address(slab, pos);
+					slot.removed(wasSeed, address);
+					slot.added(item.seed, address);
+				}
+				return;
+			}
+
+			if(slot.count == slot.capacity()) {
+				if(slot.sizeClass + 1 >= SIZE_CLASSES)
+					return;
+				int grown = shard.allocate(slot.sizeClass + 1);
+				if(grown < 0)
+					return;
+				// allocation may have replaced the slab
+				slab = shard.slab;
+				range(slab, grown, grown + slot.count * RECORD_SIZE).put(range(slab, slot.offset, slot.offset + slot.count * RECORD_SIZE));
+				shard.release(slot.offset, slot.sizeClass);
+				slot.offset = grown;
+				slot.sizeClass++;
+			}
+
+			write(slab, slot.offset + slot.count * RECORD_SIZE, data, flags, time);
+			slot.count++;
+			shard.records++;
+			if(item.seed)
+				slot.seeds++;
+
+			if(slot.counting(item.seed))
+				slot.added(item.seed, Arrays.copyOf(data, data.length - 2));
+			else
+				slot.invalidate(item.seed);
+		}
+	}
+
+	static int find(ByteBuffer slab, Slot slot, byte[] data, boolean v6) {
+		int end = slot.offset + slot.count * RECORD_SIZE;
+		if(v6) {
+			long a = readLong(data, 0);
+			long b = readLong(data, 8);
+			for(int pos=slot.offset;pos<end;pos+=RECORD_SIZE) {
+				if(slab.getLong(pos) == a && slab.getLong(pos + 8) == b && (slab.get(pos + OFFSET_FLAGS) & FLAG_V6) != 0)
+					return pos;
+			}
+		} else {
+			int a = readInt(data, 0);
+			for(int pos=slot.offset;pos<end;pos+=RECORD_SIZE) {
+				if(slab.getInt(pos) == a && (slab.get(pos + OFFSET_FLAGS) & FLAG_V6) == 0)
+					return pos;
+			}
+		}
+		return -1;
+	}
+
+	static void write(ByteBuffer slab, int pos, byte[] data, byte flags, int time) {
+		int addressLength = data.length - 2;
+		if(addressLength == 16) {
+			slab.putLong(pos, readLong(data, 0));
+			slab.putLong(pos + 8, readLong(data, 8));
+		} else {
+			slab.putInt(pos, readInt(data, 0));
+		}
+		slab.put(pos + OFFSET_PORT, data[addressLength]);
+		slab.put(pos + OFFSET_PORT + 1, data[addressLength + 1]);
+		slab.put(pos + OFFSET_FLAGS, flags);
+		slab.putInt(pos + OFFSET_TIME, time);
+	}
+
+	static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+	}
+
+	static long readLong(byte[] data, int offset) {
+		return Integer.toUnsignedLong(readInt(data, offset)) << 32 | Integer.toUnsignedLong(readInt(data, offset + 4));
+	}
+
+	static boolean isSeed(ByteBuffer slab, int pos) {
+		return (slab.get(pos + OFFSET_FLAGS) & FLAG_SEED) != 0;
+	}
+
+	static byte[] address(ByteBuffer slab, int pos) {
+		byte[] addr = new byte[(slab.get(pos + OFFSET_FLAGS) & FLAG_V6) != 0 ? 16 : 4];
+		for(int i=0;i<addr.length;i++)
+			addr[i] = slab.get(pos + i);
+		return addr;
+	}
+
+	PeerAddressDBItem toItem(ByteBuffer slab, int pos) {
+		int addressLength = (slab.get(pos + OFFSET_FLAGS) & FLAG_V6) != 0 ? 16 : 4;
+		byte[] data = new byte[addressLength + 2];
+		for(int i=0;i<addressLength;i+=4) {
+			int v = slab.getInt(pos + i);
+			data[i] = (byte) (v >>> 24);
+			data[i + 1] = (byte) (v >>> 16);
+			data[i + 2] = (byte) (v >>> 8);
+			data[i + 3] = (byte) v;
+		}
+		data[addressLength] = slab.get(pos + OFFSET_PORT);
+		data[addressLength + 1] = slab.get(pos + OFFSET_PORT + 1);
+		return new PeerAddressDBItem(data, isSeed(slab, pos), createdAt(slab, pos));
+	}
+
+	long createdAt(ByteBuffer slab, int pos) {
+		return epoch + slab.getInt(pos + OFFSET_TIME) * 1000L;
+	}
+
+	/**
+	 * same sampling strategy as the heap-based storage: proportional choice of the first set unless peers are preferred,
+	 * a random contiguous run if a set does not fit completely
+	 */
+	List<DBItem> sample(Key key, int max, boolean preferPeers) {
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			Slot slot = shard.index.get(key);
+			if(slot == null || slot.count == 0)
+				return null;
+
+			List<DBItem> result = new ArrayList<>(Math.min(max, slot.count));
+
+			preferPeers &= slot.count > max;
+
+			boolean peersFirst = preferPeers || ThreadLocalRandom.current().nextInt(slot.count) < slot.peers();
+
+			fill(shard.slab, slot, result, !peersFirst, max);
+			fill(shard.slab, slot, result, peersFirst, max);
+
+			return result;
+		}
+	}
+
+	void fill(ByteBuffer slab, Slot slot, List<DBItem> target, boolean seeds, int max) {
+		int setSize = seeds ? slot.seeds : slot.peers();
+		if(setSize == 0)
+			return;
+
+		int start = setSize < max - target.size() ? 0 : ThreadLocalRandom.current().nextInt(slot.count);
+
+		for(int i=0;i<slot.count && target.size() < max;i++) {
+			int pos = slot.offset + ((i + start) % slot.count) * RECORD_SIZE;
+			if(isSeed(slab, pos) == seeds)
+				target.add(toItem(slab, pos));
+		}
+	}
+
+	BloomFilterBEP33 filter(Key key, boolean seeds) {
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			Slot slot = shard.index.get(key);
+			if(slot == null)
+				return null;
+
+			CountingBloomFilterBEP33 counts = seeds ? slot.seedCounts : slot.peerCounts;
+			if(counts != null)
+				return counts.toFilter();
+
+			ByteBuffer slab = shard.slab;
+
+			if((seeds ? slot.seeds : slot.peers()) >= CountingBloomFilterBEP33.MIN_SET_SIZE) {
+				counts = new CountingBloomFilterBEP33();
+				for(int i=0;i<slot.count;i++) {
+					int pos = slot.offset + i * RECORD_SIZE;
+					if(isSeed(slab, pos) == seeds)
+						counts.add(address(slab, pos));
+				}
+				if(seeds)
+					slot.seedCounts = counts;
+				else
+					slot.peerCounts = counts;
+				return counts.toFilter();
+			}
+
+			BloomFilterBEP33 f = seeds ? slot.seedFilter : slot.peerFilter;
+			if(f != null)
+				return f;
+
+			// also return empty filters. strict interpretation of the spec doesn't allow omission of empty sets
+			f = new BloomFilterBEP33();
+			for(int i=0;i<slot.count;i++) {
+				int pos = slot.offset + i * RECORD_SIZE;
+				if(isSeed(slab, pos) != seeds)
+					continue;
+				try {
+					f.insert(InetAddress.getByAddress(address(slab, pos)));
+				} catch (UnknownHostException e) {
+					// only thrown for illegal lengths
+					throw new Error(e);
+				}
+			}
+
+			if(seeds)
+				slot.seedFilter = f;
+			else
+				slot.peerFilter = f;
+
+			return f;
+		}
+	}
+
+	/**
+	 * @return size of the larger one of the seed and peer sets for the key, 0 if absent
+	 */
+	int largestSet(Key key) {
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			Slot slot = shard.index.get(key);
+			if(slot == null)
+				return 0;
+			return Math.max(slot.seeds, slot.peers());
+		}
+	}
+
+	void expire(long now) {
+		// don't remove all at once -> smears out new registrations on popular keys over time
+		final int removalLimit = DHTConstants.MAX_DB_ENTRIES_PER_KEY / 5;
+		final int expiredBefore = (int) ((now - DHTConstants.MAX_ITEM_AGE - epoch) / 1000);
+
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				ByteBuffer slab = shard.slab;
+
+				for(Iterator<Slot> it = shard.index.values().iterator();it.hasNext();) {
+					Slot slot = it.next();
+					// limits apply to seeds and peers separately, like the heap-based sets
+					int seedsToRemove = removalLimit;
+					int peersToRemove = removalLimit;
+					int insert = slot.offset;
+					int end = slot.offset + slot.count * RECORD_SIZE;
+					int seeds = 0;
+
+					for(int pos=slot.offset;pos<end;pos+=RECORD_SIZE) {
+						if(slab.getInt(pos + OFFSET_TIME) <= expiredBefore) {
+							boolean seed = isSeed(slab, pos);
+							if(seed ? seedsToRemove > 0 : peersToRemove > 0) {
+								if(seed)
+									seedsToRemove--;
+								else
+									peersToRemove--;
+								if(slot.counting(seed))
+									slot.removed(seed, address(slab, pos));
+								continue;
+							}
+						}
+						if(insert != pos) {
+							slab.putLong(insert, slab.getLong(pos));
+							slab.putLong(insert + 8, slab.getLong(pos + 8));
+							slab.putLong(insert + 16, slab.getLong(pos + 16));
+						}
+						if(isSeed(slab, insert))
+							seeds++;
+						insert += RECORD_SIZE;
+					}
+
+					int remaining = (insert - slot.offset) / RECORD_SIZE;
+					if(remaining == slot.count)
+						continue;
+
+					shard.records -= slot.count - remaining;
+					slot.count = remaining;
+					slot.seeds = seeds;
+					slot.invalidate(true);
+					slot.invalidate(false);
+
+					if(remaining == 0) {
+						shard.release(slot.offset, slot.sizeClass);
+						it.remove();
+					}
+				}
+
+				if(shard.index.isEmpty() || shard.sparse())
+					shard.compact();
+			}
+		}
+	}
+
+	List<Key> keys() {
+		List<Key> keys = new ArrayList<>();
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				keys.addAll(shard.index.keySet());
+			}
+		}
+		return keys;
+	}
+
+	Map<Key, Database.PeersSeeds> snapshot() {
+		Map<Key, Database.PeersSeeds> result = new HashMap<>();
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				shard.index.forEach((k, slot) -> {
+					PeerAddressDBItem[] seeds = new PeerAddressDBItem[slot.seeds];
+					PeerAddressDBItem[] peers = new PeerAddressDBItem[slot.peers()];
+					int s = 0;
+					int p = 0;
+					for(int i=0;i<slot.count;i++) {
+						int pos = slot.offset + i * RECORD_SIZE;
+						PeerAddressDBItem item = toItem(shard.slab, pos);
+						if(item.seed)
+							seeds[s++] = item;
+						else
+							peers[p++] = item;
+					}
+					result.put(k, new Database.PeersSeeds(seeds, peers));
+				});
+			}
+		}
+		return result;
+	}
+
+	int keyCount() {
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				count += shard.index.size();
+			}
+		}
+		return count;
+	}
+
+	int itemCount() {
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				count += shard.records;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return bytes of direct memory currently held by the slabs
+	 */
+	long allocatedBytes() {
+		long bytes = 0;
+		for(Shard shard : shards) {
+			synchronized (shard) {
+				if(shard.slab != null)
+					bytes += shard.slab.capacity();
+			}
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * Replaces the UDP sockets of {@link RPCServer}s, e.g. with an in-memory packet switch for simulations.
+ *
+ * When a DHT is configured with a transport it neither enumerates network interfaces nor opens sockets or selectors,
+ * servers are started on the addresses returned by {@link #localAddresses(DHTtype)} instead.
+ */
+public interface PacketTransport {
+
+	/**
+	 * replaces interface enumeration and default route detection. one server is started per address
+	 */
+	List<InetAddress> localAddresses(DHTtype type);
+
+	Endpoint bind(InetSocketAddress local, Receiver receiver) throws IOException;
+
+	interface Receiver {
+		/**
+		 * the buffer is only valid for the duration of the call. must not block
+		 */
+		void received(ByteBuffer packet, InetSocketAddress source);
+	}
+
+	interface Endpoint {
+		/**
+		 * consumes the remaining bytes of the packet. must not block, transports that cannot keep up drop packets instead
+		 */
+		void send(ByteBuffer packet, InetSocketAddress destination) throws IOException;
+
+		void close();
+	}
+
+}
@@ -34,6 +34,14 @@ public class PeerAddressDBItem extends DBItem {
 			throw new IllegalArgumentException("byte array length does not match ipv4 or ipv6 raw InetAddress+Port length");
 		seed = isSeed;
 	}
+
+	/**
+	 * restores an item with its original creation time, takes ownership of the array
+	 */
+	PeerAddressDBItem(byte[] data, boolean isSeed, long createdAt) {
+		super(data, createdAt);
+		seed = isSeed;
+	}
 	
 	public void setVersion(byte[] ary) {
 		originatorVersion = ary;
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
+import lbms.plugins.mldht.kad.tasks.Task.TaskState;
+
+/**
+ * Caches the outcome of completed get_peers lookups for a limited time and coalesces concurrent requests for the
+ * same target into a single {@link PeerLookupTask}.
+ *
+ * Cached lookups neither announce nor keep tokens, use {@link DHT#createPeerLookup(byte[])} directly for announces.
+ */
+public class PeerLookupCache {
+
+	public static final class Result {
+		final Key target;
+		final long completedAt;
+		final Set<PeerAddressDBItem> peers;
+		final List<KBucketEntry> closest;
+		final BloomFilterBEP33 seedFilter;
+		final BloomFilterBEP33 peerFilter;
+
+		Result(PeerLookupTask task, ScrapeResponseHandler scrape) {
+			target = task.getInfoHash();
+			completedAt = System.currentTimeMillis();
+			peers = Collections.unmodifiableSet(new HashSet<>(task.getReturnedItems()));
+			closest = Collections.unmodifiableList(task.getClosestEntries());
+			seedFilter = scrape.getSeedFilter();
+			peerFilter = scrape.getPeerFilter();
+		}
+
+		public Key getTarget() {
+			return target;
+		}
+
+		public long getCompletedAt() {
+			return completedAt;
+		}
+
+		public Set<PeerAddressDBItem> getPeers() {
+			return peers;
+		}
+
+		/**
+		 * @return closest nodes that responded, ordered by distance to the target
+		 */
+		public List<KBucketEntry> getClosest() {
+			return closest;
+		}
+
+		/**
+		 * @return union of the BEP33 seed filters returned by all responding nodes. may be empty, never null
+		 */
+		public BloomFilterBEP33 getSeedFilter() {
+			return seedFilter;
+		}
+
+		/**
+		 * @return union of the BEP33 peer filters returned by all responding nodes. may be empty, never null
+		 */
+		public BloomFilterBEP33 getPeerFilter() {
+			return peerFilter;
+		}
+	}
+
+	final DHT dht;
+	final long ttl;
+	final int maxEntries;
+
+	final Map<Key, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+	// guarded by itself
+	final LinkedHashMap<Key, Result> completed;
+
+	public PeerLookupCache(DHT dht) {
+		this(dht, DHTConstants.PEER_LOOKUP_CACHE_TTL, DHTConstants.PEER_LOOKUP_CACHE_MAX_ENTRIES);
+	}
+
+	public PeerLookupCache(DHT dht, long ttlMillis, int maxEntries) {
+		this.dht = dht;
+		this.ttl = ttlMillis;
+		this.maxEntries = maxEntries;
+		completed = new LinkedHashMap<Key, Result>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+				return size() > PeerLookupCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return a completed future if a result younger than the TTL is cached, the future of an already running lookup for the same target or one for a newly started lookup.
+	 * fails if the DHT cannot service lookups
+	 */
+	public CompletableFuture<Result> lookup(Key target) {
+		Result r = getCached(target);
+		if(r != null)
+			return CompletableFuture.completedFuture(r);
+
+		CompletableFuture<Result> f = new CompletableFuture<>();
+		CompletableFuture<Result> existing = inFlight.putIfAbsent(target, f);
+		if(existing != null)
+			return existing;
+
+		// a lookup may have completed between the cache check and registering ours
+		r = getCached(target);
+		if(r != null) {
+			inFlight.remove(target, f);
+			f.complete(r);
+			return f;
+		}
+
+		start(target, f);
+		return f;
+	}
+
+	void start(Key target, CompletableFuture<Result> f) {
+		PeerLookupTask task = dht.createPeerLookup(target.getHash());
+		if(task == null) {
+			inFlight.remove(target, f);
+			f.completeExceptionally(new IllegalStateException("DHT cannot perform lookups at the moment"));
+			return;
+		}
+
+		ScrapeResponseHandler scrape = new ScrapeResponseHandler();
+		task.setNoAnnounce(true);
+		task.setScrapeHandler(scrape);
+		task.addListener(t -> {
+			if(t.getState() == TaskState.KILLED) {
+				inFlight.remove(target, f);
+				f.completeExceptionally(new CancellationException("lookup was killed"));
+				return;
+			}
+			synchronized (scrape) {
+				scrape.process();
+			}
+			Result r = new Result(task, scrape);
+			synchronized (completed) {
+				completed.put(target, r);
+			}
+			inFlight.remove(target, f);
+			f.complete(r);
+		});
+
+		dht.getTaskManager().addTask(task);
+	}
+
+	/**
+	 * @return a result younger than the TTL or null
+	 */
+	public Result getCached(Key target) {
+		synchronized (completed) {
+			Result r = completed.get(target);
+			if(r == null)
+				return null;
+			if(System.currentTimeMillis() - r.completedAt > ttl) {
+				completed.remove(target);
+				return null;
+			}
+			return r;
+		}
+	}
+
+	public void invalidate(Key target) {
+		synchronized (completed) {
+			completed.remove(target);
+		}
+	}
+
+	public int size() {
+		synchronized (completed) {
+			return completed.size();
+		}
+	}
+
+}
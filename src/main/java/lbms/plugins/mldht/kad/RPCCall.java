@@ -9,14 +9,12 @@ import static the8472.bencode.Utils.prettyPrint;
 
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.utils.TimingWheel;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,14 +28,14 @@ public class RPCCall {
 	private boolean					sourceWasKnownReachable;
 	private boolean					socketMismatch;
 	private List<RPCCallListener>	listeners		= new ArrayList<>(3);
-	private ScheduledFuture<?>		timeoutTimer;
+	private TimingWheel.Timeout		timeoutTimer;
 	long					sentTime		= -1;
 	long					responseTime	= -1;
 	private Key						expectedID;
 	long					expectedRTT = -1;
 	RPCState state = RPCState.UNSENT;
 	
-	ScheduledExecutorService scheduler;
+	TimingWheel timeoutWheel;
 
 	public RPCCall (MessageBase msg) {
 		assert(msg != null);
@@ -94,7 +92,7 @@ public class RPCCall {
 	
 	public void response (MessageBase rsp) {
 		if (timeoutTimer != null) {
-			timeoutTimer.cancel(false);
+			timeoutTimer.cancel();
 		}
 		
 		rspMsg = rsp;
@@ -151,11 +149,9 @@ public class RPCCall {
 		
 		stateTransition(EnumSet.of(RPCState.UNSENT), RPCState.SENT);
 		
-		scheduler = srv.getDHT().getScheduler();
+		timeoutWheel = srv.getDHT().getTimeoutWheel();
 		
-		// spread out the stalls by +- 1ms to reduce lock contention
-		int smear = ThreadLocalRandom.current().nextInt(-1000, 1000);
-		timeoutTimer = scheduler.schedule(this::checkStallOrTimeout, expectedRTT*1000+smear, TimeUnit.MICROSECONDS);
+		timeoutTimer = timeoutWheel.schedule(this::checkStallOrTimeout, expectedRTT, TimeUnit.MILLISECONDS);
 	}
 	
 	
@@ -171,7 +167,7 @@ public class RPCCall {
 			{
 				stateTransition(EnumSet.of(RPCState.SENT), RPCState.STALLED);
 				// re-schedule for failed
-				timeoutTimer = scheduler.schedule(this::checkStallOrTimeout, remaining, TimeUnit.MILLISECONDS);
+				timeoutTimer = timeoutWheel.schedule(this::checkStallOrTimeout, remaining, TimeUnit.MILLISECONDS);
 			} else {
 				stateTransition(EnumSet.of(RPCState.SENT, RPCState.STALLED), RPCState.TIMEOUT);
 			}
@@ -183,9 +179,9 @@ public class RPCCall {
 	}
 	
 	void cancel() {
-		ScheduledFuture<?> timer = timeoutTimer;
+		TimingWheel.Timeout timer = timeoutTimer;
 		if(timer != null)
-			timer.cancel(false);
+			timer.cancel();
 		// it would be better if we didn't have to treat this as a timeout and could just signal call termination with an internal reason
 		stateTransition(EnumSet.complementOf(EnumSet.of(RPCState.ERROR, RPCState.RESPONDED, RPCState.TIMEOUT)), RPCState.TIMEOUT);
 	}
@@ -8,8 +8,10 @@ package lbms.plugins.mldht.kad;
 import static the8472.bencode.Utils.prettyPrint;
 import static the8472.utils.Functional.typedGet;
 
+import the8472.bencode.BFlyweight;
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bencode.Utils;
+import the8472.utils.concurrent.ConcurrentLongMap;
 import the8472.utils.concurrent.SerializedTaskExecutor;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
@@ -25,9 +27,10 @@ import lbms.plugins.mldht.kad.messages.MessageException;
 import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.messages.PingResponse;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
-import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import lbms.plugins.mldht.kad.utils.ConcurrencyController;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import lbms.plugins.mldht.utils.BufferPool;
 import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
 import lbms.plugins.mldht.utils.Selectable;
@@ -36,6 +39,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
@@ -44,16 +48,16 @@ import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Formatter;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -69,6 +73,7 @@ import java.util.stream.Stream;
 public class RPCServer {
 
 	private static final int MTID_LENGTH = 6;
+	private static final long MTID_MASK = (1L << (MTID_LENGTH * 8)) - 1;
 
 	public enum State {
 		INITIAL,
@@ -81,10 +86,11 @@ public class RPCServer {
 	private InetAddress								addr;
 	private DHT										dh_table;
 	private RPCServerManager						manager;
-	private ConcurrentMap<ByteWrapper, RPCCall>		calls;
+	// keyed by the packed 48bit MTID, see packMTID
+	private ConcurrentLongMap<RPCCall>				calls;
 	private Queue<RPCCall>							call_queue;
 	private Queue<EnqueuedSend>						pipeline;
-	private volatile int							numReceived;
+	private final AtomicInteger						numReceived = new AtomicInteger();
 	private volatile int							numSent;
 	private int										port;
 	private Instant									startTime;
@@ -93,10 +99,11 @@ public class RPCServer {
 	private ResponseTimeoutFilter					timeoutFilter;
 	private Key										derivedId;
 	private InetSocketAddress						consensusExternalAddress;
-	private SpamThrottle 							throttle = new SpamThrottle();
+	private SpamThrottle 							throttle;
 	private SpamThrottle 							requestThrottle;
 	private ExponentialWeightendMovingAverage		unverifiedLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
 	private ExponentialWeightendMovingAverage		verifiedEntryLossrate = new ExponentialWeightendMovingAverage().setWeight(0.01).setValue(0.5);
+	private ConcurrencyController					concurrency;
 
 	private LinkedHashMap<InetAddress, InetSocketAddress> originPairs  = new LinkedHashMap<InetAddress, InetSocketAddress>(64, 0.75f, true) {
 		@Override
@@ -114,20 +121,24 @@ public class RPCServer {
 
 
 	SocketHandler sel;
+	// additional SO_REUSEPORT sockets, each with its own selector thread. only used for receiving
+	List<SocketHandler> receivers = new CopyOnWriteArrayList<>();
 
 	public RPCServer (RPCServerManager manager, InetAddress addr, int port, RPCStats stats) {
 		this.port = port;
 		this.dh_table = manager.dht;
 		timeoutFilter = new ResponseTimeoutFilter();
 		pipeline = new ConcurrentLinkedQueue<>();
-		calls = new ConcurrentHashMap<>(DHTConstants.MAX_ACTIVE_CALLS);
+		calls = new ConcurrentLongMap<>(DHTConstants.MAX_ACTIVE_CALLS);
 		call_queue = new ConcurrentLinkedQueue<>();
 		this.stats = stats;
 		this.addr = addr;
 		this.manager = manager;
+		throttle = dh_table.getConfig().useFixedSizeThrottle() ? new StripedSpamThrottle() : new SpamThrottle();
+		concurrency = new ConcurrencyController(dh_table.getConfig().useAdaptiveConcurrency(), timeoutFilter, verifiedEntryLossrate::getAverage);
 		// reserve an ID
 		derivedId = dh_table.getNode().registerId();
-		sel = new SocketHandler();
+		sel = new SocketHandler(null);
 	}
 
 	public DHT getDHT()
@@ -183,7 +194,19 @@ public class RPCServer {
 		startTime = Instant.now();
 		state = State.RUNNING;
 		DHT.logInfo("Starting RPC Server " + addr + " " + derivedId.toString(false));
+
+		transport = dh_table.getConfig().getTransport();
+
+		if(transport == null) {
+			receivePool = new BufferPool(DHTConstants.RECEIVE_BUFFER_SIZE, DHTConstants.RECEIVE_BUFFER_POOL_SIZE);
+
+			int socketCount = Math.max(1, dh_table.getConfig().getReceiveSocketCount());
+			for(int i=1;i<socketCount;i++)
+				receivers.add(new SocketHandler(new NIOConnectionManager("mlDHT " + dh_table.getType().shortName + " NIO Selector " + addr.getHostAddress() + " #" + i)));
+		}
+
 		sel.start();
+		receivers.forEach(SocketHandler::start);
 
 	}
 
@@ -203,6 +226,14 @@ public class RPCServer {
 		{
 			DHT.log(e, LogLevel.Error);
 		}
+		// also shuts down their selector threads
+		for(SocketHandler r : receivers) {
+			try {
+				r.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
 		dh_table.getNode().removeId(derivedId);
 		manager.serverRemoved(this);
 		Stream.of(calls.values().stream(), call_queue.stream(), pipeline.stream().map(es -> es.associatedCall).filter(Objects::nonNull)).flatMap(s -> s).forEach(r -> {
@@ -236,7 +267,7 @@ public class RPCServer {
 
 	private void drainQueue() {
 
-		int capacity = DHTConstants.MAX_ACTIVE_CALLS  - calls.size();
+		int capacity = concurrency.maxActiveCalls() - calls.size();
 
 		requestThrottle.decay();
 
@@ -267,13 +298,12 @@ public class RPCServer {
 				continue;
 			}
 
-			byte[] mtid = new byte[MTID_LENGTH];
-			ThreadLocalUtils.getThreadLocalRandom().nextBytes(mtid);
+			long packedMtid = ThreadLocalUtils.getThreadLocalRandom().nextLong() & MTID_MASK;
 
-			if(calls.putIfAbsent(new ByteWrapper(mtid),c) == null)
+			if(calls.putIfAbsent(packedMtid,c) == null)
 			{
 				capacity--;
-				dispatchCall(c, mtid);
+				dispatchCall(c, unpackMTID(packedMtid));
 			} else {
 				// this is very unlikely to happen
 				call_queue.add(c);
@@ -281,6 +311,22 @@ public class RPCServer {
 		}
 	}
 
+	static long packMTID(byte[] mtid) {
+		long packed = 0;
+		for(int i=0;i<MTID_LENGTH;i++)
+			packed = (packed << 8) | (mtid[i] & 0xff);
+		return packed;
+	}
+
+	static byte[] unpackMTID(long packed) {
+		byte[] mtid = new byte[MTID_LENGTH];
+		for(int i=MTID_LENGTH-1;i>=0;i--) {
+			mtid[i] = (byte) packed;
+			packed >>>= 8;
+		}
+		return mtid;
+	}
+
 	public void onEnqueue(Consumer<RPCCall> listener) {
 		enqueueEventConsumers.add(listener);
 	}
@@ -288,13 +334,13 @@ public class RPCServer {
 	private final RPCCallListener rpcListener = new RPCCallListener() {
 
 		public void onTimeout(RPCCall c) {
-			ByteWrapper w = new ByteWrapper(c.getRequest().getMTID());
 			stats.addTimeoutMessageToCount(c.getRequest());
 			if(c.knownReachableAtCreationTime())
 				verifiedEntryLossrate.updateAverage(1.0);
 			else
 				unverifiedLossrate.updateAverage(1.0);
-			calls.remove(w, c);
+			concurrency.onTimeout(c);
+			calls.remove(packMTID(c.getRequest().getMTID()), c);
 			dh_table.timeout(c);
 			drainTrigger.run();
 		}
@@ -305,6 +351,7 @@ public class RPCServer {
 				verifiedEntryLossrate.updateAverage(0.0);
 			else
 				unverifiedLossrate.updateAverage(0.0);
+			concurrency.onResponse(c);
 		}
 	};
 
@@ -322,7 +369,9 @@ public class RPCServer {
 	 * @see lbms.plugins.mldht.kad.RPCServerBase#findCall(byte)
 	 */
 	public RPCCall findCall (byte[] mtid) {
-		return calls.get(new ByteWrapper(mtid));
+		if(mtid.length != MTID_LENGTH)
+			return null;
+		return calls.get(packMTID(mtid));
 	}
 
 	/// Get the number of active calls
@@ -337,7 +386,7 @@ public class RPCServer {
 	 * @return the numReceived
 	 */
 	public int getNumReceived () {
-		return numReceived;
+		return numReceived.get();
 	}
 
 	/**
@@ -356,11 +405,12 @@ public class RPCServer {
 
 	public void checkReachability(long now) {
 		// don't do pings too often if we're not receiving anything (connection might be dead)
-		if(numReceived != numReceivesAtLastCheck)
+		int received = numReceived.get();
+		if(received != numReceivesAtLastCheck)
 		{
 			isReachable = true;
 			timeOfLastReceiveCountChange = now;
-			numReceivesAtLastCheck = numReceived;
+			numReceivesAtLastCheck = received;
 		} else if(now - timeOfLastReceiveCountChange > DHTConstants.REACHABILITY_TIMEOUT)
 		{
 			isReachable = false;
@@ -372,7 +422,8 @@ public class RPCServer {
 		return isReachable;
 	}
 
-	private void handlePacket (ByteBuffer p, SocketAddress soa) {
+	// package-private for the in-memory round trip benchmark
+	void handlePacket (ByteBuffer p, SocketAddress soa) {
 		InetSocketAddress source = (InetSocketAddress) soa;
 		int rawLength = p.remaining();
 
@@ -382,56 +433,14 @@ public class RPCServer {
 
 
 
-
-		Map<String, Object> bedata = null;
 		MessageBase msg = null;
 
-		try {
-			bedata = ThreadLocalUtils.getDecoder().decode(p);
-
-			try {
-				if (DHT.isLogLevelEnabled(LogLevel.Verbose)) {
-					DHT.logVerbose("received: " + Utils.prettyPrint(bedata) + " from: " + source + " length: "+rawLength );
-				}
-			} catch (Exception e) {
-				DHT.log(e, LogLevel.Error);
-			}
-		} catch(BDecodingException e) {
-			p.rewind();
-			DHT.logInfo("failed to decode message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
-			MessageBase err = new ErrorMessage(new byte[] {0,0,0,0}, ErrorCode.ProtocolError.code,"invalid bencoding: "+e.getMessage());
-			err.setDestination(source);
-			sendMessage(err);
-			return;
-		} catch(Exception e) {
-			DHT.log(e, LogLevel.Error);
-			p.rewind();
-			DHT.logError("unexpected error while bdecoding message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
-			return;
-		}
-
-		try {
-			MessageDecoder dec = new MessageDecoder((byte[] mtid) -> {
-				return Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
-			}, dh_table.getType());
-
-			p.rewind();
-			dec.toDecode(p, bedata);
-			msg = dec.parseMessage();
-		} catch(MessageException e)
-		{
-			byte[] mtid = typedGet(bedata, MessageBase.TRANSACTION_KEY, byte[].class).orElse(new byte[MTID_LENGTH]);
-			Method m = typedGet(bedata, MessageBase.Type.TYPE_KEY, byte[].class).map(b -> new String(b, StandardCharsets.ISO_8859_1)).map(MessageBase.messageMethod::get).orElse(Method.UNKNOWN);
-			DHT.log(e.getMessage(), LogLevel.Debug);
-			ErrorMessage err = new ErrorMessage(mtid, e.errorCode.code,e.getMessage());
-			err.setDestination(source);
-			err.setMethod(m);
-			sendMessage(err);
-			return;
-		} catch(IOException e) {
-			DHT.log(e, LogLevel.Error);
-		}
-
+		// verbose logging wants the full map, let the regular decoder handle that.
+		// everything the fast path would reject is filtered out beforehand, tokenizing it twice would be wasted work
+		if(!DHT.isLogLevelEnabled(LogLevel.Verbose) && MessageDecoder.mayBeFastPathRequest(p))
+			msg = decodeFlyweight(p);
+		if(msg == null)
+			msg = decodeFull(p, source, rawLength);
 		if(msg == null)
 			return;
 
@@ -460,14 +469,17 @@ public class RPCServer {
 
 
 		// check if this is a response to an outstanding request
-		RPCCall c = calls.get(new ByteWrapper(msg.getMTID()));
+		// error messages may carry transaction IDs of any length
+		byte[] rawMtid = msg.getMTID();
+		long packedMtid = rawMtid != null && rawMtid.length == MTID_LENGTH ? packMTID(rawMtid) : -1;
+		RPCCall c = packedMtid != -1 ? calls.get(packedMtid) : null;
 
 		// message matches transaction ID and origin == destination
 		if(c != null) {
 			// we only check the IP address here. the routing table applies more strict checks to also verify a stable port
 			if(c.getRequest().getDestination().getAddress().equals(msg.getOrigin().getAddress())) {
 				// remove call first in case of exception
-				if(calls.remove(new ByteWrapper(msg.getMTID()),c)) {
+				if(calls.remove(packedMtid,c)) {
 					msg.setAssociatedCall(c);
 					c.response(msg);
 
@@ -523,6 +535,77 @@ public class RPCServer {
 		DHT.logError("not sure how to handle message " + msg);
 	}
 
+	/**
+	 * allocation-free decoding of the common request types
+	 *
+	 * @return null if the packet needs the full decoder
+	 */
+	private MessageBase decodeFlyweight(ByteBuffer p) {
+		BFlyweight fw = ThreadLocalUtils.getFlyweight();
+		try {
+			fw.decode(p);
+			return MessageDecoder.parseRequest(fw, dh_table.getType());
+		} catch(BDecodingException e) {
+			// let the full decoder generate the error response
+			return null;
+		} finally {
+			fw.release();
+		}
+	}
+
+	private MessageBase decodeFull(ByteBuffer p, InetSocketAddress source, int rawLength) {
+		Map<String, Object> bedata = null;
+		MessageBase msg = null;
+
+		try {
+			bedata = ThreadLocalUtils.getDecoder().decode(p);
+
+			try {
+				if (DHT.isLogLevelEnabled(LogLevel.Verbose)) {
+					DHT.logVerbose("received: " + Utils.prettyPrint(bedata) + " from: " + source + " length: "+rawLength );
+				}
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		} catch(BDecodingException e) {
+			p.rewind();
+			DHT.logInfo("failed to decode message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
+			MessageBase err = new ErrorMessage(new byte[] {0,0,0,0}, ErrorCode.ProtocolError.code,"invalid bencoding: "+e.getMessage());
+			err.setDestination(source);
+			sendMessage(err);
+			return null;
+		} catch(Exception e) {
+			DHT.log(e, LogLevel.Error);
+			p.rewind();
+			DHT.logError("unexpected error while bdecoding message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source + " reason:" + e.getMessage());
+			return null;
+		}
+
+		try {
+			MessageDecoder dec = new MessageDecoder((byte[] mtid) -> {
+				return Optional.ofNullable(findCall(mtid)).map(RPCCall::getMessageMethod);
+			}, dh_table.getType());
+
+			p.rewind();
+			dec.toDecode(p, bedata);
+			msg = dec.parseMessage();
+		} catch(MessageException e)
+		{
+			byte[] mtid = typedGet(bedata, MessageBase.TRANSACTION_KEY, byte[].class).orElse(new byte[MTID_LENGTH]);
+			Method m = typedGet(bedata, MessageBase.Type.TYPE_KEY, byte[].class).map(b -> new String(b, StandardCharsets.ISO_8859_1)).map(MessageBase.messageMethod::get).orElse(Method.UNKNOWN);
+			DHT.log(e.getMessage(), LogLevel.Debug);
+			ErrorMessage err = new ErrorMessage(mtid, e.errorCode.code,e.getMessage());
+			err.setDestination(source);
+			err.setMethod(m);
+			sendMessage(err);
+			return null;
+		} catch(IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+
+		return msg;
+	}
+
 	private void handleMessage(MessageBase msg) {
 		if(msg.getType() == Type.RSP_MSG && msg.getPublicIP() != null)
 			updatePublicIPConsensus(msg.getOrigin().getAddress(), msg.getPublicIP());
@@ -597,6 +680,17 @@ public class RPCServer {
 	public ResponseTimeoutFilter getTimeoutFilter() {
 		return timeoutFilter;
 	}
+	
+	public ConcurrencyController getConcurrencyController() {
+		return concurrency;
+	}
+	
+	/**
+	 * @return the current limit of concurrently outstanding calls, static unless adaptive concurrency is enabled
+	 */
+	public int getMaxActiveCalls() {
+		return concurrency.maxActiveCalls();
+	}
 
 	/*
 	private void send (InetSocketAddress addr, byte[] msg) throws IOException {
@@ -627,7 +721,10 @@ public class RPCServer {
 
 		f.format("%s\tbind: %s consensus: %s%n", getDerivedID(), getBindAddress(), consensusExternalAddress);
 		f.format("rx: %d tx: %d active: %d baseRTT: %d loss: %f  loss (verified): %f uptime: %s%n",
-				numReceived, numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
+				numReceived.get(), numSent, getNumActiveRPCCalls(), timeoutFilter.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage() , age());
+		if(!receivers.isEmpty())
+			f.format("receive sockets: %d%n", receivers.size() + 1);
+		f.format("%s%n", concurrency);
 		f.format("RTT stats (%dsamples) %s", timeoutFilter.getSampleCount(), timeoutFilter.getCurrentStats());
 
 		return f.toString();
@@ -640,11 +737,47 @@ public class RPCServer {
 		return Duration.between(start, Instant.now());
 	}
 
-	static final ThreadLocal<ByteBuffer> writeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1500));
+	// max. number of messages encoded and sent per writeEvent iteration
+	static final int WRITE_BATCH_SIZE = 32;
+
+	static final ThreadLocal<ByteBuffer[]> writeBuffers = ThreadLocal.withInitial(() -> {
+		ByteBuffer slab = ByteBuffer.allocateDirect(1500 * WRITE_BATCH_SIZE);
+		ByteBuffer[] buffers = new ByteBuffer[WRITE_BATCH_SIZE];
+		for(int i=0;i<buffers.length;i++) {
+			slab.limit((i + 1) * 1500);
+			slab.position(i * 1500);
+			buffers[i] = slab.slice();
+		}
+		return buffers;
+	});
+	static final ThreadLocal<EnqueuedSend[]> writeBatch = ThreadLocal.withInitial(() -> new EnqueuedSend[WRITE_BATCH_SIZE]);
+	static final ThreadLocal<int[]> writeBatchBytes = ThreadLocal.withInitial(() -> new int[WRITE_BATCH_SIZE]);
 	static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DHTConstants.RECEIVE_BUFFER_SIZE));
 
+	// shared by all receive sockets, buffers are released once handlePacket is done with them
+	BufferPool receivePool;
+	// replaces the sockets if non-null
+	PacketTransport transport;
+
+	/**
+	 * looks the option up by name since {@code StandardSocketOptions.SO_REUSEPORT} only exists on java 9+
+	 *
+	 * @return false if the platform does not support it
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean enableReusePort(DatagramChannel chan) throws IOException {
+		for(SocketOption<?> opt : chan.supportedOptions()) {
+			if("SO_REUSEPORT".equals(opt.name()) && opt.type() == Boolean.class) {
+				chan.setOption((SocketOption<Boolean>) opt, true);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	class SocketHandler implements Selectable {
 		DatagramChannel channel;
+		PacketTransport.Endpoint endpoint;
 
 		private static final int NOT_INITIALIZED = -2;
 		private static final int INITIALIZING = -1;
@@ -656,8 +789,16 @@ public class RPCServer {
 		private final AtomicInteger writeState = new AtomicInteger(NOT_INITIALIZED);
 		NIOConnectionManager connectionManager;
 
-		public SocketHandler() {
+		/**
+		 * @param ownSelector null to register with the DHT-wide connection manager. otherwise this is a secondary socket
+		 * that only receives and runs on the passed manager's selector thread
+		 */
+		public SocketHandler(NIOConnectionManager ownSelector) {
+			connectionManager = ownSelector;
+		}
 
+		boolean isPrimary() {
+			return this == sel;
 		}
 
 		void start() {
@@ -667,14 +808,33 @@ public class RPCServer {
 
 			try
 			{
-				timeoutFilter.reset();
+				if(isPrimary())
+					timeoutFilter.reset();
+
+				if(transport != null) {
+					endpoint = transport.bind(new InetSocketAddress(addr, port), this::transportReceive);
+					if(!writeState.compareAndSet(INITIALIZING, WRITE_STATE_IDLE)) {
+						close();
+						return;
+					}
+					// flush whatever got queued while we were starting up
+					if(pipeline.peek() != null)
+						dh_table.getScheduler().execute(this::writeEvent);
+					return;
+				}
 
 				channel = DatagramChannel.open(dh_table.getType().PROTO_FAMILY);
 				channel.configureBlocking(false);
 				channel.setOption(StandardSocketOptions.SO_RCVBUF, 2*1024*1024);
 				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				if(!receivers.isEmpty() && !enableReusePort(channel) && !isPrimary()) {
+					DHT.logError("SO_REUSEPORT not supported on this platform, not binding additional receive socket for " + addr + ":" + port);
+					close();
+					return;
+				}
 				channel.bind(new InetSocketAddress(addr, port));
-				connectionManager = dh_table.getConnectionManager();
+				if(connectionManager == null)
+					connectionManager = dh_table.getConnectionManager();
 				connectionManager.register(this);
 				if(!writeState.compareAndSet(INITIALIZING, WRITE_STATE_IDLE)) {
 					writeState.set(INITIALIZING);
@@ -683,6 +843,16 @@ public class RPCServer {
 				}
 			} catch (IOException e)
 			{
+				if(!isPrimary()) {
+					// losing a secondary socket only costs receive parallelism, keep the server running
+					DHT.log(e, LogLevel.Error);
+					try {
+						close();
+					} catch (IOException e2) {
+						DHT.log(e2, LogLevel.Error);
+					}
+					return;
+				}
 				e.printStackTrace();
 			}
 		}
@@ -708,36 +878,106 @@ public class RPCServer {
 
 			throttle.decay();
 
-			ByteBuffer readBuffer = RPCServer.readBuffer.get();
+			DHTtype type = dh_table.getType();
+
+			BufferPool.Lease lease = receivePool.acquire();
+
+			try {
+				while(true)
+				{
+					// receive straight into a pooled buffer which then gets handed off. fall back to copying if the pool runs dry
+					ByteBuffer readBuffer = lease != null ? lease.buffer() : RPCServer.readBuffer.get();
+
+					readBuffer.clear();
+					InetSocketAddress soa =  (InetSocketAddress) channel.receive(readBuffer);
+					if(soa == null)
+						break;
+
+					// * no conceivable DHT message is smaller than 10 bytes
+					// * all DHT messages start with a 'd' for dictionary
+					// * port 0 is reserved
+					// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
+					// -> immediately discard junk on the read loop, don't even allocate a buffer for it
+					if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
+						continue;
+					if(throttle.addAndTest(soa.getAddress()))
+						continue;
+
+					readBuffer.flip();
+					int length = readBuffer.limit();
+
+					if(lease != null) {
+						BufferPool.Lease handedOff = lease;
+						lease = receivePool.acquire();
+						dh_table.getScheduler().execute(() -> {
+							try {
+								handlePacket(handedOff.buffer(), soa);
+							} finally {
+								handedOff.release();
+							}
+						});
+					} else {
+						// copy from the read buffer since we hand off to another thread
+						ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
+						buf.flip();
+						dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
+						lease = receivePool.acquire();
+					}
+
+					numReceived.incrementAndGet();
+					stats.addReceivedBytes(length + type.HEADER_LENGTH);
+				}
+			} finally {
+				if(lease != null)
+					lease.release();
+			}
+		}
 
+		/**
+		 * receive path for packets delivered by a {@link PacketTransport}, applies the same filtering as {@link #readEvent()}
+		 */
+		void transportReceive(ByteBuffer packet, InetSocketAddress soa) {
 			DHTtype type = dh_table.getType();
 
-			while(true)
-			{
-				readBuffer.clear();
-				InetSocketAddress soa =  (InetSocketAddress) channel.receive(readBuffer);
-				if(soa == null)
-					break;
-
-				// * no conceivable DHT message is smaller than 10 bytes
-				// * all DHT messages start with a 'd' for dictionary
-				// * port 0 is reserved
-				// * address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
-				// -> immediately discard junk on the read loop, don't even allocate a buffer for it
-				if(readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
-					continue;
-				if(throttle.addAndTest(soa.getAddress()))
+			if(packet.remaining() < 10 || packet.get(packet.position()) != 'd' || soa.getPort() == 0 || !type.canUseSocketAddress(soa))
+				return;
+			throttle.decay();
+			if(throttle.addAndTest(soa.getAddress()))
+				return;
+
+			int length = packet.remaining();
+			ByteBuffer buf = ByteBuffer.allocate(length).put(packet);
+			buf.flip();
+			dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
+
+			numReceived.incrementAndGet();
+			stats.addReceivedBytes(length + type.HEADER_LENGTH);
+		}
+
+		/**
+		 * accounts for the first {@code sent} entries of a batch, failed sends have been nulled out
+		 */
+		void sentStats(EnqueuedSend[] batch, int[] sentBytes, int sent) {
+			int sentCount = 0;
+			long totalBytes = 0;
+			for(int i=0;i<sent;i++) {
+				EnqueuedSend es = batch[i];
+				if(es == null)
 					continue;
 
-				// copy from the read buffer since we hand off to another thread
-				readBuffer.flip();
-				ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
-				buf.flip();
+				if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
+					DHT.logVerbose("sent: " + prettyPrint(es.toSend.getBase())+ " to " + es.toSend.getDestination());
+				}
 
-				dh_table.getScheduler().execute(() -> {handlePacket(buf, soa);});
-				numReceived++;
-				stats.addReceivedBytes(buf.limit() + dh_table.getType().HEADER_LENGTH);
+				stats.addSentMessageToCount(es.toSend);
+				totalBytes += sentBytes[i] + dh_table.getType().HEADER_LENGTH;
+				sentCount++;
+				if(DHT.isLogLevelEnabled(LogLevel.Debug))
+					DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +sentBytes[i]);
 			}
+
+			stats.addSentBytes(totalBytes);
+			numSent += sentCount;
 		}
 
 		public void writeEvent()
@@ -750,71 +990,93 @@ public class RPCServer {
 			{
 				// we are now the exclusive writer for this socket
 
+				ByteBuffer[] buffers = writeBuffers.get();
+				EnqueuedSend[] batch = writeBatch.get();
+				int[] sentBytes = writeBatchBytes.get();
+
 				while(true)
 				{
-					EnqueuedSend es = pipeline.poll();
-					if(es == null)
-						break;
-					try
-					{
-
-
-						ByteBuffer buf = writeBuffer.get();
-
-						es.encodeTo(buf);
-
-						int bytesSent = channel.send(buf, es.toSend.getDestination());
-
-						if(bytesSent == 0)
-						{
-							pipeline.add(es);
-
-							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
-							// wakeup -> updates selections -> will wait for write OP
-							connectionManager.interestOpsChanged(this);
-
-							return;
+					// 1. drain and encode up to one batch worth of messages
+					int queued = 0;
+					while(queued < WRITE_BATCH_SIZE) {
+						EnqueuedSend es = pipeline.poll();
+						if(es == null)
+							break;
+						try {
+							es.encodeTo(buffers[queued]);
+						} catch(IOException e) {
+							sendFailed(es, e);
+							continue;
 						}
+						batch[queued++] = es;
+					}
 
-						if(DHT.isLogLevelEnabled(LogLevel.Verbose)) {
-							DHT.logVerbose("sent: " + prettyPrint(es.toSend.getBase())+ " to " + es.toSend.getDestination());
-						}
+					if(queued == 0)
+						break;
 
-						if(es.associatedCall != null) {
-							es.associatedCall.sent(RPCServer.this);
-							// when we send requests to a node we don't want their replies to get stuck in the filter
-							throttle.remove(es.toSend.getDestination().getAddress());
+					// 2. issue the syscalls back to back
+					int sent = 0;
+					boolean awaitWritable = false;
+
+					for(;sent < queued;sent++) {
+						EnqueuedSend es = batch[sent];
+						try {
+							int bytesSent;
+							if(endpoint != null) {
+								bytesSent = buffers[sent].remaining();
+								endpoint.send(buffers[sent], es.toSend.getDestination());
+							} else {
+								bytesSent = channel.send(buffers[sent], es.toSend.getDestination());
+							}
+							if(bytesSent == 0) {
+								awaitWritable = true;
+								break;
+							}
+							sentBytes[sent] = bytesSent;
+
+							// transition the call right away, a fast response must not find it still unsent
+							if(es.associatedCall != null) {
+								es.associatedCall.sent(RPCServer.this);
+								// when we send requests to a node we don't want their replies to get stuck in the filter
+								throttle.remove(es.toSend.getDestination().getAddress());
+							}
+						} catch (IOException e) {
+							// async close
+							if(writeState.get() == CLOSED || (channel != null && !channel.isOpen())) {
+								// the preceding messages did go out
+								sentStats(batch, sentBytes, sent);
+								Arrays.fill(batch, null);
+								return;
+							}
+
+							// BSD variants may throw an exception (ENOBUFS) instead of just signaling 0 bytes sent when network queues are full -> back off just like we would in the 0 bytes case.
+							if("No buffer space available".equals(e.getMessage())) {
+								awaitWritable = true;
+								break;
+							}
+
+							sendFailed(es, e);
+							batch[sent] = null;
 						}
+					}
 
+					// 3. stats and logging for everything that made it out
+					sentStats(batch, sentBytes, sent);
 
-						stats.addSentMessageToCount(es.toSend);
-						stats.addSentBytes(bytesSent + dh_table.getType().HEADER_LENGTH);
-						if(DHT.isLogLevelEnabled(LogLevel.Debug))
-							DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +bytesSent);
-					} catch (IOException e)
-					{
-						// async close
-						if(!channel.isOpen())
-							return;
-
-						// BSD variants may throw an exception (ENOBUFS) instead of just signaling 0 bytes sent when network queues are full -> back off just like we would in the 0 bytes case.
-						if(e.getMessage().equals("No buffer space available")) {
-							pipeline.add(es);
-							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
-							connectionManager.interestOpsChanged(this);
+					if(awaitWritable) {
+						// requeue the unsent remainder, it'll be re-encoded on the next attempt
+						for(int i=sent;i<queued;i++)
+							pipeline.add(batch[i]);
+						Arrays.fill(batch, null);
 
-							return;
-						}
+						writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
+						// wakeup -> updates selections -> will wait for write OP
+						connectionManager.interestOpsChanged(this);
 
-						DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
-						if(es.associatedCall != null)
-						{ // need to notify listeners
-							es.associatedCall.sendFailed();
-						}
-						break;
+						return;
 					}
 
-					numSent++;
+					Arrays.fill(batch, 0, queued, null);
 				}
 
 				// release claim on the socket
@@ -831,6 +1093,14 @@ public class RPCServer {
 
 		}
 
+		private void sendFailed(EnqueuedSend es, IOException e) {
+			DHT.log(new IOException(addr+" -> "+es.toSend.getDestination()+" while attempting to send "+es.toSend, e), LogLevel.Error);
+			if(es.associatedCall != null)
+			{ // need to notify listeners
+				es.associatedCall.sendFailed();
+			}
+		}
+
 		@Override
 		public void registrationEvent(NIOConnectionManager manager, SelectionKey key) throws IOException {
 		}
@@ -840,13 +1110,25 @@ public class RPCServer {
 			return channel;
 		}
 
+		/**
+		 * closing the primary socket stops the server. a secondary one only drops itself along with its selector
+		 */
 		public void close() throws IOException {
-			if(writeState.get() == CLOSED)
+			if(writeState.getAndSet(CLOSED) == CLOSED)
 				return;
-			writeState.set(CLOSED);
-			stop();
-			if(channel != null)
-				channel.close();
+			if(isPrimary())
+				stop();
+			else
+				receivers.remove(this);
+			try {
+				if(endpoint != null)
+					endpoint.close();
+				if(channel != null)
+					channel.close();
+			} finally {
+				if(!isPrimary() && connectionManager != null)
+					connectionManager.close();
+			}
 		}
 
 		@Override
@@ -856,6 +1138,8 @@ public class RPCServer {
 				close();
 				return;
 			}
+			if(isPrimary())
+				receivePool.checkLeaks(now);
 		}
 
 		public int calcInterestOps() {
@@ -70,11 +70,18 @@ public class RPCServerManager {
 		
 		List<InetAddress> oldBindAddresses = validBindAddresses;
 		
-		List<InetAddress> newBindAddrs = AddressUtils.allAddresses().filter(type::isInstance)
-				.distinct()
-				.collect(Collectors.toCollection(() -> new ArrayList<>()));
+		PacketTransport transport = dht.config.getTransport();
 		
-		newBindAddrs.add(AddressUtils.getAnyLocalAddress(type));
+		List<InetAddress> newBindAddrs;
+		if(transport != null) {
+			newBindAddrs = transport.localAddresses(dht.getType()).stream().filter(type::isInstance).collect(Collectors.toCollection(ArrayList::new));
+		} else {
+			newBindAddrs = AddressUtils.allAddresses().filter(type::isInstance)
+					.distinct()
+					.collect(Collectors.toCollection(() -> new ArrayList<>()));
+			
+			newBindAddrs.add(AddressUtils.getAnyLocalAddress(type));
+		}
 		
 		newBindAddrs.removeIf(normalizedAddressPredicate().negate());
 		
@@ -118,6 +125,11 @@ public class RPCServerManager {
 		
 		Predicate<InetAddress> addressFilter = normalizedAddressPredicate();
 		
+		// custom transports dictate the addresses, no routing decisions to make
+		if(dht.config.getTransport() != null) {
+			validBindAddresses.stream().filter(addr -> !interfacesInUse.containsKey(addr)).forEach(this::newServer);
+			return;
+		}
 		
 		if(multihome) {
 			// we only consider global unicast addresses in multihoming mode
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Node.RoutingTable;
+
+/**
+ * Flattened, immutable copy of the main bucket entries of a {@link RoutingTable} for closest-node queries.
+ *
+ * IDs and bucket prefixes are stored as 3 big-endian long lanes each (the last one only using its upper 32 bits),
+ * compact node info in one contiguous array. Entries are grouped by bucket in table order, so the bucket walk
+ * of {@link KClosestNodesSearch} can be done without touching Key, Prefix or KBucket objects.
+ *
+ * Node rebuilds it lazily after the table or any bucket has been modified.
+ */
+public final class RoutingTableSnapshot {
+
+	static final int LANES = 3;
+
+	final int modCount;
+	final DHTtype type;
+
+	// per bucket
+	final long[] prefixes;
+	final int[] depths;
+	final int[] bucketStart;
+	final int maxBucketSize;
+
+	// per entry
+	final long[] ids;
+	final KBucketEntry[] entries;
+	final byte[] packed;
+
+	RoutingTableSnapshot(RoutingTable table, DHTtype type, int modCount) {
+		this.modCount = modCount;
+		this.type = type;
+
+		int buckets = table.size();
+		KBucket.PackedEntries[] sources = new KBucket.PackedEntries[buckets];
+
+		prefixes = new long[buckets * LANES];
+		depths = new int[buckets];
+		bucketStart = new int[buckets + 1];
+
+		int total = 0;
+		int largest = 0;
+		for(int i=0;i<buckets;i++) {
+			Node.RoutingTableEntry e = table.get(i);
+			Prefix p = e.prefix;
+			// prefix bits beyond depth are always zero
+			lanes(p.hash, 0, prefixes, i * LANES);
+			depths[i] = p.getDepth();
+			sources[i] = e.getBucket().packedEntries(type);
+			bucketStart[i] = total;
+			total += sources[i].size();
+			largest = Math.max(largest, sources[i].size());
+		}
+		bucketStart[buckets] = total;
+		maxBucketSize = largest;
+
+		int entryLength = type.NODES_ENTRY_LENGTH;
+		ids = new long[total * LANES];
+		entries = new KBucketEntry[total];
+		packed = new byte[total * entryLength];
+
+		for(int i=0;i<buckets;i++) {
+			KBucket.PackedEntries src = sources[i];
+			int base = bucketStart[i];
+			System.arraycopy(src.data(), 0, packed, base * entryLength, src.size() * entryLength);
+			for(int j=0;j<src.size();j++) {
+				entries[base + j] = src.get(j);
+				// compact node info starts with the node ID
+				lanes(packed, (base + j) * entryLength, ids, (base + j) * LANES);
+			}
+		}
+	}
+
+	static void lanes(byte[] hash, int offset, long[] dst, int dstOffset) {
+		ByteBuffer buf = ByteBuffer.wrap(hash, offset, Key.SHA1_HASH_LENGTH);
+		dst[dstOffset] = buf.getLong();
+		dst[dstOffset + 1] = buf.getLong();
+		dst[dstOffset + 2] = Integer.toUnsignedLong(buf.getInt()) << 32;
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public KBucketEntry get(int idx) {
+		return entries[idx];
+	}
+
+	public byte[] packed() {
+		return packed;
+	}
+
+	public int packedOffset(int idx) {
+		return idx * type.NODES_ENTRY_LENGTH;
+	}
+
+	/**
+	 * @return size an array passed to {@link #closest(Key, int, Predicate, int[])} needs to have
+	 */
+	public int resultCapacity(int max) {
+		return max + maxBucketSize;
+	}
+
+	/**
+	 * Walks buckets in order of xor distance from target and stores indices of entries accepted by the filter until
+	 * at least max have been found or the table has been exhausted. The last bucket's entries are sorted by distance
+	 * so that truncating the result to max keeps the closest ones.
+	 *
+	 * @return number of indices written to out, may exceed max
+	 */
+	public int closest(Key target, int max, Predicate<KBucketEntry> filter, int[] out) {
+		long t0 = (Integer.toUnsignedLong(target.getInt(0)) << 32) | Integer.toUnsignedLong(target.getInt(4));
+		long t1 = (Integer.toUnsignedLong(target.getInt(8)) << 32) | Integer.toUnsignedLong(target.getInt(12));
+		long t2 = Integer.toUnsignedLong(target.getInt(16)) << 32;
+
+		int count = 0;
+		final int initial = indexFor(t0, t1, t2);
+		int current = initial;
+
+		while(true) {
+			for(int i=bucketStart[current],n=bucketStart[current+1];i<n;i++) {
+				if(filter.test(entries[i]))
+					out[count++] = i;
+			}
+
+			if(count >= max)
+				break;
+
+			// xor distance to the bucket trimmed to the prefix, incremented by the least significant prefix bit,
+			// translated back into the natural keyspace to find the bucket next in distance order
+			int depth = depths[current];
+			int p = current * LANES;
+			long d0 = (t0 ^ prefixes[p]) & mask(depth, 0);
+			long d1 = (t1 ^ prefixes[p + 1]) & mask(depth, 1);
+			long d2 = (t2 ^ prefixes[p + 2]) & mask(depth, 2);
+
+			if(depth >= 0) {
+				int lane = depth >>> 6;
+				long inc = 1L << (63 - (depth & 63));
+				if(lane == 2) {
+					long r = d2 + inc;
+					boolean carry = Long.compareUnsigned(r, d2) < 0;
+					d2 = r;
+					inc = carry ? 1 : 0;
+					lane = 1;
+				}
+				if(lane == 1 && inc != 0) {
+					long r = d1 + inc;
+					boolean carry = Long.compareUnsigned(r, d1) < 0;
+					d1 = r;
+					inc = carry ? 1 : 0;
+					lane = 0;
+				}
+				if(lane == 0 && inc != 0)
+					d0 += inc;
+			}
+
+			current = indexFor(t0 ^ d0, t1 ^ d1, t2 ^ d2);
+
+			// quit if there are insufficient routing table entries to reach the desired size
+			if(current == initial)
+				break;
+		}
+
+		if(count > max)
+			sortTail(out, count, t0, t1, t2);
+
+		return count;
+	}
+
+	private void sortTail(int[] out, int count, long t0, long t1, long t2) {
+		int from = Math.max(0, count - DHTConstants.MAX_ENTRIES_PER_BUCKET);
+		for(int i=from+1;i<count;i++) {
+			int idx = out[i];
+			int j = i - 1;
+			for(;j >= from && compareDistance(out[j], idx, t0, t1, t2) > 0;j--)
+				out[j + 1] = out[j];
+			out[j + 1] = idx;
+		}
+	}
+
+	private int compareDistance(int a, int b, long t0, long t1, long t2) {
+		int pa = a * LANES;
+		int pb = b * LANES;
+		int c = Long.compareUnsigned(ids[pa] ^ t0, ids[pb] ^ t0);
+		if(c != 0)
+			return c;
+		c = Long.compareUnsigned(ids[pa + 1] ^ t1, ids[pb + 1] ^ t1);
+		if(c != 0)
+			return c;
+		return Long.compareUnsigned(ids[pa + 2] ^ t2, ids[pb + 2] ^ t2);
+	}
+
+	/**
+	 * @return bits of the given lane covered by a prefix of the given depth
+	 */
+	static long mask(int depth, int lane) {
+		int bits = depth + 1 - lane * 64;
+		if(bits <= 0)
+			return 0;
+		if(bits >= 64)
+			return -1L;
+		return -1L << (64 - bits);
+	}
+
+	/**
+	 * @return index of the bucket covering the key, i.e. the last one whose prefix is not greater than it
+	 */
+	int indexFor(long k0, long k1, long k2) {
+		int low = 0;
+		int high = depths.length - 1;
+
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(comparePrefix(mid, k0, k1, k2) <= 0)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+
+		return low;
+	}
+
+	private int comparePrefix(int bucket, long k0, long k1, long k2) {
+		int p = bucket * LANES;
+		int c = Long.compareUnsigned(prefixes[p], k0);
+		if(c != 0)
+			return c;
+		c = Long.compareUnsigned(prefixes[p + 1], k1);
+		if(c != 0)
+			return c;
+		return Long.compareUnsigned(prefixes[p + 2], k2);
+	}
+
+}
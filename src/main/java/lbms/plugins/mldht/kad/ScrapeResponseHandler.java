@@ -19,6 +19,8 @@ public class ScrapeResponseHandler {
 	private int								direct;
 	private int								responses;
 	private int								supported;
+	private BloomFilterBEP33				seedFilter;
+	private BloomFilterBEP33				peerFilter;
 	
 	
 	public void addGetPeersRespone(GetPeersResponse gpr) {
@@ -45,6 +47,20 @@ public class ScrapeResponseHandler {
 		return supported;
 	}
 	
+	/**
+	 * @return union of all seed filters, only available after {@link #process()}
+	 */
+	public BloomFilterBEP33 getSeedFilter() {
+		return seedFilter;
+	}
+	
+	/**
+	 * @return union of all peer filters, including ones synthesized from direct results. only available after {@link #process()}
+	 */
+	public BloomFilterBEP33 getPeerFilter() {
+		return peerFilter;
+	}
+	
 	public void process() {
 		List<BloomFilterBEP33> seedFilters = new ArrayList<>();
 		List<BloomFilterBEP33> peerFilters = new ArrayList<>();
@@ -63,6 +79,7 @@ public class ScrapeResponseHandler {
 		}
 		
 		scrapeSeeds = BloomFilterBEP33.unionSize(seedFilters);
+		seedFilter = BloomFilterBEP33.union(seedFilters);
 		
 		for(int i=0;i<scrapeResponses.size();i++)
 		{
@@ -95,6 +112,7 @@ public class ScrapeResponseHandler {
 		}
 		
 		scrapePeers = BloomFilterBEP33.unionSize(peerFilters);
+		peerFilter = BloomFilterBEP33.union(peerFilters);
 		
 		direct = directPeers.size();
 		
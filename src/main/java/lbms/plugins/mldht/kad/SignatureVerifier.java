@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+/**
+ * Verifies BEP44 signatures off the packet-handling path. Pending items are queued and drained by a bounded number of
+ * tasks on the provided executor, valid (pubkey, salt, seq, sig, value) tuples are remembered so that identical re-puts
+ * are accepted without another verification.
+ *
+ * A verification takes around half a millisecond, so each task only runs for {@link #BATCH_NANOS} before it hands the
+ * thread back. That keeps the latency it adds to other tasks on a shared scheduler bounded regardless of CPU speed.
+ */
+public class SignatureVerifier {
+
+	public static final int MAX_PENDING = 1024;
+	public static final long BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	public static final int CACHE_SIZE = 4096;
+
+	static final class Pending {
+		final StorageItem item;
+		final Key tuple;
+		final Consumer<Boolean> callback;
+
+		Pending(StorageItem item, Key tuple, Consumer<Boolean> callback) {
+			this.item = item;
+			this.tuple = tuple;
+			this.callback = callback;
+		}
+	}
+
+	final Executor executor;
+	final int maxWorkers;
+
+	final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+	final AtomicInteger queued = new AtomicInteger();
+	final AtomicInteger workers = new AtomicInteger();
+
+	// guarded by itself
+	final LinkedHashMap<Key, Boolean> verified = new LinkedHashMap<Key, Boolean>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	final AtomicInteger cacheHits = new AtomicInteger();
+	final AtomicInteger verifications = new AtomicInteger();
+
+	public SignatureVerifier(Executor executor, int maxWorkers) {
+		this.executor = executor;
+		this.maxWorkers = Math.max(1, maxWorkers);
+	}
+
+	/**
+	 * The callback is invoked with the verification result, either directly if the tuple was verified recently or later on one of the executor's threads.
+	 *
+	 * @return false if too many verifications are pending, the callback will not be invoked in that case
+	 */
+	public boolean submit(StorageItem item, Consumer<Boolean> callback) {
+		Key tuple = tuple(item);
+
+		boolean known;
+		synchronized (verified) {
+			known = verified.get(tuple) != null;
+		}
+		if(known) {
+			cacheHits.incrementAndGet();
+			callback.accept(true);
+			return true;
+		}
+
+		if(queued.incrementAndGet() > MAX_PENDING) {
+			queued.decrementAndGet();
+			return false;
+		}
+
+		pending.add(new Pending(item, tuple, callback));
+		startWorker();
+		return true;
+	}
+
+	void startWorker() {
+		while(true) {
+			int current = workers.get();
+			if(current >= maxWorkers)
+				return;
+			if(workers.compareAndSet(current, current + 1))
+				break;
+		}
+		executor.execute(this::drain);
+	}
+
+	void drain() {
+		try {
+			long deadline = System.nanoTime() + BATCH_NANOS;
+			// always makes progress, even if the budget was exceeded before the first item
+			do {
+				Pending p = pending.poll();
+				if(p == null)
+					break;
+				queued.decrementAndGet();
+
+				boolean valid = p.item.validateSig();
+				verifications.incrementAndGet();
+				if(valid) {
+					synchronized (verified) {
+						verified.put(p.tuple, Boolean.TRUE);
+					}
+				}
+
+				try {
+					p.callback.accept(valid);
+				} catch (RuntimeException e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			} while(System.nanoTime() - deadline < 0);
+		} finally {
+			workers.decrementAndGet();
+		}
+
+		// hand the thread back between batches so that packet processing on a shared pool doesn't get starved.
+		// also covers items that were enqueued while all workers were about to exit
+		if(!pending.isEmpty())
+			startWorker();
+	}
+
+	static Key tuple(StorageItem item) {
+		MessageDigest dig = ThreadLocalUtils.getThreadLocalSHA1();
+		dig.reset();
+		dig.update(item.pubkey);
+		if(item.salt != null) {
+			dig.update((byte) item.salt.length);
+			dig.update(item.salt);
+		} else {
+			dig.update((byte) -1);
+		}
+		ByteBuffer seq = ByteBuffer.allocate(8);
+		seq.putLong(0, item.sequenceNumber);
+		dig.update(seq);
+		dig.update(item.signature);
+		dig.update(item.value);
+		return new Key(dig.digest());
+	}
+
+	public int pendingCount() {
+		return queued.get();
+	}
+
+	public int cacheHits() {
+		return cacheHits.get();
+	}
+
+	public int verifications() {
+		return verifications.get();
+	}
+
+}
@@ -17,8 +17,8 @@ public class SpamThrottle {
 	
 	private AtomicLong lastDecayTime = new AtomicLong(System.currentTimeMillis());
 	
-	private static final int BURST = 10;
-	private static final int PER_SECOND = 2;
+	static final int BURST = 10;
+	static final int PER_SECOND = 2;
 	
 	public boolean addAndTest(InetAddress addr) {
 		int updated = saturatingAdd(addr);
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size variant of {@link SpamThrottle} for the inbound path.
+ *
+ * Counters live in a count-min sketch of {@link #DEPTH} rows indexed by seeded address hashes, so memory does not grow with the
+ * number of distinct (possibly spoofed) sources. Each slot packs a hit count with the second in which it was last touched and
+ * is decayed lazily on access, which makes {@link #decay()} a no-op instead of a sweep over all entries.
+ *
+ * Hash collisions can only overestimate a source's count, never underestimate it.
+ */
+public class StripedSpamThrottle extends SpamThrottle {
+
+	static final int DEPTH = 2;
+
+	final AtomicLongArray counters;
+	final int width;
+	final int[] seeds = new int[DEPTH];
+	final long epoch = System.nanoTime();
+
+	public StripedSpamThrottle() {
+		this(15);
+	}
+
+	/**
+	 * @param widthBits log2 of the number of counters per row
+	 */
+	public StripedSpamThrottle(int widthBits) {
+		width = 1 << widthBits;
+		counters = new AtomicLongArray(width * DEPTH);
+		for(int i=0;i<DEPTH;i++)
+			seeds[i] = ThreadLocalRandom.current().nextInt();
+	}
+
+	int now() {
+		return (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - epoch);
+	}
+
+	int index(int row, InetAddress addr) {
+		int h = addr.hashCode() ^ seeds[row];
+		// murmur3 fmix32
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return row * width + (h & (width - 1));
+	}
+
+	static int decayed(long slot, int now) {
+		int count = (int) slot;
+		long elapsed = now - (int) (slot >>> 32);
+		return (int) Math.max(0, count - elapsed * PER_SECOND);
+	}
+
+	/**
+	 * @return the updated count, clamped to [0, cap]
+	 */
+	int update(int idx, int delta, int cap, int now) {
+		while(true) {
+			long old = counters.get(idx);
+			int count = (int) Math.max(0, Math.min((long) decayed(old, now) + delta, cap));
+			long updated = ((long) now << 32) | count;
+			if(old == updated || counters.compareAndSet(idx, old, updated))
+				return count;
+		}
+	}
+
+	int estimate(InetAddress addr, int now) {
+		int min = Integer.MAX_VALUE;
+		for(int row=0;row<DEPTH;row++)
+			min = Math.min(min, decayed(counters.get(index(row, addr)), now));
+		return min;
+	}
+
+	int add(InetAddress addr, int delta, int cap) {
+		int now = now();
+		int min = Integer.MAX_VALUE;
+		for(int row=0;row<DEPTH;row++)
+			min = Math.min(min, update(index(row, addr), delta, cap, now));
+		return min;
+	}
+
+	@Override
+	public boolean addAndTest(InetAddress addr) {
+		return saturatingAdd(addr) >= BURST;
+	}
+
+	@Override
+	public void remove(InetAddress addr) {
+		int now = now();
+		int est = estimate(addr, now);
+		if(est == 0)
+			return;
+		// only take away what can be attributed to this address, colliding sources keep their share
+		for(int row=0;row<DEPTH;row++)
+			update(index(row, addr), -est, Integer.MAX_VALUE, now);
+	}
+
+	@Override
+	public boolean test(InetAddress addr) {
+		return estimate(addr, now()) >= BURST;
+	}
+
+	@Override
+	public int calculateDelayAndAdd(InetAddress addr) {
+		int counter = add(addr, 1, Integer.MAX_VALUE);
+		int diff = counter - BURST;
+		return Math.max(diff, 0)*1000/PER_SECOND;
+	}
+
+	@Override
+	public void saturatingDec(InetAddress addr) {
+		add(addr, -1, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int saturatingAdd(InetAddress addr) {
+		return add(addr, 1, BURST);
+	}
+
+	@Override
+	public void decay() {
+		// decay is applied lazily on access
+	}
+
+}
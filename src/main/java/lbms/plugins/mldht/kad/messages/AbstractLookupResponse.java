@@ -5,12 +5,14 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.NodeList;
+import the8472.bencode.BEncoder;
 
 public class AbstractLookupResponse extends MessageBase {
 	
@@ -68,6 +70,28 @@ public class AbstractLookupResponse extends MessageBase {
 		return inner;
 	}
 	
+	static final byte[] KEY_NODES = BEncoder.key("nodes");
+	static final byte[] KEY_NODES6 = BEncoder.key("nodes6");
+	static final byte[] KEY_TOKEN = BEncoder.key("token");
+	
+	void encodeNodes(ByteBuffer target) {
+		if(nodes != null) {
+			target.put(KEY_NODES);
+			BEncoder.writeString(target, nodes.writer());
+		}
+		if(nodes6 != null) {
+			target.put(KEY_NODES6);
+			BEncoder.writeString(target, nodes6.writer());
+		}
+	}
+	
+	void encodeToken(ByteBuffer target) {
+		if(token != null) {
+			target.put(KEY_TOKEN);
+			BEncoder.writeString(target, token);
+		}
+	}
+	
 	public NodeList getNodes(DHTtype type)
 	{
 		if(type == DHTtype.IPV4_DHT)
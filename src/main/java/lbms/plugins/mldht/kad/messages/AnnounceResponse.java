@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -39,5 +40,15 @@ public class AnnounceResponse extends MessageBase {
 
 		return inner;
 	}
+	
+	@Override
+	protected boolean canEncodeDirectly() {
+		return getClass() == AnnounceResponse.class;
+	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		encodeID(target);
+	}
 
 }
@@ -5,6 +5,8 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import java.nio.ByteBuffer;
+
 import lbms.plugins.mldht.kad.DHT;
 
 /**
@@ -30,5 +32,17 @@ public class FindNodeResponse extends AbstractLookupResponse {
 	public void apply (DHT dh_table) {
 		dh_table.response(this);
 	}
+	
+	@Override
+	protected boolean canEncodeDirectly() {
+		return getClass() == FindNodeResponse.class;
+	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		encodeID(target);
+		encodeNodes(target);
+		encodeToken(target);
+	}
 
 }
@@ -18,6 +18,7 @@ import lbms.plugins.mldht.kad.BloomFilterBEP33;
 import lbms.plugins.mldht.kad.DBItem;
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.DHTtype;
+import the8472.bencode.BEncoder;
 
 /**
  * @author Damokles
@@ -70,6 +71,35 @@ public class GetPeersResponse extends AbstractLookupResponse {
 		return innerMap;
 	}
 	
+	static final byte[] KEY_BFPE = BEncoder.key("BFpe");
+	static final byte[] KEY_BFSE = BEncoder.key("BFse");
+	static final byte[] KEY_VALUES = BEncoder.key("values");
+	
+	@Override
+	protected boolean canEncodeDirectly() {
+		return getClass() == GetPeersResponse.class;
+	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		if(scrapePeers != null && scrapeSeeds != null) {
+			target.put(KEY_BFPE);
+			BEncoder.writeString(target, scrapePeers);
+			target.put(KEY_BFSE);
+			BEncoder.writeString(target, scrapeSeeds);
+		}
+		encodeID(target);
+		encodeNodes(target);
+		encodeToken(target);
+		if(items != null && !items.isEmpty()) {
+			target.put(KEY_VALUES);
+			target.put((byte) 'l');
+			for(int i=0;i<items.size();i++)
+				BEncoder.writeString(target, items.get(i).getData());
+			target.put((byte) 'e');
+		}
+	}
+	
 	public void setPeerItems(List<DBItem> items) {
 		this.items = items;
 	}
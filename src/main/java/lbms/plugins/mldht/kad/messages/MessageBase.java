@@ -24,6 +24,7 @@ import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCServer;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import the8472.bencode.BEncoder;
+import the8472.bencode.Utils;
 
 /**
  * Base class for all RPC messages.
@@ -72,9 +73,74 @@ public abstract class MessageBase {
 	 */
 	public void encode(ByteBuffer target) throws IOException
 	{
+		if(getType() == Type.RSP_MSG && canEncodeDirectly()) {
+			encodeResponse(target);
+			return;
+		}
 		new BEncoder().encodeInto(getBase(),target);
 	}
 	
+	static final byte[] KEY_IP = BEncoder.key(EXTERNAL_IP_KEY);
+	static final byte[] KEY_T = BEncoder.key(TRANSACTION_KEY);
+	static final byte[] KEY_V = BEncoder.key(VERSION_KEY);
+	static final byte[] KEY_ID = BEncoder.key("id");
+	static final byte[] RESPONSE_PREFIX = BEncoder.key(Type.RSP_MSG.innerKey());
+	static final byte[] RESPONSE_SUFFIX = Utils.str2ary("1:y1:re");
+	
+	/**
+	 * writes the same bytes as encoding {@link #getBase()} but without building intermediate maps. keys are emitted in bencoding order
+	 */
+	void encodeResponse(ByteBuffer target) {
+		assert(mtid != null);
+		target.put((byte) 'd');
+		if(publicIP != null) {
+			target.put(KEY_IP);
+			byte[] addr = publicIP.getAddress().getAddress();
+			BEncoder.writeStringHeader(target, addr.length + 2);
+			target.put(addr);
+			target.putShort((short) publicIP.getPort());
+		}
+		target.put(RESPONSE_PREFIX);
+		target.put((byte) 'd');
+		encodeInner(target);
+		target.put((byte) 'e');
+		target.put(KEY_T);
+		BEncoder.writeString(target, mtid);
+		String version = DHTConstants.getVersion();
+		if(version != null) {
+			target.put(KEY_V);
+			BEncoder.writeString(target, version);
+		}
+		target.put(RESPONSE_SUFFIX);
+		target.flip();
+	}
+	
+	void encodeID(ByteBuffer target) {
+		target.put(KEY_ID);
+		BEncoder.writeStringHeader(target, Key.SHA1_HASH_LENGTH);
+		id.toBuffer(target);
+	}
+	
+	/**
+	 * responses whose inner dictionary is fully covered by {@link #encodeInner(ByteBuffer)} return true to skip the map-based encoding.
+	 * must only be enabled on concrete classes, subclasses may add keys
+	 */
+	protected boolean canEncodeDirectly() {
+		return false;
+	}
+	
+	/**
+	 * writes the key-value pairs of {@link #getInnerMap()} in sorted order, without the enclosing dictionary delimiters.
+	 * the default goes through the map-based encoder, subclasses enabling {@link #canEncodeDirectly()} should override it
+	 */
+	protected void encodeInner(ByteBuffer target) {
+		ByteBuffer dict = target.slice();
+		new BEncoder().encodeInto(getInnerMap(), dict);
+		// drop the leading 'd' by moving the contents down one byte, the trailing 'e' is simply not copied
+		for(int i=1;i<dict.limit()-1;i++)
+			target.put(dict.get(i));
+	}
+	
 	public Map<String, Object> getBase()
 	{
 		Map<String, Object> base = new TreeMap<>();
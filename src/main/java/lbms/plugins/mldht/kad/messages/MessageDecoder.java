@@ -5,14 +5,18 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import static the8472.bencode.Utils.buf2ary;
 import static the8472.bencode.Utils.prettyPrint;
+import static the8472.bencode.Utils.str2ary;
 import static the8472.utils.Functional.castOrThrow;
 import static the8472.utils.Functional.tap;
 import static the8472.utils.Functional.tapThrow;
 import static the8472.utils.Functional.typedGet;
 
+import the8472.bencode.BFlyweight;
 import the8472.bencode.PathMatcher;
 import the8472.bencode.Tokenizer;
+import the8472.bencode.Tokenizer.TokenType;
 import the8472.utils.Functional;
 
 import lbms.plugins.mldht.kad.BloomFilterBEP33;
@@ -233,7 +237,9 @@ public class MessageDecoder {
 			m.tokenizer(t);
 			ByteBuffer rawVal = m.match(raw);
 			
-			get.setRawValue(rawVal);
+			// the message may outlive the (pooled) receive buffer
+			if(rawVal != null)
+				get.setRawValue(ByteBuffer.wrap(buf2ary(rawVal)));
 			
 			typedGet(args, "token", byte[].class).ifPresent(get::setToken);;
 			typedGet(args, "k", byte[].class).ifPresent(get::setKey);
@@ -460,6 +466,189 @@ public class MessageDecoder {
 		return msg;
 	}
 	
+	private static final byte[] KEY_TYPE = str2ary(Type.TYPE_KEY);
+	private static final byte[] KEY_TRANSACTION = str2ary(MessageBase.TRANSACTION_KEY);
+	private static final byte[] KEY_VERSION = str2ary(MessageBase.VERSION_KEY);
+	private static final byte[] KEY_METHOD = str2ary(Type.REQ_MSG.getRPCTypeName());
+	private static final byte[] KEY_ARGS = str2ary(Type.REQ_MSG.innerKey());
+	private static final byte[] KEY_ID = str2ary("id");
+	private static final byte[] KEY_TARGET = str2ary("target");
+	private static final byte[] KEY_INFO_HASH = str2ary("info_hash");
+	private static final byte[] KEY_WANT = str2ary("want");
+	private static final byte[] KEY_NOSEED = str2ary("noseed");
+	private static final byte[] KEY_SCRAPE = str2ary("scrape");
+	private static final byte[] KEY_PORT = str2ary("port");
+	private static final byte[] KEY_TOKEN = str2ary("token");
+	private static final byte[] KEY_SEED = str2ary("seed");
+	private static final byte[] KEY_NAME = str2ary("name");
+	private static final byte[] VAL_REQUEST = str2ary(Type.REQ_MSG.getRPCTypeName());
+	private static final byte[] VAL_PING = str2ary(Method.PING.getRPCName());
+	private static final byte[] VAL_FIND_NODE = str2ary(Method.FIND_NODE.getRPCName());
+	private static final byte[] VAL_GET_PEERS = str2ary(Method.GET_PEERS.getRPCName());
+	private static final byte[] VAL_ANNOUNCE_PEER = str2ary(Method.ANNOUNCE_PEER.getRPCName());
+	private static final byte[] VAL_WANT4 = str2ary("n4");
+	private static final byte[] VAL_WANT6 = str2ary("n6");
+
+	// raw bencoded forms for the pre-check, "1:y1:" is the type key followed by the length prefix of its value
+	private static final byte[] RAW_TYPE_PREFIX = str2ary("1:" + Type.TYPE_KEY + "1:");
+	private static final byte[] RAW_METHOD_KEY = str2ary("1:" + Type.REQ_MSG.getRPCTypeName());
+	private static final byte[][] RAW_FAST_PATH_METHODS = {
+		rawString(Method.PING.getRPCName()),
+		rawString(Method.FIND_NODE.getRPCName()),
+		rawString(Method.GET_PEERS.getRPCName()),
+		rawString(Method.ANNOUNCE_PEER.getRPCName()),
+	};
+
+	private static byte[] rawString(String str) {
+		return str2ary(str.length() + ":" + str);
+	}
+
+	/**
+	 * Cheap check on the raw packet so that messages which can't take the {@link #parseRequest(BFlyweight, DHTtype)} path
+	 * (responses, errors, get/put and other requests) don't get tokenized twice.
+	 *
+	 * Scans backwards since the canonical key order puts y last and q right after the arguments. Non-canonical encodings
+	 * or payloads that happen to contain the same bytes can produce wrong answers in either direction, which is harmless
+	 * because the map-based decoder handles everything.
+	 */
+	public static boolean mayBeFastPathRequest(ByteBuffer buf) {
+		int y = lastIndexOf(buf, buf.limit(), RAW_TYPE_PREFIX);
+		if(y < 0 || y + RAW_TYPE_PREFIX.length >= buf.limit() || buf.get(y + RAW_TYPE_PREFIX.length) != VAL_REQUEST[0])
+			return false;
+		int q = lastIndexOf(buf, y, RAW_METHOD_KEY);
+		if(q < 0)
+			return false;
+		int value = q + RAW_METHOD_KEY.length;
+		for(byte[] method : RAW_FAST_PATH_METHODS) {
+			if(regionMatches(buf, value, method))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return absolute index of the last occurrence that ends at or before {@code end}, -1 if none
+	 */
+	private static int lastIndexOf(ByteBuffer buf, int end, byte[] pattern) {
+		for(int i = end - pattern.length; i >= buf.position(); i--) {
+			if(regionMatches(buf, i, pattern))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean regionMatches(ByteBuffer buf, int offset, byte[] pattern) {
+		if(offset + pattern.length > buf.limit())
+			return false;
+		for(int i=0;i<pattern.length;i++) {
+			if(buf.get(offset + i) != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Fast path for the bulk of incoming traffic: ping, find_node, get_peers and announce_peer requests are read straight
+	 * from the token table without building intermediate maps.
+	 *
+	 * Only well-formed messages are handled here, anything else (other message types, missing or mistyped fields) yields null
+	 * and has to go through the map-based decoder which also takes care of generating proper error responses.
+	 *
+	 * @param fw already decoded flyweight
+	 * @return null if the message is not eligible for the fast path
+	 */
+	public static MessageBase parseRequest(BFlyweight fw, DHTtype type) {
+		int root = 0;
+		int y = fw.find(root, KEY_TYPE);
+		if(y < 0 || !fw.equals(y, VAL_REQUEST))
+			return null;
+
+		int tid = fw.find(root, KEY_TRANSACTION);
+		int q = fw.find(root, KEY_METHOD);
+		int args = fw.find(root, KEY_ARGS);
+		if(!fw.isType(tid, TokenType.STRING) || fw.length(tid) == 0 || !fw.isType(q, TokenType.STRING) || !fw.isType(args, TokenType.DICT))
+			return null;
+
+		int id = fw.find(args, KEY_ID);
+		if(!fw.isType(id, TokenType.STRING) || fw.length(id) != Key.SHA1_HASH_LENGTH)
+			return null;
+
+		MessageBase msg;
+
+		if(fw.equals(q, VAL_PING)) {
+			msg = new PingRequest();
+		} else if(fw.equals(q, VAL_FIND_NODE) || fw.equals(q, VAL_GET_PEERS)) {
+			int target = fw.find(args, KEY_TARGET);
+			if(target < 0)
+				target = fw.find(args, KEY_INFO_HASH);
+			if(!fw.isType(target, TokenType.STRING) || fw.length(target) != Key.SHA1_HASH_LENGTH)
+				return null;
+
+			boolean getPeers = fw.equals(q, VAL_GET_PEERS);
+			Key targetKey = new Key(fw.seek(target));
+			AbstractLookupRequest req = getPeers ? new GetPeersRequest(targetKey) : new FindNodeRequest(targetKey);
+
+			int want = fw.find(args, KEY_WANT);
+			if(want >= 0) {
+				if(!fw.isType(want, TokenType.LIST))
+					return null;
+				for(int w = fw.childrenStart(want), end = fw.childrenEnd(want); w < end; w = fw.next(w)) {
+					if(!fw.isType(w, TokenType.STRING))
+						return null;
+					if(fw.equals(w, VAL_WANT4))
+						req.setWant4(true);
+					if(fw.equals(w, VAL_WANT6))
+						req.setWant6(true);
+				}
+			} else {
+				req.setWant4(type == DHTtype.IPV4_DHT);
+				req.setWant6(type == DHTtype.IPV6_DHT);
+			}
+
+			if(getPeers) {
+				GetPeersRequest peerReq = (GetPeersRequest) req;
+				peerReq.setNoSeeds(isOne(fw, fw.find(args, KEY_NOSEED)));
+				peerReq.setScrape(isOne(fw, fw.find(args, KEY_SCRAPE)));
+			}
+
+			msg = req;
+		} else if(fw.equals(q, VAL_ANNOUNCE_PEER)) {
+			int infoHash = fw.find(args, KEY_INFO_HASH);
+			int port = fw.find(args, KEY_PORT);
+			int token = fw.find(args, KEY_TOKEN);
+			if(!fw.isType(infoHash, TokenType.STRING) || fw.length(infoHash) != Key.SHA1_HASH_LENGTH || !fw.isType(port, TokenType.LONG) || !fw.isType(token, TokenType.STRING) || fw.length(token) == 0)
+				return null;
+			long portNum = fw.longValue(port);
+			if(portNum <= 0 || portNum > 65535)
+				return null;
+			int name = fw.find(args, KEY_NAME);
+			if(name >= 0 && !fw.isType(name, TokenType.STRING))
+				return null;
+
+			AnnounceRequest ar = new AnnounceRequest(new Key(fw.seek(infoHash)), (int) portNum, fw.copyBytes(token));
+			ar.setSeed(isOne(fw, fw.find(args, KEY_SEED)));
+			if(name >= 0)
+				ar.setName(ByteBuffer.wrap(fw.copyBytes(name)));
+
+			msg = ar;
+		} else {
+			return null;
+		}
+
+		int version = fw.find(root, KEY_VERSION);
+		if(fw.isType(version, TokenType.STRING))
+			msg.setVersion(fw.copyBytes(version));
+
+		msg.setMTID(fw.copyBytes(tid));
+		msg.setID(new Key(fw.seek(id)));
+
+		return msg;
+	}
+
+	private static boolean isOne(BFlyweight fw, int idx) {
+		return fw.isType(idx, TokenType.LONG) && fw.longValue(idx) == 1;
+	}
+
 	private static String getStringFromBytes (byte[] bytes, boolean preserveBytes) {
 		if (bytes == null) {
 			return null;
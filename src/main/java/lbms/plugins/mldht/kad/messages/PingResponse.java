@@ -5,6 +5,7 @@
  ******************************************************************************/
 package lbms.plugins.mldht.kad.messages;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -41,4 +42,14 @@ public class PingResponse extends MessageBase {
 		return inner;
 	}
 	
+	@Override
+	protected boolean canEncodeDirectly() {
+		return getClass() == PingResponse.class;
+	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		encodeID(target);
+	}
+	
 }
@@ -9,6 +9,7 @@ import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 import lbms.plugins.mldht.kad.Key;
+import the8472.bencode.BEncoder;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -79,5 +80,28 @@ public class SampleResponse extends AbstractLookupResponse {
 		return inner;
 		
 	}
+	
+	static final byte[] KEY_INTERVAL = BEncoder.key("interval");
+	static final byte[] KEY_NUM = BEncoder.key("num");
+	static final byte[] KEY_SAMPLES = BEncoder.key("samples");
+	
+	@Override
+	protected boolean canEncodeDirectly() {
+		// the map-based path fails on null samples, keep that behavior
+		return getClass() == SampleResponse.class && samples != null;
+	}
+	
+	@Override
+	protected void encodeInner(ByteBuffer target) {
+		encodeID(target);
+		target.put(KEY_INTERVAL);
+		BEncoder.writeLong(target, interval);
+		encodeNodes(target);
+		target.put(KEY_NUM);
+		BEncoder.writeLong(target, num);
+		target.put(KEY_SAMPLES);
+		BEncoder.writeString(target, samples);
+		encodeToken(target);
+	}
 
 }
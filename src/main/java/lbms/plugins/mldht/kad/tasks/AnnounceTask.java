@@ -128,4 +128,10 @@ public class AnnounceTask extends TargetedTask {
 
 		super.start();
 	}
+
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.ANNOUNCE;
+	}
+
 }
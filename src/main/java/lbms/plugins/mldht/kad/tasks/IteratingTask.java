@@ -7,6 +7,7 @@ package lbms.plugins.mldht.kad.tasks;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.RPCServer;
@@ -15,6 +16,7 @@ import lbms.plugins.mldht.kad.tasks.IterativeLookupCandidates.LookupGraphNode;
 import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
 
+import java.util.List;
 import java.util.stream.Collectors;
 
 public abstract class IteratingTask extends TargetedTask {
@@ -35,6 +37,20 @@ public abstract class IteratingTask extends TargetedTask {
 		return (int) todo.allCand().filter(todo.lookupFilter).count();
 	}
 	
+	/**
+	 * @return the closest nodes that responded, ordered by distance to the target
+	 */
+	public List<KBucketEntry> getClosestEntries() {
+		return closest.entries().collect(Collectors.toList());
+	}
+	
+	/**
+	 * @return number of referrals between the initial candidates and the closest node that responded, -1 if none did
+	 */
+	public int getHopCount() {
+		return todo.hopsToClosestResponder();
+	}
+	
 	public String closestDebug() {
 		return this.closest.entries().<String>map(kbe -> {
 			Key k = kbe.getID();
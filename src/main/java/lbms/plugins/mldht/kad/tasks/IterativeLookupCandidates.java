@@ -18,9 +18,11 @@ import lbms.plugins.mldht.kad.RPCState;
 import lbms.plugins.mldht.kad.SpamThrottle;
 
 import java.net.InetAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -240,6 +242,29 @@ public class IterativeLookupCandidates {
 		
 	}
 	
+	/**
+	 * @return length of the shortest referral path from the initial candidates to the closest node that responded, -1 if none did
+	 */
+	int hopsToClosestResponder() {
+		Map<LookupGraphNode, Integer> depth = new HashMap<>();
+		ArrayDeque<LookupGraphNode> queue = new ArrayDeque<>();
+		allCand().filter(n -> n.root).forEach(n -> {
+			depth.put(n, 0);
+			queue.add(n);
+		});
+		
+		while(!queue.isEmpty()) {
+			LookupGraphNode n = queue.poll();
+			int childDepth = depth.get(n) + 1;
+			for(LookupGraphNode child : n.returnedNodes) {
+				if(depth.putIfAbsent(child, childDepth) == null)
+					queue.add(child);
+			}
+		}
+		
+		return allCand().filter(LookupGraphNode::wasAccepted).min(comp()).map(n -> depth.getOrDefault(n, -1)).orElse(-1);
+	}
+	
 	Set<KBucketEntry> getSources(KBucketEntry e) {
 		return candidates.get(e).sources.stream().map(LookupGraphNode::toKbe).collect(Collectors.toSet());
 	}
@@ -144,4 +144,10 @@ public class KeyspaceCrawler extends Task {
 	private void done () {
 		System.out.println("crawler done, seen "+responded.size());
 	}
+
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.BACKGROUND;
+	}
+
 }
@@ -312,4 +312,9 @@ public class KeyspaceSampler extends Task {
 	
 	
 
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.BACKGROUND;
+	}
+
 }
@@ -175,4 +175,10 @@ public class NodeLookup extends IteratingTask {
 			rpc.getDHT().getEstimator().update(closest.ids().collect(Collectors.toSet()),targetKey);
 		}
 	}
+
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.MAINTENANCE;
+	}
+
 }
@@ -152,4 +152,10 @@ public class PingRefreshTask extends Task {
 	protected boolean isDone() {
 		return todo.isEmpty() && getNumOutstandingRequests() == 0 && !isFinished();
 	}
+
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.MAINTENANCE;
+	}
+
 }
@@ -103,4 +103,9 @@ public class PutTask extends TargetedTask {
 		return false;
 	}
 
+	@Override
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.ANNOUNCE;
+	}
+
 }
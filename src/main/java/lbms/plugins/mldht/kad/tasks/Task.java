@@ -67,6 +67,32 @@ public abstract class Task implements Comparable<Task> {
 		
 	}
 	
+	/**
+	 * Scheduling classes used by the {@link TaskManager} when picking the next queued task to start.
+	 */
+	public enum PriorityClass {
+		/** lookups on behalf of users or API callers */
+		INTERACTIVE(8, 1.0, 1000),
+		ANNOUNCE(4, 0.75, 5000),
+		/** routing table upkeep: bootstrap, bucket refreshes, pings */
+		MAINTENANCE(2, 0.5, 15000),
+		/** crawling, sampling and other bulk work */
+		BACKGROUND(1, 0.25, 60000);
+		
+		/** relative share of task starts while several classes are queued */
+		final int weight;
+		/** fraction of the server's call window tasks of this class may occupy before further ones are held back */
+		final double callShare;
+		/** queued tasks that waited longer than this are started ahead of the weighted order */
+		final long maxWaitMillis;
+		
+		PriorityClass(int weight, double callShare, long maxWaitMillis) {
+			this.weight = weight;
+			this.callShare = callShare;
+			this.maxWaitMillis = maxWaitMillis;
+		}
+	}
+	
 	AtomicReference<TaskState>			state = new AtomicReference<>(TaskState.INITIAL);
 	long 								startTime;
 	long								firstResultTime;
@@ -74,6 +100,8 @@ public abstract class Task implements Comparable<Task> {
 	private int							taskID;
 	private List<TaskListener>			listeners;
 	private boolean						lowPriority;
+	private PriorityClass				priorityClass;
+	long								queuedTime;
 	protected final AtomicReference<TaskStats>				counts = new AtomicReference<>(new TaskStats());
 	
 	/**
@@ -279,8 +307,27 @@ public abstract class Task implements Comparable<Task> {
 		this.lowPriority = lowPriority;
 	}
 	
+	public void setPriorityClass(PriorityClass priorityClass) {
+		this.priorityClass = priorityClass;
+	}
+	
+	/**
+	 * @return the explicitly set class, otherwise {@link PriorityClass#BACKGROUND} for low priority tasks or the default of the task type
+	 */
+	public PriorityClass getPriorityClass() {
+		PriorityClass c = priorityClass;
+		if(c != null)
+			return c;
+		return lowPriority ? PriorityClass.BACKGROUND : defaultPriorityClass();
+	}
+	
+	protected PriorityClass defaultPriorityClass() {
+		return PriorityClass.INTERACTIVE;
+	}
+	
 	public int requestConcurrency() {
-		return lowPriority ? DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO : DHTConstants.MAX_CONCURRENT_REQUESTS;
+		int base = lowPriority ? DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO : DHTConstants.MAX_CONCURRENT_REQUESTS;
+		return rpc.getConcurrencyController().scaleConcurrency(base);
 	}
 	
 	static interface CandidateSupplier {
@@ -405,6 +452,10 @@ public abstract class Task implements Comparable<Task> {
 		return counts.get().unanswered();
 	}
 
+	public TaskState getState() {
+		return state.get();
+	}
+	
 	public boolean isQueued () {
 		return state.get() == TaskState.QUEUED;
 	}
@@ -18,6 +18,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHTConstants;
 import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.tasks.Task.PriorityClass;
 import lbms.plugins.mldht.kad.tasks.Task.TaskState;
 
 /**
@@ -52,21 +53,61 @@ public class TaskManager {
 		addTask(task, false);
 	}
 	
+	/**
+	 * Per-server scheduler. Queued tasks are kept per {@link PriorityClass}, the next one to start is picked by:
+	 * <ol>
+	 * <li>the longest-waiting task whose class deadline has expired, to prevent starvation</li>
+	 * <li>otherwise the class with the lowest weighted start count (virtual time) among those that are below their
+	 * share of the server's call window</li>
+	 * </ol>
+	 */
 	class ServerSet {
+		static final int CLASSES = 4;
+		
 		RPCServer server;
-		Deque<Task> queued = new ArrayDeque<>();
+		// guarded by itself
+		final List<Deque<Task>> queued;
+		final double[] virtualTime = new double[CLASSES];
 		List<Task> active = new ArrayList<>();
+		
+		ServerSet() {
+			queued = new ArrayList<>(CLASSES);
+			for(int i=0;i<CLASSES;i++)
+				queued.add(new ArrayDeque<>());
+		}
+		
+		void enqueue(Task t, boolean isPriority) {
+			PriorityClass c = t.getPriorityClass();
+			t.queuedTime = System.currentTimeMillis();
+			synchronized (queued) {
+				Deque<Task> q = queued.get(c.ordinal());
+				// a class that was idle doesn't get to redeem the credit it accumulated while not competing
+				if(q.isEmpty())
+					virtualTime[c.ordinal()] = Math.max(virtualTime[c.ordinal()], minBackloggedVirtualTime());
+				if (isPriority)
+					q.addFirst(t);
+				else
+					q.addLast(t);
+			}
+		}
+		
+		double minBackloggedVirtualTime() {
+			double min = Double.MAX_VALUE;
+			for(int i=0;i<CLASSES;i++)
+				if(!queued.get(i).isEmpty())
+					min = Math.min(min, virtualTime[i]);
+			return min == Double.MAX_VALUE ? 0 : min;
+		}
 
 		void dequeue() {
 			while (true) {
 				Task t;
 				synchronized (queued) {
-					t = queued.peekFirst();
-					if (t == null)
+					if (!canStartTask(server))
 						break;
-					if (!canStartTask(t.getRPC()))
+					t = pollNext();
+					if (t == null)
 						break;
-					queued.removeFirst();
 				}
 				if (t.isFinished())
 					continue;
@@ -78,12 +119,66 @@ public class TaskManager {
 			}
 		}
 		
+		/**
+		 * must be called while holding the queue lock
+		 */
+		Task pollNext() {
+			long now = System.currentTimeMillis();
+			
+			int overdue = -1;
+			long longestWait = 0;
+			for(PriorityClass c : PriorityClass.values()) {
+				Task head = queued.get(c.ordinal()).peekFirst();
+				if(head == null)
+					continue;
+				long wait = now - head.queuedTime;
+				if(wait > c.maxWaitMillis && wait > longestWait) {
+					overdue = c.ordinal();
+					longestWait = wait;
+				}
+			}
+			
+			int pick = overdue;
+			
+			if(pick == -1) {
+				int[] outstanding = outstandingCallsPerClass();
+				int window = server.getMaxActiveCalls();
+				double lowest = Double.MAX_VALUE;
+				
+				for(PriorityClass c : PriorityClass.values()) {
+					int i = c.ordinal();
+					if(queued.get(i).isEmpty() || outstanding[i] >= c.callShare * window)
+						continue;
+					if(virtualTime[i] < lowest) {
+						lowest = virtualTime[i];
+						pick = i;
+					}
+				}
+			}
+			
+			if(pick == -1)
+				return null;
+			
+			virtualTime[pick] += 1.0 / PriorityClass.values()[pick].weight;
+			return queued.get(pick).pollFirst();
+		}
+		
+		int[] outstandingCallsPerClass() {
+			int[] outstanding = new int[CLASSES];
+			synchronized (active) {
+				for(Task t : active)
+					outstanding[t.getPriorityClass().ordinal()] += t.getNumOutstandingRequests();
+			}
+			return outstanding;
+		}
+		
 		boolean canStartTask(RPCServer srv) {
 			// we can start a task if we have less then  7 runnning per server and
 			// there are at least 16 RPC slots available
 
 			int activeCalls = srv.getNumActiveRPCCalls();
-			if(activeCalls + 16 >= DHTConstants.MAX_ACTIVE_CALLS)
+			int maxCalls = srv.getMaxActiveCalls();
+			if(activeCalls + 16 >= maxCalls)
 				return false;
 			
 			int perServer = active.size();
@@ -91,7 +186,7 @@ public class TaskManager {
 			if(perServer < DHTConstants.MAX_ACTIVE_TASKS)
 				return true;
 			
-			if(activeCalls >= (DHTConstants.MAX_ACTIVE_CALLS * 2) / 3)
+			if(activeCalls >= (maxCalls * 2) / 3)
 				return false;
 			// if all their tasks have sent at least their initial volley and we still have enough head room we can allow more tasks.
 			synchronized(active) {
@@ -107,7 +202,19 @@ public class TaskManager {
 		
 		Collection<Task> snapshotQueued() {
 			synchronized (queued) {
-				return new ArrayList<>(queued);
+				List<Task> all = new ArrayList<>();
+				for(Deque<Task> q : queued)
+					all.addAll(q);
+				return all;
+			}
+		}
+		
+		int queuedCount() {
+			synchronized (queued) {
+				int count = 0;
+				for(Deque<Task> q : queued)
+					count += q.size();
+				return count;
 			}
 		}
 		
@@ -158,13 +265,7 @@ public class TaskManager {
 		if(!task.setState(TaskState.INITIAL, TaskState.QUEUED))
 			return;
 		
-		synchronized (s.get().queued)
-		{
-			if (isPriority)
-				s.get().queued.addFirst(task);
-			else
-				s.get().queued.addLast(task);
-		}
+		s.get().enqueue(task, isPriority);
 	}
 	
 	public void removeServer(RPCServer srv) {
@@ -177,9 +278,7 @@ public class TaskManager {
 			set.active.forEach(Task::kill);
 		}
 		
-		synchronized (set.queued) {
-			set.queued.forEach(Task::kill);
-		}
+		set.snapshotQueued().forEach(Task::kill);
 	}
 
 	/// Get the number of running tasks
@@ -189,7 +288,7 @@ public class TaskManager {
 
 	/// Get the number of queued tasks
 	public int getNumQueuedTasks () {
-		return taskSets.values().stream().mapToInt(s -> s.queued.size()).sum();
+		return taskSets.values().stream().mapToInt(ServerSet::queuedCount).sum();
 	}
 
 	public Task[] getActiveTasks () {
@@ -214,13 +313,7 @@ public class TaskManager {
 	}
 	
 	public int queuedCount(RPCServer srv) {
-		Optional<ServerSet> set = setFor(srv);
-		if(!set.isPresent())
-			return 0;
-		Collection<Task> q = set.get().queued;
-		synchronized (q) {
-			return q.size();
-		}
+		return setFor(srv).map(ServerSet::queuedCount).orElse(0);
 	}
 	
 	@Override
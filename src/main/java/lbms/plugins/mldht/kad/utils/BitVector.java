@@ -62,6 +62,16 @@ public final class BitVector {
 		return bits;
 	}
 	
+	/**
+	 * sets all bits that are set in the other vector
+	 */
+	public void or(BitVector other) {
+		if(other.bits != bits)
+			throw new IllegalArgumentException("bit vectors differ in size");
+		for(int i=0;i<vector.length;i++)
+			vector[i] |= other.vector[i];
+	}
+	
 	public void clear() {
 		Arrays.fill(vector, (byte)0);
 	}
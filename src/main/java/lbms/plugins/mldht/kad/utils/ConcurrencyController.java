@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import java.util.function.DoubleSupplier;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.RPCCall;
+
+/**
+ * AIMD window for the number of calls an RPCServer keeps in flight, also used to scale per-task request concurrency.
+ *
+ * Responses arriving within the stall timeout of the {@link ResponseTimeoutFilter} grow the window by one call per
+ * window's worth of responses. Timeouts shrink it multiplicatively, at most once per stall timeout, but only if they
+ * hit nodes that were known to be reachable and the loss rate for those is elevated. Unverified nodes time out
+ * half of the time regardless of our own load, so they carry no congestion signal.
+ *
+ * When not enabled the window stays fixed at {@link DHTConstants#MAX_ACTIVE_CALLS}.
+ */
+public class ConcurrencyController {
+
+	public static final int MIN_WINDOW = 32;
+	public static final int MAX_WINDOW = 4096;
+	// routing table entries normally see ~1/3 loss
+	static final double VERIFIED_LOSS_THRESHOLD = 0.5;
+	static final double DECREASE_FACTOR = 0.75;
+
+	final boolean enabled;
+	final ResponseTimeoutFilter rtt;
+	final DoubleSupplier verifiedLoss;
+
+	private double window = DHTConstants.MAX_ACTIVE_CALLS;
+	private long lastDecrease;
+	private volatile int currentWindow = DHTConstants.MAX_ACTIVE_CALLS;
+
+	public ConcurrencyController(boolean enabled, ResponseTimeoutFilter rtt, DoubleSupplier verifiedLoss) {
+		this.enabled = enabled;
+		this.rtt = rtt;
+		this.verifiedLoss = verifiedLoss;
+	}
+
+	public void onResponse(RPCCall c) {
+		if(!enabled || c.getRTT() > rtt.getStallTimeout())
+			return;
+		synchronized (this) {
+			window = Math.min(MAX_WINDOW, window + 1.0 / window);
+			currentWindow = (int) window;
+		}
+	}
+
+	public void onTimeout(RPCCall c) {
+		if(!enabled || !c.knownReachableAtCreationTime() || verifiedLoss.getAsDouble() < VERIFIED_LOSS_THRESHOLD)
+			return;
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if(now - lastDecrease < rtt.getStallTimeout())
+				return;
+			lastDecrease = now;
+			window = Math.max(MIN_WINDOW, window * DECREASE_FACTOR);
+			currentWindow = (int) window;
+		}
+	}
+
+	/**
+	 * @return maximum number of calls the server should have in flight
+	 */
+	public int maxActiveCalls() {
+		return currentWindow;
+	}
+
+	/**
+	 * @return the base concurrency scaled by the ratio of the current window to the static default, between 1 and twice the base value
+	 */
+	public int scaleConcurrency(int base) {
+		if(!enabled)
+			return base;
+		int scaled = (int) Math.round(base * (double) currentWindow / DHTConstants.MAX_ACTIVE_CALLS);
+		return Math.max(1, Math.min(base * 2, scaled));
+	}
+
+	@Override
+	public String toString() {
+		return enabled ? "adaptive window: " + currentWindow : "fixed window: " + currentWindow;
+	}
+
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+/**
+ * SipHash-2-4 keyed hash over a sequence of 64-bit words, for short inputs that are already at hand as primitives.
+ * The result equals SipHash over the little-endian encoding of the words.
+ *
+ * Instances are mutable and not thread-safe, {@link #reset()} them for reuse to avoid allocations.
+ */
+public final class SipHash {
+
+	private final long k0;
+	private final long k1;
+
+	private long v0;
+	private long v1;
+	private long v2;
+	private long v3;
+	private int length;
+
+	public SipHash(long k0, long k1) {
+		this.k0 = k0;
+		this.k1 = k1;
+		reset();
+	}
+
+	public SipHash reset() {
+		v0 = k0 ^ 0x736f6d6570736575L;
+		v1 = k1 ^ 0x646f72616e646f6dL;
+		v2 = k0 ^ 0x6c7967656e657261L;
+		v3 = k1 ^ 0x7465646279746573L;
+		length = 0;
+		return this;
+	}
+
+	public SipHash update(long word) {
+		v3 ^= word;
+		round();
+		round();
+		v0 ^= word;
+		length += 8;
+		return this;
+	}
+
+	/**
+	 * @return the hash of all words since the last reset
+	 */
+	public long finish() {
+		long b = ((long) length) << 56;
+		v3 ^= b;
+		round();
+		round();
+		v0 ^= b;
+
+		v2 ^= 0xff;
+		round();
+		round();
+		round();
+		round();
+
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+	private void round() {
+		v0 += v1;
+		v1 = Long.rotateLeft(v1, 13);
+		v1 ^= v0;
+		v0 = Long.rotateLeft(v0, 32);
+		v2 += v3;
+		v3 = Long.rotateLeft(v3, 16);
+		v3 ^= v2;
+		v0 += v3;
+		v3 = Long.rotateLeft(v3, 21);
+		v3 ^= v0;
+		v2 += v1;
+		v1 = Long.rotateLeft(v1, 17);
+		v1 ^= v2;
+		v2 = Long.rotateLeft(v2, 32);
+	}
+
+}
@@ -11,6 +11,7 @@ import java.security.SecureRandom;
 import java.util.Random;
 
 import the8472.bencode.BDecoder;
+import the8472.bencode.BFlyweight;
 
 public class ThreadLocalUtils {
 
@@ -32,6 +33,7 @@ public class ThreadLocalUtils {
 	});
 	
 	private static ThreadLocal<BDecoder> decoder = ThreadLocal.withInitial(() -> new BDecoder());
+	private static ThreadLocal<BFlyweight> flyweight = ThreadLocal.withInitial(() -> new BFlyweight());
 	
 
 	public static Random getThreadLocalRandom() {
@@ -42,6 +44,10 @@ public class ThreadLocalUtils {
 		return decoder.get();
 	}
 	
+	public static BFlyweight getFlyweight() {
+		return flyweight.get();
+	}
+	
 	public static MessageDigest getThreadLocalSHA1() {
 		return sha1TL.get();
 	}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Fixed number of equally sized direct buffers carved out of a single slab.
+ *
+ * Buffers are handed out as reference-counted {@link Lease}s and return to the pool once the last holder releases them.
+ * When debug logging is enabled acquisitions record their call site and {@link #checkLeaks(long)} reports leases that
+ * have been held for suspiciously long.
+ */
+public class BufferPool {
+
+	static final long LEAK_THRESHOLD = TimeUnit.SECONDS.toMillis(30);
+
+	final int bufferSize;
+	final int capacity;
+	final Queue<Lease> free = new ConcurrentLinkedQueue<>();
+	final Set<Lease> tracked = ConcurrentHashMap.newKeySet();
+
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * capacity);
+		for(int i=0;i<capacity;i++) {
+			slab.limit((i + 1) * bufferSize);
+			slab.position(i * bufferSize);
+			free.add(new Lease(slab.slice()));
+		}
+	}
+
+	/**
+	 * @return null if the pool is exhausted
+	 */
+	public Lease acquire() {
+		Lease l = free.poll();
+		if(l == null)
+			return null;
+		l.refCount.set(1);
+		l.buf.clear();
+		if(DHT.isLogLevelEnabled(LogLevel.Debug)) {
+			l.acquiredAt = System.currentTimeMillis();
+			l.acquiredBy = new Throwable("buffer lease acquired here");
+			tracked.add(l);
+		}
+		return l;
+	}
+
+	public int available() {
+		return free.size();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * logs leases that are still being held after {@link #LEAK_THRESHOLD}. only covers leases acquired while debug logging was enabled
+	 */
+	public void checkLeaks(long now) {
+		if(tracked.isEmpty())
+			return;
+		for(Lease l : tracked) {
+			Throwable site = l.acquiredBy;
+			if(site == null || now - l.acquiredAt < LEAK_THRESHOLD)
+				continue;
+			// only report once
+			l.acquiredBy = null;
+			tracked.remove(l);
+			DHT.log(new IllegalStateException("buffer lease not released after " + (now - l.acquiredAt) + "ms, " + available() + "/" + capacity + " buffers available", site), LogLevel.Error);
+		}
+	}
+
+	public class Lease {
+		final ByteBuffer buf;
+		final AtomicInteger refCount = new AtomicInteger();
+		volatile long acquiredAt;
+		volatile Throwable acquiredBy;
+
+		Lease(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public ByteBuffer buffer() {
+			return buf;
+		}
+
+		/**
+		 * for consumers which keep a view on the buffer beyond the scope in which it was handed to them. must be paired with a {@link #release()}
+		 */
+		public Lease retain() {
+			int old = refCount.getAndIncrement();
+			if(old <= 0) {
+				refCount.getAndDecrement();
+				throw new IllegalStateException("attempted to retain a buffer that was already returned to the pool");
+			}
+			return this;
+		}
+
+		public void release() {
+			int remaining = refCount.decrementAndGet();
+			if(remaining > 0)
+				return;
+			if(remaining < 0) {
+				refCount.incrementAndGet();
+				throw new IllegalStateException("buffer released more often than acquired/retained");
+			}
+			if(acquiredAt != 0) {
+				tracked.remove(this);
+				acquiredBy = null;
+				acquiredAt = 0;
+			}
+			free.add(this);
+		}
+	}
+
+}
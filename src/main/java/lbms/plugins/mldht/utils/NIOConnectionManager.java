@@ -30,6 +30,7 @@ public class NIOConnectionManager {
 	String name;
 	Selector selector;
 	volatile boolean wakeupCalled;
+	volatile boolean closed;
 	
 	public NIOConnectionManager(String name) {
 		this.name = name;
@@ -65,9 +66,14 @@ public class NIOConnectionManager {
 					
 			} catch (Exception e)
 			{
+				if(closed)
+					break;
 				DHT.log(e, LogLevel.Error);
 			}
 			
+			if(closed)
+				break;
+			
 			iterations++;
 			
 			if(suspendOnIdle())
@@ -214,6 +220,18 @@ public class NIOConnectionManager {
 		}
 	}
 	
+	/**
+	 * closes the selector and stops the selector thread. registered channels are not closed, that's up to their owners
+	 */
+	public void close() {
+		closed = true;
+		try {
+			selector.close();
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+	
 	public Selector getSelector() {
 		return selector;
 	}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Hashed timing wheel for large numbers of short, mostly cancelled timeouts.
+ *
+ * Scheduling appends to a lock-free queue and cancelling flips a flag, both O(1). Only {@link #tick()}, which has to be
+ * invoked periodically by a single driver, touches the wheel itself, moves new timeouts into their slots,
+ * drops cancelled ones and runs expired tasks inline.
+ *
+ * Timeouts fire on the first tick at or after their deadline, i.e. up to one tick late.
+ */
+public class TimingWheel {
+
+	final long tickNanos;
+	final int mask;
+	final List<ArrayList<Timeout>> slots;
+	final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	final AtomicBoolean ticking = new AtomicBoolean();
+	final long origin = System.nanoTime();
+	long currentTick;
+
+	/**
+	 * @param slotCount rounded up to the next power of two
+	 */
+	public TimingWheel(long tickDuration, TimeUnit unit, int slotCount) {
+		tickNanos = unit.toNanos(tickDuration);
+		int size = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+		mask = size - 1;
+		slots = new ArrayList<>(size);
+		for(int i=0;i<size;i++)
+			slots.add(new ArrayList<>());
+	}
+
+	public long getTickDuration(TimeUnit unit) {
+		return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout t = new Timeout(task, System.nanoTime() - origin + unit.toNanos(delay));
+		pending.add(t);
+		return t;
+	}
+
+	/**
+	 * advances the wheel to the current time, catching up on missed ticks
+	 */
+	public void tick() {
+		if(!ticking.compareAndSet(false, true))
+			return;
+		try {
+			long targetTick = (System.nanoTime() - origin) / tickNanos;
+
+			while(currentTick <= targetTick) {
+				transferPending();
+				expire(slots.get((int) (currentTick & mask)));
+				currentTick++;
+			}
+		} finally {
+			ticking.set(false);
+		}
+	}
+
+	void transferPending() {
+		Timeout t;
+		while((t = pending.poll()) != null) {
+			if(t.state.get() == Timeout.CANCELLED)
+				continue;
+			// round up, never fire early
+			long deadlineTick = Math.max((t.deadline + tickNanos - 1) / tickNanos, currentTick);
+			t.rounds = (deadlineTick - currentTick) / slots.size();
+			slots.get((int) (deadlineTick & mask)).add(t);
+		}
+	}
+
+	void expire(ArrayList<Timeout> slot) {
+		int kept = 0;
+		for(int i=0, n=slot.size();i<n;i++) {
+			Timeout t = slot.get(i);
+			if(t.state.get() != Timeout.WAITING)
+				continue;
+			if(t.rounds > 0) {
+				t.rounds--;
+				slot.set(kept++, t);
+				continue;
+			}
+			if(!t.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED))
+				continue;
+			try {
+				t.task.run();
+			} catch(Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+		// drop expired and cancelled entries from the tail
+		for(int i=slot.size()-1;i>=kept;i--)
+			slot.remove(i);
+	}
+
+	public static final class Timeout {
+		static final int WAITING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+
+		final Runnable task;
+		final long deadline;
+		final AtomicInteger state = new AtomicInteger(WAITING);
+		// only accessed by the ticking thread
+		long rounds;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if the timeout already fired or was cancelled before
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED);
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+}
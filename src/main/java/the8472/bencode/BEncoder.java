@@ -149,6 +149,74 @@ public class BEncoder {
 		buf.put((byte) 'e');
 	}
 	
+	/*
+	 * primitives for hand-written encoders that emit pre-sorted dictionary keys straight into the target buffer
+	 */
+	
+	/**
+	 * @return the complete bencoding of the string, to be used as pre-encoded dictionary key
+	 */
+	public static byte[] key(String str) {
+		return Utils.str2ary(str.length() + ":" + str);
+	}
+	
+	public static void writeStringHeader(ByteBuffer buf, int length) {
+		writeDigits(buf, length);
+		buf.put((byte) ':');
+	}
+	
+	public static void writeString(ByteBuffer buf, byte[] str) {
+		writeStringHeader(buf, str.length);
+		buf.put(str);
+	}
+	
+	/**
+	 * writes the remaining bytes of str without modifying its position
+	 */
+	public static void writeString(ByteBuffer buf, ByteBuffer str) {
+		writeStringHeader(buf, str.remaining());
+		buf.put(str.duplicate());
+	}
+	
+	public static void writeString(ByteBuffer buf, String str) {
+		writeStringHeader(buf, str.length());
+		str2buf(str, buf);
+	}
+	
+	public static void writeString(ByteBuffer buf, StringWriter str) {
+		writeStringHeader(buf, str.length());
+		str.writeTo(buf);
+	}
+	
+	public static void writeLong(ByteBuffer buf, long val) {
+		buf.put((byte) 'i');
+		if(val == Long.MIN_VALUE) {
+			str2buf(Long.toString(val), buf);
+		} else {
+			if(val < 0) {
+				buf.put((byte) '-');
+				val = -val;
+			}
+			writeDigits(buf, val);
+		}
+		buf.put((byte) 'e');
+	}
+	
+	private static void writeDigits(ByteBuffer buf, long val) {
+		int numChars = 1;
+		for(long probe = 10; numChars < 19 && val >= probe; probe *= 10)
+			numChars++;
+		
+		int pos = buf.position() + numChars;
+		buf.position(pos);
+		
+		for(int i=1; i <= numChars; i++) {
+			long reduced = val / 10;
+			buf.put(pos - i, (byte) ('0' + (val - reduced * 10)));
+			val = reduced;
+		}
+	}
+	
 	private final static byte[] MIN_INT = str2buf(Integer.toString(Integer.MIN_VALUE)).array();
 	
 	private void encodeInt(int val, byte terminator) {
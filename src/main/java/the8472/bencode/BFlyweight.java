@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bencode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import the8472.bencode.Tokenizer.BDecodingException;
+import the8472.bencode.Tokenizer.Token;
+import the8472.bencode.Tokenizer.TokenConsumer;
+import the8472.bencode.Tokenizer.TokenType;
+
+/**
+ * Flyweight view over a bencoded buffer. Instead of building maps and lists it records a flat token table
+ * (type, offsets, subtree end) in reusable primitive arrays and exposes index-based accessors that read straight
+ * from the input buffer.
+ *
+ * Token 0 is the root. Containers are followed by their children in document order, dictionaries alternate key and value.
+ *
+ * Instances are not thread-safe and only valid until the next {@link #decode(ByteBuffer)} or {@link #release()}
+ */
+public class BFlyweight implements TokenConsumer {
+
+	private static final TokenType[] tokenEnums = TokenType.values();
+
+	final Tokenizer t;
+
+	ByteBuffer buf;
+	int originalPosition;
+	int originalLimit;
+
+	int count;
+	byte[] types = new byte[64];
+	int[] starts = new int[64];
+	int[] ends = new int[64];
+	// index one past the last token of the subtree, i.e. the next sibling
+	int[] next = new int[64];
+	long[] values = new long[64];
+
+	int depth;
+	int[] open = new int[256];
+
+	public BFlyweight() {
+		t = new Tokenizer();
+		t.consumer(this);
+	}
+
+	/**
+	 * @return number of tokens
+	 */
+	public int decode(ByteBuffer buf) {
+		release();
+		this.buf = buf;
+		originalPosition = buf.position();
+		originalLimit = buf.limit();
+
+		try {
+			t.inputBuffer(buf);
+			t.tokenize();
+		} finally {
+			t.reset();
+			depth = 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * restores the position and limit of the input buffer and drops the reference to it
+	 */
+	public void release() {
+		if(buf != null) {
+			buf.limit(originalLimit);
+			buf.position(originalPosition);
+		}
+		buf = null;
+		count = 0;
+	}
+
+	@Override
+	public void push(Token st) {
+		TokenType type = st.type();
+		if(type == TokenType.PREFIXED_STRING)
+			return;
+
+		int idx = count++;
+		if(idx == types.length)
+			grow();
+
+		types[idx] = (byte) type.ordinal();
+		starts[idx] = st.start;
+
+		if(type == TokenType.DICT || type == TokenType.LIST)
+			open[depth++] = idx;
+	}
+
+	@Override
+	public void pop(Token st) {
+		int idx;
+
+		switch(st.type()) {
+			case DICT:
+			case LIST:
+				idx = open[--depth];
+				break;
+			case LONG:
+				idx = count - 1;
+				values[idx] = t.lastDecodedNum();
+				break;
+			case STRING:
+				idx = count - 1;
+				break;
+			default:
+				return;
+		}
+
+		ends[idx] = st.end;
+		next[idx] = count;
+	}
+
+	void grow() {
+		int size = types.length * 2;
+		types = Arrays.copyOf(types, size);
+		starts = Arrays.copyOf(starts, size);
+		ends = Arrays.copyOf(ends, size);
+		next = Arrays.copyOf(next, size);
+		values = Arrays.copyOf(values, size);
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public TokenType type(int idx) {
+		return tokenEnums[types[idx]];
+	}
+
+	public boolean isType(int idx, TokenType type) {
+		return idx >= 0 && idx < count && types[idx] == type.ordinal();
+	}
+
+	/**
+	 * @return index of the first child. equal to {@link #childrenEnd(int)} if the container is empty
+	 */
+	public int childrenStart(int container) {
+		return container + 1;
+	}
+
+	public int childrenEnd(int container) {
+		return next[container];
+	}
+
+	/**
+	 * @return index of the following sibling, skipping over the whole subtree
+	 */
+	public int next(int idx) {
+		return next[idx];
+	}
+
+	/**
+	 * @return index of the value stored under the key, -1 if absent or if dict is not a dictionary
+	 */
+	public int find(int dict, byte[] key) {
+		if(!isType(dict, TokenType.DICT))
+			return -1;
+		int end = next[dict];
+		for(int k = dict + 1; k < end;) {
+			int v = next[k];
+			if(v >= end)
+				break;
+			if(equals(k, key))
+				return v;
+			k = next[v];
+		}
+		return -1;
+	}
+
+	/**
+	 * @return offset of the string content within the input buffer
+	 */
+	public int offset(int idx) {
+		return starts[idx];
+	}
+
+	/**
+	 * @return length of the string content
+	 */
+	public int length(int idx) {
+		return ends[idx] - starts[idx];
+	}
+
+	public long longValue(int idx) {
+		if(types[idx] != TokenType.LONG.ordinal())
+			throw new BDecodingException("token "+idx+" is not an integer");
+		return values[idx];
+	}
+
+	public boolean equals(int idx, byte[] literal) {
+		if(types[idx] != TokenType.STRING.ordinal() || length(idx) != literal.length)
+			return false;
+		buf.limit(originalLimit);
+		int off = starts[idx];
+		for(int i=0;i<literal.length;i++) {
+			if(buf.get(off + i) != literal[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * narrows the input buffer to the content of the string token without allocating a slice.
+	 *
+	 * @return the input buffer, valid until the next call to any accessor or {@link #release()}
+	 */
+	public ByteBuffer seek(int idx) {
+		buf.limit(originalLimit);
+		buf.position(starts[idx]);
+		buf.limit(ends[idx]);
+		return buf;
+	}
+
+	public byte[] copyBytes(int idx) {
+		byte[] out = new byte[length(idx)];
+		buf.limit(originalLimit);
+		int off = starts[idx];
+		for(int i=0;i<out.length;i++)
+			out[i] = buf.get(off + i);
+		return out;
+	}
+
+}
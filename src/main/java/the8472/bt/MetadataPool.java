@@ -7,14 +7,36 @@ package the8472.bt;
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import the8472.utils.AnonAllocator;
 
+/**
+ * Collects the 16KiB pieces of an info dictionary from one or more {@link PullMetaDataConnection}s.
+ *
+ * Once every piece has been requested outstanding pieces are raced across connections (endgame), stragglers
+ * relative to their requestee's observed piece latency first. Since BEP9 only provides a hash over the whole dictionary
+ * a failed check discards the contributions of a single suspected peer, which is then excluded from the pool,
+ * instead of failing the whole pool.
+ *
+ * Pieces are copied into a single buffer of the announced size which {@link #merge()} hands out without copying and
+ * the longest complete prefix is hashed as pieces arrive, so the final check only has to finish the digest.
+ */
 public class MetadataPool {
 	
+	public static final int PIECE_SIZE = 16*1024;
+	
+	// connections requesting the same piece at once during endgame
+	static final int MAX_RACERS = 3;
+	static final int MAX_HASH_FAILURES = 4;
+	static final long DEFAULT_PIECE_MILLIS = 1000;
 
 	public static enum Completion {
 		PROGRESS,
@@ -22,69 +44,304 @@ public class MetadataPool {
 		FAILED;
 	}
 	
+	static final class Piece {
+		// view of the piece's range in the contents buffer once received
+		ByteBuffer data;
+		PullMetaDataConnection source;
+		// data of a racing connection that differs from the first received copy
+		ByteBuffer alternate;
+		PullMetaDataConnection alternateSource;
+		// outstanding requests and when they were made
+		final Map<PullMetaDataConnection, Long> requests = new IdentityHashMap<>(4);
+	}
+	
+	static final class PeerStats {
+		int pieces;
+		double avgMillis;
+		
+		void update(long millis) {
+			// EWMA, warm up with a plain average
+			pieces++;
+			double weight = Math.max(0.25, 1.0 / pieces);
+			avgMillis += (millis - avgMillis) * weight;
+		}
+	}
+	
 	Completion state = Completion.PROGRESS;
 	
 	int length;
-	ByteBuffer[] buffers;
-	PullMetaDataConnection[]	requestees;
-	Completion status = Completion.PROGRESS;
+	Piece[] pieces;
+	final Map<PullMetaDataConnection, PeerStats> peers = new IdentityHashMap<>();
+	final Set<PullMetaDataConnection> banned = new HashSet<>();
+	int hashFailures;
+	volatile Completion status = Completion.PROGRESS;
+	
+	// allocated on the first received piece, the length is merely claimed by the remote
+	ByteBuffer contents;
+	MessageDigest digest;
+	// pieces [0, hashedPieces) have been fed into the digest
+	int hashedPieces;
 	
 	public MetadataPool(int length ) {
 		this.length = length;
-		int numChunks = (int) Math.ceil(length * 1.0 / (16*1024));
-		requestees = new PullMetaDataConnection[numChunks];
-		buffers = new ByteBuffer[numChunks];
+		int numChunks = (int) Math.ceil(length * 1.0 / PIECE_SIZE);
+		pieces = new Piece[numChunks];
+		for(int i=0;i<numChunks;i++)
+			pieces[i] = new Piece();
 	}
 	
-	int reservePiece(PullMetaDataConnection req) {
-		for(int i=0;i<requestees.length;i++) {
-			if(requestees[i] != null)
+	synchronized int reservePiece(PullMetaDataConnection req) {
+		if(status != Completion.PROGRESS || banned.contains(req))
+			return -1;
+		
+		long now = System.currentTimeMillis();
+		
+		for(int i=0;i<pieces.length;i++) {
+			Piece p = pieces[i];
+			if(p.data != null || !p.requests.isEmpty())
 				continue;
-			requestees[i] = req;
+			p.requests.put(req, now);
 			return i;
 		}
-
-		return -1;
+		
+		// endgame. race the piece that is most overdue relative to how fast its requestees usually are
+		int best = -1;
+		double bestScore = -1;
+		
+		for(int i=0;i<pieces.length;i++) {
+			Piece p = pieces[i];
+			if(p.data != null || p.requests.size() >= MAX_RACERS || p.requests.containsKey(req))
+				continue;
+			double score = Double.MAX_VALUE;
+			for(Map.Entry<PullMetaDataConnection, Long> e : p.requests.entrySet())
+				score = Math.min(score, (now - e.getValue()) / expectedMillis(e.getKey()));
+			if(score > bestScore) {
+				bestScore = score;
+				best = i;
+			}
+		}
+		
+		if(best >= 0)
+			pieces[best].requests.put(req, now);
+		
+		return best;
+	}
+	
+	double expectedMillis(PullMetaDataConnection con) {
+		PeerStats s = peers.get(con);
+		if(s == null || s.pieces == 0)
+			return DEFAULT_PIECE_MILLIS;
+		return Math.max(1.0, s.avgMillis);
+	}
+	
+	synchronized void releasePiece(int idx, PullMetaDataConnection req) {
+		if(idx >= 0 && idx < pieces.length)
+			pieces[idx].requests.remove(req);
+	}
+	
+	int pieceLength(int idx) {
+		return Math.min(PIECE_SIZE, length - idx * PIECE_SIZE);
+	}
+	
+	ByteBuffer slice(int idx) {
+		if(contents == null)
+			contents = AnonAllocator.allocate(length);
+		ByteBuffer b = contents.duplicate();
+		b.limit(idx * PIECE_SIZE + pieceLength(idx));
+		b.position(idx * PIECE_SIZE);
+		return b.slice();
+	}
+	
+	/**
+	 * copies the remaining bytes of the buffer, does not modify it
+	 */
+	synchronized void addBuffer(int idx, ByteBuffer buf, PullMetaDataConnection source) {
+		if(idx < 0 || idx >= pieces.length)
+			return;
+		Piece p = pieces[idx];
+		Long requested = p.requests.remove(source);
+		// unsolicited
+		if(requested == null || banned.contains(source) || buf.remaining() != pieceLength(idx))
+			return;
+		
+		peers.computeIfAbsent(source, unused -> new PeerStats()).update(System.currentTimeMillis() - requested);
+		
+		if(p.data == null) {
+			p.data = slice(idx);
+			p.data.put(buf.duplicate());
+			p.source = source;
+			hashPrefix();
+			return;
+		}
+		
+		// lost the race. only keep a differing copy, it might be the correct one if the hash check fails
+		if(p.alternate == null && !contentEquals(p.data, buf)) {
+			p.alternate = ByteBuffer.allocate(buf.remaining());
+			p.alternate.put(buf.duplicate());
+			p.alternateSource = source;
+		}
 	}
 	
-	void releasePiece(int idx) {
-		requestees[idx] = null;
+	void hashPrefix() {
+		if(digest == null) {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		while(hashedPieces < pieces.length && pieces[hashedPieces].data != null) {
+			ByteBuffer b = pieces[hashedPieces].data.duplicate();
+			b.rewind();
+			digest.update(b);
+			hashedPieces++;
+		}
 	}
 	
-	void addBuffer(int idx, ByteBuffer buf) {
-		buffers[idx] = buf;
+	synchronized void deRegister(PullMetaDataConnection req) {
+		for(Piece p : pieces)
+			p.requests.remove(req);
 	}
 	
-	void deRegister(PullMetaDataConnection req) {
-		for(int i=0;i<requestees.length;i++) {
-			if(requestees[i] == req && buffers[i] == null)
-				requestees[i] = null;
+	boolean isBanned(PullMetaDataConnection con) {
+		synchronized (this) {
+			return banned.contains(con);
 		}
 	}
 	
-	void checkComletion(byte[] hash) {
+	synchronized void checkComletion(byte[] hash) {
 		if(status != Completion.PROGRESS)
 			return;
-		List<ByteBuffer> bufs = Arrays.asList(buffers);
-		if(bufs.stream().anyMatch(Objects::isNull)) {
+		hashPrefix();
+		if(hashedPieces < pieces.length)
+			return;
+		
+		// digest() resets, anything replaced after a failure gets rehashed from the start
+		hashedPieces = 0;
+		if(Arrays.equals(digest.digest(), hash)) {
+			status = Completion.SUCCESS;
+			return;
+		}
+		
+		Set<PullMetaDataConnection> contributors = contributors();
+		
+		// racing may have left us with copies from other peers for everything a bad peer sent
+		for(PullMetaDataConnection suspect : contributors) {
+			if(!replaceable(suspect) || !matches(hash, suspect))
+				continue;
+			discard(suspect);
+			status = Completion.SUCCESS;
+			return;
+		}
+		
+		hashFailures++;
+		
+		// a peer serving a corrupt dictionary will generally have corrupted everything it sent, so discard the peer
+		// with the most contributions first. the others get to fill the gaps
+		PullMetaDataConnection suspect = null;
+		int suspectPieces = 0;
+		for(PullMetaDataConnection c : contributors) {
+			int n = 0;
+			for(Piece p : pieces)
+				if(p.source == c)
+					n++;
+			if(n > suspectPieces) {
+				suspect = c;
+				suspectPieces = n;
+			}
+		}
+		
+		if(suspect == null || hashFailures >= MAX_HASH_FAILURES) {
+			status = Completion.FAILED;
+			return;
+		}
+		
+		discard(suspect);
+		
+		// nothing received from anyone else is left. TorrentFetcher replaces failed pools, so a fresh one serves the
+		// remaining connections just as well as this empty one
+		if(contributors.size() == 1) {
+			status = Completion.FAILED;
 			return;
 		}
-			
 		
+		hashPrefix();
+	}
+	
+	Set<PullMetaDataConnection> contributors() {
+		Set<PullMetaDataConnection> result = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(Piece p : pieces)
+			if(p.source != null)
+				result.add(p.source);
+		return result;
+	}
+	
+	boolean replaceable(PullMetaDataConnection suspect) {
+		boolean any = false;
+		for(Piece p : pieces) {
+			if(p.source != suspect)
+				continue;
+			if(p.alternate == null)
+				return false;
+			any = true;
+		}
+		return any;
+	}
+	
+	/**
+	 * removes all data received from the connection and excludes it from further requests. its pieces are replaced by alternate copies where available
+	 */
+	void discard(PullMetaDataConnection con) {
+		banned.add(con);
+		for(Piece p : pieces) {
+			p.requests.remove(con);
+			if(p.alternateSource == con) {
+				p.alternate = null;
+				p.alternateSource = null;
+			}
+			if(p.source == con) {
+				if(p.alternate != null) {
+					p.data.clear();
+					p.alternate.rewind();
+					p.data.put(p.alternate);
+				} else {
+					p.data = null;
+				}
+				p.source = p.alternateSource;
+				p.alternate = null;
+				p.alternateSource = null;
+			}
+		}
+	}
+	
+	boolean matches(byte[] hash, PullMetaDataConnection avoid) {
 		MessageDigest hasher = ThreadLocalUtils.getThreadLocalSHA1();
 		
 		hasher.reset();
-		bufs.forEach(b -> {
+		for(Piece p : pieces) {
+			ByteBuffer b = avoid != null && p.source == avoid ? p.alternate : p.data;
+			b = b.duplicate();
 			b.rewind();
 			hasher.update(b);
-		});
-		
-		if(Arrays.equals(hasher.digest(), hash)) {
-			status = Completion.SUCCESS;
-			return;
 		}
-			
-		status = Completion.FAILED;
+		
+		return Arrays.equals(hasher.digest(), hash);
+	}
+	
+	static boolean contentEquals(ByteBuffer stored, ByteBuffer incoming) {
+		ByteBuffer b = stored.duplicate();
+		b.rewind();
+		return b.equals(incoming);
+	}
+	
+	/**
+	 * @return average milliseconds between request and arrival of a piece for each connection that delivered at least one
+	 */
+	public synchronized Map<PullMetaDataConnection, Double> pieceLatencies() {
+		Map<PullMetaDataConnection, Double> result = new IdentityHashMap<>();
+		peers.forEach((con, stats) -> result.put(con, stats.avgMillis));
+		return result;
 	}
 	
 	public Completion status() {
@@ -95,18 +352,18 @@ public class MetadataPool {
 		return length;
 	}
 	
-	public ByteBuffer merge() {
+	/**
+	 * @return a view of the received info dictionary
+	 */
+	public synchronized ByteBuffer merge() {
 		if(status != Completion.SUCCESS)
 			throw new IllegalStateException("there is nothing to merge");
 		
-		ByteBuffer buf = ByteBuffer.allocate(length);
-		
-		Arrays.asList(buffers).forEach(b -> {
-			b.rewind();
-			buf.put(b);
-		});
+		if(contents == null)
+			return ByteBuffer.allocate(0);
 		
-		buf.rewind();
+		ByteBuffer buf = contents.duplicate();
+		buf.clear();
 		
 		return buf;
 	}
@@ -9,7 +9,6 @@ import the8472.bencode.BDecoder;
 import the8472.bencode.BEncoder;
 import the8472.bencode.Tokenizer.BDecodingException;
 import the8472.bt.MetadataPool.Completion;
-import the8472.utils.AnonAllocator;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
@@ -105,6 +104,17 @@ public class PullMetaDataConnection implements Selectable {
 	private static final int BT_MSG_ID_OFFSET = 4; // 0-3 length, 4 id
 	private static final int BT_LTEP_HEADER_OFFSET =  5; // 5 ltep id
 	
+	private static final int INPUT_BUFFER_SIZE = 32 * 1024;
+	private static final int MAX_POOLED_INPUT_BUFFERS = 64;
+	
+	// input buffers are only acquired and released by the selector thread servicing the connection
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>> inputBufferPool = ThreadLocal.withInitial(ArrayDeque::new);
+	
+	// bencoded {"msg_type": 0, "piece": idx}
+	private static final byte[] PIECE_REQUEST_PREFIX = "d8:msg_typei0e5:piecei".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] PIECE_REQUEST_SUFFIX = "ee".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int MAX_PIECE_REQUEST_LENGTH = BT_HEADER_LENGTH + 2 + PIECE_REQUEST_PREFIX.length + 10 + PIECE_REQUEST_SUFFIX.length;
+	
 	boolean						keepPexOnlyOpen;
 	
 	SocketChannel				channel;
@@ -112,6 +122,7 @@ public class PullMetaDataConnection implements Selectable {
 	boolean						incoming;
 	
 	Deque<ByteBuffer>			outputBuffers			= new ArrayDeque<>();
+	ByteBuffer[]				gatherBuffers			= new ByteBuffer[8];
 	ByteBuffer					inputBuffer;
 
 	boolean						remoteSupportsFastExtension;
@@ -571,9 +582,7 @@ public class PullMetaDataConnection implements Selectable {
 					outstandingRequests--;
 					chunksReceived++;
 					
-					ByteBuffer chunk = AnonAllocator.allocate(inputBuffer.remaining());
-					chunk.put(inputBuffer);
-					pool.addBuffer(idx.intValue(), chunk);
+					pool.addBuffer(idx.intValue(), inputBuffer, this);
 					
 					lastUsefulMessage = System.currentTimeMillis();
 					
@@ -581,7 +590,7 @@ public class PullMetaDataConnection implements Selectable {
 					checkMetaRequests();
 				} else if(type == 2)
 				{ // reject
-					pool.releasePiece(idx.intValue());
+					pool.releasePiece(idx.intValue(), this);
 					terminate("request was rejected");
 					return;
 				} else if(type == 0) {
@@ -615,9 +624,12 @@ public class PullMetaDataConnection implements Selectable {
 	public void canReadEvent() throws IOException {
 		int bytesRead = 0;
 		
+		if(isState(STATE_CLOSED))
+			return;
+		
 		if(inputBuffer == null)
 		{
-			inputBuffer = ByteBuffer.allocate(32 * 1024);
+			inputBuffer = acquireInputBuffer();
 			// await BT handshake on first allocation since this has to be the first read
 			inputBuffer.limit(20+8+20+20);
 		}
@@ -638,6 +650,9 @@ public class PullMetaDataConnection implements Selectable {
 				processInput();
 		} while(bytesRead > 0 && !isState(STATE_CLOSED));
 		
+		if(isState(STATE_CLOSED))
+			releaseInputBuffer();
+		
 
 		
 		
@@ -655,27 +670,55 @@ public class PullMetaDataConnection implements Selectable {
 			if(idx < 0)
 				break;
 			
-			Map<String,Object> req = new HashMap<>();
-			req.put("msg_type", 0);
-			req.put("piece", idx);
-			
-			BEncoder encoder = new BEncoder();
-			ByteBuffer body = encoder.encode(req, 512);
-			ByteBuffer header = ByteBuffer.allocate(BT_HEADER_LENGTH + 1 + 1);
-			header.putInt(2 + body.remaining());
-			header.put((byte) LTEP_HEADER_ID);
-			header.put((byte) ltepRemoteMetadataExchangeMessageId);
-			header.flip();
-			
 			outstandingRequests++;
 			
-			outputBuffers.addLast(header);
-			outputBuffers.addLast(body);
+			outputBuffers.addLast(encodePieceRequest(ltepRemoteMetadataExchangeMessageId, idx));
 		}
 		
 		canWriteEvent();
 	}
 	
+	static ByteBuffer encodePieceRequest(int remoteMsgId, int piece) {
+		ByteBuffer buf = ByteBuffer.allocate(MAX_PIECE_REQUEST_LENGTH);
+		buf.position(BT_HEADER_LENGTH);
+		buf.put((byte) LTEP_HEADER_ID);
+		buf.put((byte) remoteMsgId);
+		buf.put(PIECE_REQUEST_PREFIX);
+		
+		// piece indices are non-negative
+		int digits = 1;
+		for(int i = piece; i >= 10; i /= 10)
+			digits++;
+		for(int i = digits - 1, v = piece; i >= 0; i--, v /= 10)
+			buf.put(buf.position() + i, (byte) ('0' + v % 10));
+		buf.position(buf.position() + digits);
+		
+		buf.put(PIECE_REQUEST_SUFFIX);
+		buf.flip();
+		buf.putInt(0, buf.limit() - BT_HEADER_LENGTH);
+		return buf;
+	}
+	
+	static ByteBuffer acquireInputBuffer() {
+		ByteBuffer buf = inputBufferPool.get().pollLast();
+		if(buf == null)
+			return ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+		buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * must only be called from the selector thread once the connection is closed
+	 */
+	void releaseInputBuffer() {
+		if(inputBuffer == null)
+			return;
+		ArrayDeque<ByteBuffer> pool = inputBufferPool.get();
+		if(pool.size() < MAX_POOLED_INPUT_BUFFERS)
+			pool.addLast(inputBuffer);
+		inputBuffer = null;
+	}
+	
 	void checkMetaRequests() throws IOException {
 		if(pool == null)
 			return;
@@ -684,6 +727,8 @@ public class PullMetaDataConnection implements Selectable {
 		
 		if(pool.status != Completion.PROGRESS)
 			terminate("meta data exchange finished or failed");
+		else if(pool.isBanned(this))
+			terminate("sent metadata that failed the hash check");
 	}
 
 
@@ -696,7 +741,10 @@ public class PullMetaDataConnection implements Selectable {
 					outputBuffers.removeFirst();
 					continue;
 				}
-				long written = channel.write(outputBuffers.toArray(new ByteBuffer[outputBuffers.size()]));
+				int count = outputBuffers.size();
+				if(gatherBuffers.length < count)
+					gatherBuffers = new ByteBuffer[Integer.highestOneBit(count) << 1];
+				long written = channel.write(outputBuffers.toArray(gatherBuffers), 0, count);
 				if(written == 0) {
 					// socket buffer full, update selector
 					connManager.interestOpsChanged(this);
@@ -715,6 +763,12 @@ public class PullMetaDataConnection implements Selectable {
 	}
 	
 	public void doStateChecks(long now) throws IOException {
+		if(isState(STATE_CLOSED)) {
+			// last check before the connection manager drops us
+			releaseInputBuffer();
+			return;
+		}
+		
 		// connections sharing a pool might get stalled if no more requests are left
 		doMetaRequests();
 		// hash check may have finished or failed due to other pool members
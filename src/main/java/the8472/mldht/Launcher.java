@@ -71,10 +71,22 @@ public class Launcher {
 
         int port;
         boolean multihoming;
+        int receiveSockets;
+        boolean fixedSizeThrottle;
+        boolean adaptiveConcurrency;
+        boolean offHeapPeerStore;
+        boolean persistAnnounces;
+        boolean sipHashTokens;
 
         void update() {
             port = configReader.getLong("//core/port").orElse(49001L).intValue();
             multihoming = configReader.getBoolean("//core/multihoming").orElse(true);
+            receiveSockets = configReader.getLong("//core/receiveSockets").orElse(1L).intValue();
+            fixedSizeThrottle = configReader.getBoolean("//core/fixedSizeThrottle").orElse(false);
+            adaptiveConcurrency = configReader.getBoolean("//core/adaptiveConcurrency").orElse(false);
+            offHeapPeerStore = configReader.getBoolean("//core/offHeapPeerStore").orElse(false);
+            persistAnnounces = configReader.getBoolean("//core/persistAnnounces").orElse(false);
+            sipHashTokens = configReader.getBoolean("//core/sipHashTokens").orElse(false);
         }
 
 
@@ -102,6 +114,36 @@ public class Launcher {
         public boolean allowMultiHoming() {
             return multihoming;
         }
+
+        @Override
+        public int getReceiveSocketCount() {
+            return receiveSockets;
+        }
+
+        @Override
+        public boolean useFixedSizeThrottle() {
+            return fixedSizeThrottle;
+        }
+
+        @Override
+        public boolean useAdaptiveConcurrency() {
+            return adaptiveConcurrency;
+        }
+
+        @Override
+        public boolean useOffHeapPeerStore() {
+            return offHeapPeerStore;
+        }
+
+        @Override
+        public boolean isPersistingAnnounces() {
+            return persistAnnounces;
+        }
+
+        @Override
+        public boolean useSipHashTokens() {
+            return sipHashTokens;
+        }
     }
 
     XmlConfig config = new XmlConfig();
@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,7 +29,6 @@ import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -71,6 +71,9 @@ public class TorrentFetcher {
 
     List<FetchTask> tasks = new ArrayList<>();
 
+    static final long DEMAND_HALF_LIFE = TimeUnit.MINUTES.toMillis(10);
+    static final double DEMAND_MIN_RECENCY = 0.1;
+
     int maxOpen = 10;
     int maxSockets = 1000;
     int maxIncoming = 0;
@@ -162,6 +165,15 @@ public class TorrentFetcher {
         return socketsIncludingHalfOpen.get();
     }
 
+    /**
+     * @return number of fetch tasks that are still waiting for their DHT lookups to be started
+     */
+    public int pendingLookups() {
+        synchronized (this) {
+            return (int) tasks.stream().filter(t -> !t.dhtStarted).count();
+        }
+    }
+
     boolean socketLimitsReached() {
         return openConnections.get() > maxOpen || socketsIncludingHalfOpen.get() > maxSockets;
     }
@@ -215,24 +227,27 @@ public class TorrentFetcher {
 
 
             synchronized (this) {
+                long now = System.currentTimeMillis();
+                double bestScore = -1;
                 Key bestDistance = Key.MIN_KEY;
 
-                if (ThreadLocalRandom.current().nextFloat() < 0.05) {
-                    best = tasks.stream().filter(t -> !t.dhtStarted).findFirst().orElse(null);
-                } else {
-                    for (FetchTask t : tasks) {
-                        if (t.dhtStarted)
-                            continue;
+                for (FetchTask t : tasks) {
+                    if (t.dhtStarted)
+                        continue;
 
-                        Key dist = servers.stream().flatMap(s -> activeLookups.getOrDefault(s, Collections.emptySet()).stream()).map(k -> t.hash.distance(k)).min(Comparator.naturalOrder()).orElse(Key.MAX_KEY);
+                    // quantized so that similar tasks still get spread across the keyspace
+                    double score = Math.floor(t.score(now) * 4);
+                    if (score < bestScore)
+                        continue;
 
-                        if (bestDistance.compareTo(dist) <= 0) {
-                            best = t;
-                            bestDistance = dist;
-                        }
+                    // among equally scored tasks pick the one which maximizes the distance to the lookups running on those servers
+                    Key dist = servers.stream().flatMap(s -> activeLookups.getOrDefault(s, Collections.emptySet()).stream()).map(k -> t.hash.distance(k)).min(Comparator.naturalOrder()).orElse(Key.MAX_KEY);
 
+                    if (score > bestScore || bestDistance.compareTo(dist) <= 0) {
+                        best = t;
+                        bestScore = score;
+                        bestDistance = dist;
                     }
-
                 }
 
             }
@@ -246,19 +261,25 @@ public class TorrentFetcher {
     }
 
     void startConnections() {
-        int offset = ThreadLocalRandom.current().nextInt(tasks.size());
+        long now = System.currentTimeMillis();
 
-        for (int i = 0; i < tasks.size(); i++) {
-            int idx = Math.floorMod(i + offset, tasks.size());
+        // snapshot the scores, they change while connections are being opened
+        List<Map.Entry<FetchTask, Double>> ranked = tasks.stream().map(t -> new AbstractMap.SimpleEntry<>(t, t.score(now))).collect(Collectors.toList());
+        ranked.sort(Map.Entry.<FetchTask, Double>comparingByValue().reversed());
 
+        for (Map.Entry<FetchTask, Double> e : ranked) {
             if (socketLimitsReached())
                 break;
 
-            tasks.get(idx).connections();
+            e.getKey().connections();
         }
 
     }
 
+    static double log2(double v) {
+        return Math.log(v) / Math.log(2);
+    }
+
 
     public enum FetchState {
         PENDING,
@@ -283,8 +304,32 @@ public class TorrentFetcher {
 
         boolean dhtStarted;
 
+        // distinct sources that asked for the infohash and when the last one did, see setDemand
+        volatile int demand = 1;
+        volatile long lastDemand = System.currentTimeMillis();
+
         FetchState state = FetchState.PENDING;
 
+        /**
+         * @param sources number of distinct source addresses that requested or announced the infohash
+         * @param lastSeen time of the most recent request or announce
+         */
+        public void setDemand(int sources, long lastSeen) {
+            demand = Math.max(1, sources);
+            lastDemand = lastSeen;
+        }
+
+        /**
+         * higher means the task is more likely to yield metadata per socket spent on it.
+         * grows with demand and known candidate peers, decays with time since the last demand and with fruitless connection attempts
+         */
+        double score(long now) {
+            double recency = Math.max(DEMAND_MIN_RECENCY, Math.pow(0.5, Math.max(0, now - lastDemand) / (double) DEMAND_HALF_LIFE));
+            double peers = log2(2 + candidates.size());
+            double attempts = 1 + attemptedCount() / 20.0;
+            return (1 + log2(demand)) * recency * peers / attempts;
+        }
+
         public CompletionStage<FetchTask> awaitCompletion() {
             return future;
         }
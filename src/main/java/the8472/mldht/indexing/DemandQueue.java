@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.indexing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import the8472.mldht.indexing.TorrentDumper.FetchStats;
+
+/**
+ * Bounded set of fetch candidates ordered by observed demand, i.e. the number of distinct sources that asked for a hash.
+ * Within a demand level candidates are handed out oldest first. When full the oldest candidate of the lowest level is evicted.
+ *
+ * Not thread-safe.
+ */
+class DemandQueue {
+
+	static final int MAX_LEVEL = 8;
+
+	final int capacity;
+	final Map<Key, FetchStats> entries = new HashMap<>();
+	final List<LinkedHashSet<Key>> levels = new ArrayList<>();
+	long evicted;
+
+	DemandQueue(int capacity) {
+		this.capacity = capacity;
+		for(int i=0;i<MAX_LEVEL;i++)
+			levels.add(new LinkedHashSet<>());
+	}
+
+	static int level(FetchStats st) {
+		return Math.min(st.insertCount, MAX_LEVEL) - 1;
+	}
+
+	/**
+	 * records demand for a hash, adding it as a new candidate if necessary
+	 *
+	 * @return true if the hash was not queued before
+	 */
+	boolean offer(Key k, KBucketEntry source) {
+		FetchStats existing = entries.get(k);
+		if(existing != null) {
+			// repeated requests from the same node don't count as additional demand
+			if(existing.recentSources.stream().anyMatch(e -> e.getAddress().getAddress().equals(source.getAddress().getAddress())))
+				return false;
+			int oldLevel = level(existing);
+			existing.insertCount++;
+			existing.recentSources.add(source);
+			if(existing.recentSources.size() > FetchStats.max_entries)
+				existing.recentSources.remove(0);
+			int newLevel = level(existing);
+			if(newLevel != oldLevel) {
+				levels.get(oldLevel).remove(k);
+				levels.get(newLevel).add(k);
+			}
+			return false;
+		}
+
+		if(entries.size() >= capacity)
+			evict();
+
+		FetchStats st = new FetchStats(k, init -> {
+			init.recentSources = new ArrayList<>();
+			init.recentSources.add(source);
+			init.insertCount = 1;
+			init.creationTime = System.currentTimeMillis();
+		});
+		entries.put(k, st);
+		levels.get(level(st)).add(k);
+		return true;
+	}
+
+	void evict() {
+		for(LinkedHashSet<Key> level : levels) {
+			Iterator<Key> it = level.iterator();
+			if(!it.hasNext())
+				continue;
+			Key k = it.next();
+			it.remove();
+			entries.remove(k);
+			evicted++;
+			return;
+		}
+	}
+
+	/**
+	 * @return the oldest candidate with the highest demand or null
+	 */
+	FetchStats poll() {
+		for(int i=levels.size()-1;i>=0;i--) {
+			Iterator<Key> it = levels.get(i).iterator();
+			if(!it.hasNext())
+				continue;
+			Key k = it.next();
+			it.remove();
+			return entries.remove(k);
+		}
+		return null;
+	}
+
+	boolean contains(Key k) {
+		return entries.containsKey(k);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+}
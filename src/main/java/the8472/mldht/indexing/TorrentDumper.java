@@ -42,6 +42,7 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
@@ -64,12 +65,40 @@ public class TorrentDumper implements Component {
 //    Path torrentDir = storageDir.resolve("torrents");
 
     private static final int MAX_STAT_FILE_SIZE = 8 * 1024;
-    private static final int QUOTA = 100_000;
+    // pipeline bounds: incoming messages awaiting the dedup stage, candidates awaiting dispatch, recently dispatched hashes
+    static final int INGEST_CAPACITY = 16 * 1024;
+    static final int MAX_CANDIDATES = 100_000;
+    static final int RECENT_CAPACITY = 50_000;
+    // fetch tasks that haven't started their DHT lookups yet
+    static final int MAX_FETCHER_BACKLOG = 32;
 
     ScheduledThreadPoolExecutor scheduler;
 
-    ConcurrentSkipListMap<Key, FetchStats> fromMessages;
-    AtomicInteger quota = new AtomicInteger(QUOTA);
+    static final class Sighting {
+        final DHT dht;
+        final MessageBase msg;
+
+        Sighting(DHT dht, MessageBase msg) {
+            this.dht = dht;
+            this.msg = msg;
+        }
+    }
+
+    final BlockingQueue<Sighting> ingest = new ArrayBlockingQueue<>(INGEST_CAPACITY);
+    // guarded by itself
+    final DemandQueue candidates = new DemandQueue(MAX_CANDIDATES);
+    // guarded by candidates
+    final Set<Key> recentlyDispatched = Collections.newSetFromMap(new LinkedHashMap<Key, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > RECENT_CAPACITY;
+        }
+    });
+
+    final AtomicLong ingestDropped = new AtomicLong();
+    long alreadyKnown;
+    final AtomicLong dispatched = new AtomicLong();
+    final AtomicLong backpressured = new AtomicLong();
 
     ConcurrentMap<InetAddress, Long> blocklist = new ConcurrentHashMap<>();
 
@@ -196,7 +225,6 @@ public class TorrentDumper implements Component {
     @Override
     public void start(Collection<DHT> dhts, ConfigReader config) {
         this.dhts = dhts;
-        fromMessages = new ConcurrentSkipListMap<>();
         downloadedFilter = new RotatingBloomFilter(512 * 1024, 0.001f);
         downloadedFilter.setAutoRotate(true);
         // purge + dump + prefetch + short-running tasks -> 4
@@ -220,10 +248,11 @@ public class TorrentDumper implements Component {
 
         // XXX: fetcher.setPeerFilter(pf); // filter seems overly aggressive. investigate if we still need it or can improve it
 
-        //scheduler.scheduleWithFixedDelay(singleThreadedDumpStats, 10, 1, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(singleThreadedDrain, 100, 100, TimeUnit.MILLISECONDS);
         scheduler.scheduleWithFixedDelay(singleThreadedPrefetch, 30, 1, TimeUnit.SECONDS);
         scheduler.scheduleWithFixedDelay(singleThreadedFetches, 10, 1, TimeUnit.SECONDS);
         scheduler.scheduleWithFixedDelay(this::cleanBlocklist, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(this::logPipelineStats, 1, 1, TimeUnit.MINUTES);
         //scheduler.scheduleWithFixedDelay(this::diagnostics, 30, 30, TimeUnit.SECONDS);
         scheduler.scheduleWithFixedDelay(this::scrubActive, 10, 20, TimeUnit.SECONDS);
         scheduler.scheduleWithFixedDelay(pf::clean, 10, 10, TimeUnit.MINUTES);
@@ -273,7 +302,25 @@ public class TorrentDumper implements Component {
         });
     }
 
+    /**
+     * called on the packet processing threads, only hands the message over to the dedup stage
+     */
     void incomingMessage(DHT d, MessageBase m) {
+        if (!(m instanceof GetPeersRequest) && !(m instanceof AnnounceRequest))
+            return;
+        if (!ingest.offer(new Sighting(d, m)))
+            ingestDropped.incrementAndGet();
+    }
+
+    final Runnable singleThreadedDrain = SerializedTaskExecutor.onceMore(this::drain);
+
+    void drain() {
+        Sighting s;
+        while ((s = ingest.poll()) != null)
+            filter(s.dht, s.msg);
+    }
+
+    void filter(DHT d, MessageBase m) {
         if (d.getMismatchDetector().isIdInconsistencyExpected(m.getOrigin(), m.getID()))
             return;
 
@@ -285,7 +332,7 @@ public class TorrentDumper implements Component {
                 return;
             Key ourId = srv.getDerivedID();
             Key target = gpr.getInfoHash();
-            if (Stream.of(theirID, ourId, target).distinct().count() != 3)
+            if (theirID.equals(ourId) || theirID.equals(target) || ourId.equals(target))
                 return;
             int myCloseness = ourId.distance(target).leadingOneBit();
             int theirCloseness = theirID.distance(target).leadingOneBit();
@@ -299,116 +346,33 @@ public class TorrentDumper implements Component {
         }
     }
 
+    /**
+     * dedup stage. drops hashes we already have or recently tried, everything else counts as demand for that hash
+     */
     void process(Key targetId, Key sourceNodeId, InetSocketAddress src, String name) {
-        if (quota.get() < 1)
-            return;
-        if (downloadedFilter.contains(targetId.asBuffer())) {
-            return;
+        boolean downloaded;
+        synchronized (downloadedFilter) {
+            downloaded = downloadedFilter.contains(targetId.asBuffer());
         }
 
-        FetchStats f = new FetchStats(targetId, init -> {
-            init.recentSources = new ArrayList<>();
-            init.recentSources.add(new KBucketEntry(src, sourceNodeId));
-            init.insertCount = 1;
-            init.creationTime = System.currentTimeMillis();
-        });
-
-        // if there are bursts, only take the first one
-        if (fromMessages.putIfAbsent(targetId, f) == null) {
-            int newquota = quota.decrementAndGet();
-            if (newquota == QUOTA >> 1)
-                scheduler.execute(singleThreadedDumpStats);
+        synchronized (candidates) {
+            if (downloaded || recentlyDispatched.contains(targetId)) {
+                alreadyKnown++;
+                return;
+            }
+            candidates.offer(targetId, new KBucketEntry(src, sourceNodeId));
         }
     }
 
-    final Runnable singleThreadedDumpStats = SerializedTaskExecutor.onceMore(this::dumpStats);
-
-    void dumpStats() {
-        long now = System.currentTimeMillis();
-
-        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_STAT_FILE_SIZE);
-
-        List<Entry<Key, FetchStats>> workSet = new ArrayList<>();
-
-        for (Iterator<Entry<Key, FetchStats>> it = fromMessages.entrySet().iterator(); it.hasNext(); ) {
-            Entry<Key, FetchStats> e = it.next();
-            FetchStats toStore = e.getValue();
-            if (torrentExists(toStore)) {
-                synchronized (downloadedFilter) {
-                    downloadedFilter.insert(e.getKey().asBuffer());
-                }
-                it.remove();
-                continue;
-            }
-            workSet.add(e);
+    public String pipelineStats() {
+        synchronized (candidates) {
+            return String.format("ingest: %d queued %d dropped; candidates: %d queued %d evicted %d known; dispatch: %d started %d deferred by fetcher backlog",
+                    ingest.size(), ingestDropped.get(), candidates.size(), candidates.evicted, alreadyKnown, dispatched.get(), backpressured.get());
         }
+    }
 
-        workSet.forEach((entry) -> {
-            Key k = entry.getKey();
-            FetchStats toStore = entry.getValue();
-            if (!fromMessages.remove(k, toStore))
-                return;
-            try {
-                // 不再保存状态
-//                Optional<Path> existing = Stream.of(toStore.statsName(statsDir, FetchStats.State.INITIAL), toStore.statsName(statsDir, FetchStats.State.FAILED), toStore.statsName(statsDir, FetchStats.State.PRIORITY)).filter(Files::isRegularFile).findFirst();
-//                if (!existing.isPresent()) {
-//                    // only throttle IPs for new hashes we don't already know about and wouldn't try anyway
-//                    if (activeCount.get() > 50 && blocklist.putIfAbsent(toStore.recentSources.get(0).getAddress().getAddress(), now) != null)
-//                        return;
-//                }
-//                if (existing.isPresent()) {
-//                    Path p = existing.get();
-//                    try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
-//                        buf.clear();
-//                        while (ch.read(buf) != -1) ;
-//                        buf.flip();
-//                        FetchStats old = FetchStats.fromBencoded(new BDecoder().decode(buf));
-//
-//                        Collection<InetAddress> oldAddrs = old.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
-//                        Collection<InetAddress> newAddrs = toStore.recentSources.stream().map(e -> e.getAddress().getAddress()).collect(Collectors.toList());
-//
-//                        // avoid double-taps promoting things to the priority list
-//                        if (oldAddrs.containsAll(newAddrs) && old.state == FetchStats.State.INITIAL)
-//                            return;
-//
-//                        toStore.merge(old);
-//
-//                        if (old.state != FetchStats.State.INITIAL)
-//                            toStore.state = old.state;
-//
-//                    } catch (IOException e) {
-//                        log(e);
-//                    }
-//                }
-//
-//                if (toStore.state == State.INITIAL && toStore.insertCount > 1) {
-//                    toStore.state = State.PRIORITY;
-//                    if (existing.isPresent())
-//                        Files.deleteIfExists(existing.get());
-//                }
-//
-//
-//                Path statsFile = toStore.statsName(statsDir, null);
-//
-//                Path tempFile = Files.createTempFile(statsDir, statsFile.getFileName().toString(), ".stats");
-//
-//                try (FileChannel ch = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
-//                    buf.clear();
-//                    new BEncoder().encodeInto(toStore.forBencoding(), buf);
-//                    while (buf.hasRemaining())
-//                        ch.write(buf);
-//                    ch.close();
-//                    Files.createDirectories(statsFile.getParent());
-//                    Files.move(tempFile, statsFile, StandardCopyOption.ATOMIC_MOVE);
-//                } catch (Exception ex) {
-//                    Files.deleteIfExists(tempFile);
-//                    throw ex;
-//                }
-            } catch (Exception e) {
-                log(e);
-            }
-        });
-        quota.set(QUOTA);
+    void logPipelineStats() {
+        DHT.logInfo("TorrentDumper " + pipelineStats());
     }
 
     /**
@@ -609,24 +573,27 @@ public class TorrentDumper implements Component {
             }
             int remaining = strides * 8 - added[0];
 
-            // if we have not found enough stats on the filesystem steal directly from the unprocessed incoming messages
-            for (Iterator<Entry<Key, FetchStats>> it = fromMessages.subMap(Key.createRandomKey(), true, Key.MAX_KEY, true).entrySet().iterator(); it.hasNext(); ) {
-                if (remaining <= 0)
+            // if we have not found enough stats on the filesystem take the most demanded candidates
+            while (remaining > 0) {
+                FetchStats st;
+                synchronized (candidates) {
+                    st = candidates.poll();
+                    if (st != null)
+                        recentlyDispatched.add(st.getK());
+                }
+                if (st == null)
                     break;
-                Map.Entry<Key, FetchStats> e = it.next();
-                if (dedup.contains(e.getKey()))
+                if (dedup.contains(st.getK()))
                     continue;
-                if (!fromMessages.remove(e.getKey(), e.getValue()))
-                    continue;
-                if (torrentExists(e.getValue())) {
+                if (torrentExists(st)) {
                     synchronized (downloadedFilter) {
-                        downloadedFilter.insert(e.getKey().asBuffer());
+                        downloadedFilter.insert(st.getK().asBuffer());
                     }
                     continue;
                 }
-                dedup.add(e.getKey());
+                dedup.add(st.getK());
                 synchronized (toFetchNext) {
-                    toFetchNext.add(e.getValue());
+                    toFetchNext.add(st);
                 }
                 remaining--;
             }
@@ -642,6 +609,11 @@ public class TorrentDumper implements Component {
         scheduler.execute(singleThreadedPrefetch);
         int max = maxFetches();
         while (activeCount.get() < max) {
+            // don't pile up tasks the fetcher can't get to yet, they'd only tie up memory and go stale
+            if (fetcher.pendingLookups() >= MAX_FETCHER_BACKLOG) {
+                backpressured.incrementAndGet();
+                return;
+            }
             FetchStats st;
             synchronized (toFetchNext) {
                 st = toFetchNext.poll();
@@ -696,7 +668,9 @@ public class TorrentDumper implements Component {
         Key k = stats.getK();
         if (activeTasks.containsKey(k))
             return;
+        long lastSeen = stats.recentSources.stream().mapToLong(KBucketEntry::getLastSeen).max().orElse(System.currentTimeMillis());
         FetchTask t = fetcher.fetch(k, (fetch) -> {
+            fetch.setDemand(stats.insertCount, lastSeen);
             fetch.configureLookup(lookup -> {
                 // fast termination seems to bail out too early sometimes. keep an eye on it
                 lookup.setFastTerminate(true);
@@ -705,6 +679,7 @@ public class TorrentDumper implements Component {
             });
         });
         activeCount.incrementAndGet();
+        dispatched.incrementAndGet();
         activeTasks.put(k, t);
         t.awaitCompletion().thenRunAsync(() -> {
             taskFinished(stats, t);
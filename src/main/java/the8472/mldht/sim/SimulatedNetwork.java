@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.sim;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.PacketTransport;
+import lbms.plugins.mldht.kad.utils.AddressUtils;
+
+/**
+ * In-memory packet switch connecting any number of {@link Host}s, each of which acts as the {@link PacketTransport} of one DHT.
+ *
+ * Packets are copied on send and delivered after a configurable one-way latency unless they are lost or rejected by the
+ * NAT of the receiving host. Randomness is seeded, but thread scheduling still makes runs statistically rather than
+ * bit-for-bit reproducible.
+ */
+public class SimulatedNetwork {
+
+	public enum NatType {
+		/** directly reachable */
+		NONE,
+		/** inbound packets are only accepted from IPs the host has recently sent to */
+		ADDRESS_RESTRICTED,
+		/** inbound packets are only accepted from ip:port pairs the host has recently sent to */
+		PORT_RESTRICTED,
+		/** port-restricted, plus a different external port for every destination */
+		SYMMETRIC
+	}
+
+	final ScheduledExecutorService scheduler;
+	final Random rnd;
+	final Map<InetAddress, Host> hosts = new ConcurrentHashMap<>();
+	final AtomicInteger nextAddress = new AtomicInteger();
+
+	volatile int latencyMillis = 50;
+	volatile int jitterMillis = 25;
+	volatile double lossRate = 0.01;
+	volatile long natTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong delivered = new AtomicLong();
+	final AtomicLong lost = new AtomicLong();
+	final AtomicLong filtered = new AtomicLong();
+	final AtomicLong unroutable = new AtomicLong();
+
+	public SimulatedNetwork(ScheduledExecutorService scheduler, long seed) {
+		this.scheduler = scheduler;
+		this.rnd = new Random(seed);
+	}
+
+	public SimulatedNetwork setLatency(int latencyMillis, int jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	public SimulatedNetwork setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+		return this;
+	}
+
+	public SimulatedNetwork setNatTimeout(long timeout, TimeUnit unit) {
+		this.natTimeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * @return a host with a fresh, globally routable looking IPv4 address
+	 */
+	public Host addHost(NatType nat) {
+		while(true) {
+			// start at 20.0.0.1, skip anything the DHT would consider a bogon
+			int raw = 0x14000000 + nextAddress.incrementAndGet();
+			byte[] ip = {(byte) (raw >>> 24), (byte) (raw >>> 16), (byte) (raw >>> 8), (byte) raw};
+			InetAddress addr;
+			try {
+				addr = InetAddress.getByAddress(ip);
+			} catch (UnknownHostException e) {
+				throw new RuntimeException(e);
+			}
+			if(ip[3] == 0 || ip[3] == (byte) 0xff || AddressUtils.isBogon(addr, 1))
+				continue;
+			Host h = new Host(addr, nat);
+			hosts.put(addr, h);
+			return h;
+		}
+	}
+
+	int nextLatency() {
+		int jitter = jitterMillis;
+		synchronized (rnd) {
+			return latencyMillis + (jitter > 0 ? rnd.nextInt(jitter + 1) : 0);
+		}
+	}
+
+	boolean nextLost() {
+		double rate = lossRate;
+		if(rate <= 0)
+			return false;
+		synchronized (rnd) {
+			return rnd.nextDouble() < rate;
+		}
+	}
+
+	void route(InetSocketAddress from, InetSocketAddress to, ByteBuffer packet) {
+		sent.incrementAndGet();
+		if(nextLost()) {
+			lost.incrementAndGet();
+			return;
+		}
+
+		scheduler.schedule(() -> {
+			Host h = hosts.get(to.getAddress());
+			Host.Binding b = h != null ? h.binding : null;
+			if(b == null) {
+				unroutable.incrementAndGet();
+				return;
+			}
+			if(!h.admits(from, to.getPort())) {
+				filtered.incrementAndGet();
+				return;
+			}
+			delivered.incrementAndGet();
+			try {
+				b.receiver.received(packet, from);
+			} catch(RuntimeException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}, nextLatency(), TimeUnit.MILLISECONDS);
+	}
+
+	public String stats() {
+		return "packets sent:" + sent.get() + " delivered:" + delivered.get() + " lost:" + lost.get() + " filtered by NAT:" + filtered.get() + " unroutable:" + unroutable.get();
+	}
+
+	public class Host implements PacketTransport {
+
+		final InetAddress address;
+		final NatType nat;
+		// NAT state: outbound destination -> [external port, last use]
+		final Map<InetSocketAddress, long[]> mappings = new ConcurrentHashMap<>();
+		final Map<InetAddress, Long> contactedIPs = new ConcurrentHashMap<>();
+		final AtomicInteger nextExternalPort = new AtomicInteger(20000);
+		volatile Binding binding;
+
+		Host(InetAddress address, NatType nat) {
+			this.address = address;
+			this.nat = nat;
+		}
+
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		public NatType getNatType() {
+			return nat;
+		}
+
+		@Override
+		public List<InetAddress> localAddresses(DHTtype type) {
+			return type == DHTtype.IPV4_DHT ? Collections.singletonList(address) : Collections.emptyList();
+		}
+
+		@Override
+		public Endpoint bind(InetSocketAddress local, Receiver receiver) throws IOException {
+			if(!address.equals(local.getAddress()) || !(local.getAddress() instanceof Inet4Address))
+				throw new BindException("cannot bind " + local + " on simulated host " + address);
+			synchronized (this) {
+				if(binding != null)
+					throw new BindException("address already in use " + local);
+				binding = new Binding(local.getPort(), receiver);
+				return binding;
+			}
+		}
+
+		/**
+		 * @return the source address as seen by the destination
+		 */
+		InetSocketAddress outbound(int localPort, InetSocketAddress destination) {
+			if(nat == NatType.NONE)
+				return new InetSocketAddress(address, localPort);
+
+			long now = System.currentTimeMillis();
+			contactedIPs.put(destination.getAddress(), now);
+			long[] mapping = mappings.compute(destination, (k, v) -> {
+				if(v == null)
+					v = new long[] {nat == NatType.SYMMETRIC ? nextExternalPort.getAndIncrement() : localPort, now};
+				v[1] = now;
+				return v;
+			});
+			return new InetSocketAddress(address, (int) mapping[0]);
+		}
+
+		boolean admits(InetSocketAddress from, int port) {
+			Binding b = binding;
+			long now = System.currentTimeMillis();
+			long timeout = natTimeoutMillis;
+
+			switch(nat) {
+				case NONE:
+					return port == b.port;
+				case ADDRESS_RESTRICTED:
+					Long lastContact = contactedIPs.get(from.getAddress());
+					return port == b.port && lastContact != null && now - lastContact < timeout;
+				case PORT_RESTRICTED:
+				case SYMMETRIC:
+					long[] mapping = mappings.get(from);
+					return mapping != null && mapping[0] == port && now - mapping[1] < timeout;
+				default:
+					throw new IllegalStateException();
+			}
+		}
+
+		class Binding implements Endpoint {
+			final int port;
+			final Receiver receiver;
+			volatile boolean closed;
+
+			Binding(int port, Receiver receiver) {
+				this.port = port;
+				this.receiver = receiver;
+			}
+
+			@Override
+			public void send(ByteBuffer packet, InetSocketAddress destination) throws IOException {
+				if(closed)
+					throw new IOException("endpoint closed");
+				ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+				copy.put(packet);
+				copy.flip();
+				route(outbound(port, destination), destination, copy.asReadOnlyBuffer());
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+				synchronized (Host.this) {
+					if(binding == this)
+						binding = null;
+				}
+			}
+		}
+
+	}
+
+}
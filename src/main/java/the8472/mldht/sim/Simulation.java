@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.sim;
+
+import static the8472.mldht.cli.ParseArgs.extractBool;
+import static the8472.mldht.cli.ParseArgs.extractString;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PacketTransport;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.tasks.AnnounceTask;
+import lbms.plugins.mldht.kad.tasks.NodeLookup;
+import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
+import the8472.mldht.sim.SimulatedNetwork.Host;
+import the8472.mldht.sim.SimulatedNetwork.NatType;
+
+/**
+ * Boots a population of DHT nodes on a {@link SimulatedNetwork}, announces a set of torrents and then measures
+ * get_peers lookups against them.
+ *
+ * <pre>
+ * java -cp ... the8472.mldht.sim.Simulation [-nodes 1000] [-nat 0.2] [-latency 50] [-jitter 25] [-loss 0.01]
+ *     [-warmup 60] [-bootstrap 2] [-torrents 50] [-announcers 8] [-lookups 500] [-parallel 32] [-threads n] [-seed 1] [-adaptive] [-log Fatal]
+ * </pre>
+ */
+public class Simulation {
+
+	static final int PORT = 49001;
+
+	static class Config implements DHTConfiguration {
+		final Host host;
+		final boolean adaptive;
+
+		Config(Host host, boolean adaptive) {
+			this.host = host;
+			this.adaptive = adaptive;
+		}
+
+		@Override
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		@Override
+		public Path getStoragePath() {
+			// nonexistent, disables routing table persistence
+			return Paths.get("simulation-no-storage");
+		}
+
+		@Override
+		public int getListeningPort() {
+			return PORT;
+		}
+
+		@Override
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		@Override
+		public boolean allowMultiHoming() {
+			return false;
+		}
+
+		@Override
+		public PacketTransport getTransport() {
+			return host;
+		}
+
+		@Override
+		public boolean useAdaptiveConcurrency() {
+			return adaptive;
+		}
+	}
+
+	int nodeCount = 1000;
+	double natFraction = 0.2;
+	int warmupSeconds = 60;
+	int bootstrapRounds = 2;
+	int torrents = 50;
+	int announcers = 8;
+	int lookups = 500;
+	int parallel = 32;
+	long seed = 1;
+	boolean adaptive;
+
+	final ScheduledThreadPoolExecutor scheduler;
+	final SimulatedNetwork net;
+	final Random rnd;
+	final List<DHT> nodes = new ArrayList<>();
+	final List<Host> reachable = new ArrayList<>();
+
+	// sorted results of the last boot and lookup phases
+	int[] tableSizes;
+	int[] hopCounts;
+
+	Simulation(List<String> args) {
+		extractString(args, "-nodes").map(Integer::parseInt).ifPresent(v -> nodeCount = v);
+		extractString(args, "-nat").map(Double::parseDouble).ifPresent(v -> natFraction = v);
+		extractString(args, "-warmup").map(Integer::parseInt).ifPresent(v -> warmupSeconds = v);
+		extractString(args, "-bootstrap").map(Integer::parseInt).ifPresent(v -> bootstrapRounds = v);
+		extractString(args, "-torrents").map(Integer::parseInt).ifPresent(v -> torrents = v);
+		extractString(args, "-announcers").map(Integer::parseInt).ifPresent(v -> announcers = v);
+		extractString(args, "-lookups").map(Integer::parseInt).ifPresent(v -> lookups = v);
+		extractString(args, "-parallel").map(Integer::parseInt).ifPresent(v -> parallel = v);
+		extractString(args, "-seed").map(Long::parseLong).ifPresent(v -> seed = v);
+		adaptive = extractBool(args, "-adaptive");
+		extractString(args, "-log").map(LogLevel::valueOf).ifPresent(DHT::setLogLevel);
+		int threads = extractString(args, "-threads").map(Integer::parseInt).orElse(Runtime.getRuntime().availableProcessors());
+
+		scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+			Thread t = new Thread(r, "simulation scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+
+		rnd = new Random(seed);
+		net = new SimulatedNetwork(scheduler, seed);
+		extractString(args, "-loss").map(Double::parseDouble).ifPresent(net::setLossRate);
+		int latency = extractString(args, "-latency").map(Integer::parseInt).orElse(50);
+		int jitter = extractString(args, "-jitter").map(Integer::parseInt).orElse(25);
+		net.setLatency(latency, jitter);
+
+		if(!args.isEmpty())
+			throw new IllegalArgumentException("unknown arguments: " + args);
+	}
+
+	void boot() throws Exception {
+		for(int i=0;i<nodeCount;i++) {
+			// the first node serves as bootstrap node and must be reachable
+			NatType nat = i > 0 && rnd.nextDouble() < natFraction ? NatType.PORT_RESTRICTED : NatType.NONE;
+			Host host = net.addHost(nat);
+			DHT dht = new DHT(DHTtype.IPV4_DHT);
+			dht.setScheduler(scheduler);
+			dht.start(new Config(host, adaptive));
+			nodes.add(dht);
+
+			List<Host> seeds = new ArrayList<>();
+			if(!reachable.isEmpty()) {
+				seeds.add(reachable.get(0));
+				seeds.add(reachable.get(rnd.nextInt(reachable.size())));
+			}
+			if(nat == NatType.NONE)
+				reachable.add(host);
+
+			// server startup happens asynchronously
+			scheduler.schedule(() -> {
+				for(Host s : seeds)
+					dht.addDHTNode(s.getAddress().getHostAddress(), PORT);
+			}, 1, TimeUnit.SECONDS);
+
+			if(i % 1000 == 999)
+				System.out.println("started " + (i + 1) + " nodes");
+		}
+
+		// give the seed pings time to complete
+		Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+
+		// nodes started early only know the few nodes that existed at that point and the DHT's own bootstrap
+		// won't try again for several minutes. self-lookups across the whole population make the tables converge
+		for(int i=0;i<bootstrapRounds;i++) {
+			int failed = selfLookups();
+			System.out.println("bootstrap round " + (i + 1) + " done, " + failed + " nodes had no candidates");
+		}
+
+		System.out.println("warming up for " + warmupSeconds + "s");
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+
+		tableSizes = nodes.stream().mapToInt(d -> d.getNode().table().stream().mapToInt(e -> e.getBucket().getNumEntries()).sum()).sorted().toArray();
+		System.out.println("routing table entries p10/p50/p90: " + percentile(tableSizes, 0.1) + "/" + percentile(tableSizes, 0.5) + "/" + percentile(tableSizes, 0.9));
+	}
+
+	/**
+	 * runs a lookup for its own ID on every node and then fills the remaining buckets, as the DHT's regular bootstrap would
+	 *
+	 * @return number of nodes that could not start a lookup
+	 */
+	int selfLookups() throws InterruptedException {
+		Semaphore concurrency = new Semaphore(parallel);
+		CountDownLatch done = new CountDownLatch(nodes.size());
+		int failed = 0;
+
+		for(DHT dht : nodes) {
+			RPCServer srv = dht.getServerManager().getRandomActiveServer(true);
+			// nodes that have only been contacted by others so far only know them as unverified replacements.
+			// query those too, responses are what gets nodes into the main buckets
+			List<KBucketEntry> known = dht.getNode().table().stream().flatMap(e -> Stream.concat(e.getBucket().getEntries().stream(), e.getBucket().getReplacementEntries().stream())).collect(Collectors.toList());
+			if(srv == null || known.isEmpty()) {
+				failed++;
+				done.countDown();
+				continue;
+			}
+			concurrency.acquire();
+			NodeLookup lookup = new NodeLookup(srv.getDerivedID(), srv, dht.getNode(), true);
+			lookup.setInfo("Simulation: bootstrap lookup for self");
+			lookup.injectCandidates(known);
+			lookup.addListener(t -> {
+				dht.getNode().fillBuckets();
+				concurrency.release();
+				done.countDown();
+			});
+			dht.getTaskManager().addTask(lookup, true);
+		}
+
+		done.await();
+		return failed;
+	}
+
+	List<Key> announce() throws InterruptedException {
+		List<Key> hashes = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(torrents * announcers);
+		AtomicInteger failed = new AtomicInteger();
+
+		for(int i=0;i<torrents;i++) {
+			byte[] hash = new byte[Key.SHA1_HASH_LENGTH];
+			rnd.nextBytes(hash);
+			hashes.add(new Key(hash));
+
+			for(int j=0;j<announcers;j++) {
+				DHT dht = nodes.get(rnd.nextInt(nodes.size()));
+				PeerLookupTask lookup = dht.createPeerLookup(hash);
+				if(lookup == null) {
+					failed.incrementAndGet();
+					done.countDown();
+					continue;
+				}
+				lookup.addListener(t -> {
+					AnnounceTask announce = dht.announce(lookup, false, 6881);
+					if(announce == null) {
+						failed.incrementAndGet();
+						done.countDown();
+						return;
+					}
+					announce.addListener(unused -> done.countDown());
+				});
+				dht.getTaskManager().addTask(lookup);
+			}
+		}
+
+		done.await();
+		System.out.println("announced " + torrents + " torrents from " + announcers + " nodes each, " + failed.get() + " announces could not be started");
+		return hashes;
+	}
+
+	void lookup(List<Key> hashes) throws InterruptedException {
+		Semaphore concurrency = new Semaphore(parallel);
+		CountDownLatch done = new CountDownLatch(lookups);
+		long[] latencies = new long[lookups];
+		int[] messages = new int[lookups];
+		int[] hops = new int[lookups];
+		AtomicInteger found = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+
+		for(int i=0;i<lookups;i++) {
+			concurrency.acquire();
+			int idx = i;
+			DHT dht = nodes.get(rnd.nextInt(nodes.size()));
+			Key target = hashes.get(rnd.nextInt(hashes.size()));
+			PeerLookupTask lookup = dht.createPeerLookup(target.getHash());
+			if(lookup == null) {
+				latencies[idx] = -1;
+				concurrency.release();
+				done.countDown();
+				continue;
+			}
+			lookup.setNoAnnounce(true);
+			lookup.addListener(t -> {
+				latencies[idx] = t.getFinishedTime() - t.getStartTime();
+				messages[idx] = t.getSentReqs();
+				hops[idx] = lookup.getHopCount();
+				if(!lookup.getReturnedItems().isEmpty())
+					found.incrementAndGet();
+				completed.incrementAndGet();
+				concurrency.release();
+				done.countDown();
+			});
+			dht.getTaskManager().addTask(lookup);
+		}
+
+		done.await();
+
+		long[] lat = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+		int[] msgs = Arrays.stream(messages).filter(m -> m > 0).sorted().toArray();
+		hopCounts = Arrays.stream(hops).filter(h -> h >= 0).sorted().toArray();
+
+		System.out.println("lookups completed: " + completed.get() + "/" + lookups + " found peers: " + found.get());
+		System.out.println("latency ms p50/p90/p99: " + percentile(lat, 0.5) + "/" + percentile(lat, 0.9) + "/" + percentile(lat, 0.99));
+		System.out.println("messages per lookup avg/p50/p90: " + String.format("%.1f", Arrays.stream(msgs).average().orElse(0)) + "/" + percentile(msgs, 0.5) + "/" + percentile(msgs, 0.9));
+		System.out.println("hops to closest node avg/p50/p90: " + String.format("%.2f", Arrays.stream(hopCounts).average().orElse(0)) + "/" + percentile(hopCounts, 0.5) + "/" + percentile(hopCounts, 0.9));
+	}
+
+	void shutdown() {
+		nodes.forEach(DHT::stop);
+		scheduler.shutdownNow();
+	}
+
+	static long percentile(long[] sorted, double p) {
+		if(sorted.length == 0)
+			return -1;
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	static int percentile(int[] sorted, double p) {
+		if(sorted.length == 0)
+			return -1;
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	public static void main(String[] args) throws Exception {
+		DHT.setLogLevel(LogLevel.Fatal);
+		Simulation sim = new Simulation(new ArrayList<>(Arrays.asList(args)));
+		try {
+			sim.boot();
+			List<Key> hashes = sim.announce();
+			sim.lookup(hashes);
+			System.out.println(sim.net.stats());
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+}
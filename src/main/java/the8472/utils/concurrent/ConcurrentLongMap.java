@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent map from primitive longs to objects without boxing or entry objects.
+ *
+ * Split into independently locked segments, each of which is a linear-probing open-addressing table
+ * with backward-shift deletion. Null values are not permitted, an empty slot is one with a null value.
+ *
+ * Reads are lock-free optimistic reads that are validated against the segment's {@link StampedLock} and only fall back
+ * to the read lock if a mutation raced with them. Mutations take the write lock.
+ */
+public class ConcurrentLongMap<V> {
+
+	static final int SEGMENT_BITS = 4;
+	static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+	final List<Segment<V>> segments;
+
+	public ConcurrentLongMap(int expectedSize) {
+		segments = new ArrayList<>(SEGMENTS);
+		int perSegment = Math.max(expectedSize / SEGMENTS, 4);
+		for(int i=0;i<SEGMENTS;i++)
+			segments.add(new Segment<>(perSegment));
+	}
+
+	static long mix(long key) {
+		// murmur3 finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	Segment<V> segmentFor(long hash) {
+		return segments.get((int) (hash >>> (64 - SEGMENT_BITS)));
+	}
+
+	public V get(long key) {
+		long h = mix(key);
+		return segmentFor(h).get(key, h);
+	}
+
+	/**
+	 * @return the previous value, null if the value was inserted
+	 */
+	public V putIfAbsent(long key, V value) {
+		Objects.requireNonNull(value);
+		long h = mix(key);
+		return segmentFor(h).putIfAbsent(key, h, value);
+	}
+
+	/**
+	 * removes the entry only if it is currently mapped to the given value (by identity)
+	 */
+	public boolean remove(long key, V value) {
+		long h = mix(key);
+		return segmentFor(h).remove(key, h, value);
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment<V> s : segments)
+			size += s.size;
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return point-in-time copy of the values, consistent per segment
+	 */
+	public List<V> values() {
+		List<V> out = new ArrayList<>(size());
+		for(Segment<V> s : segments)
+			s.copyValues(out);
+		return out;
+	}
+
+	static final class Segment<V> {
+		final StampedLock lock = new StampedLock();
+		long[] keys;
+		Object[] values;
+		int mask;
+		volatile int size;
+
+		Segment(int expected) {
+			int capacity = Integer.highestOneBit(Math.max(expected * 2, 8) - 1) << 1;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(long key, long hash) {
+			long stamp = lock.tryOptimisticRead();
+			if(stamp != 0) {
+				Object v = find(key, hash);
+				if(lock.validate(stamp))
+					return (V) v;
+			}
+
+			stamp = lock.readLock();
+			try {
+				return (V) find(key, hash);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * may observe a torn state when called without holding a lock, the result must be validated in that case.
+		 * bounded by the table size and derives the mask from the array it probes so that racing resizes can't cause
+		 * out of bounds accesses or endless loops
+		 */
+		Object find(long key, long hash) {
+			long[] ks = keys;
+			Object[] vals = values;
+			if(ks.length != vals.length)
+				return null;
+			int m = vals.length - 1;
+			for(int i = (int) hash & m, probes = 0;probes <= m;i = (i + 1) & m, probes++) {
+				Object v = vals[i];
+				if(v == null)
+					return null;
+				if(ks[i] == key)
+					return v;
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		V putIfAbsent(long key, long hash, V value) {
+			long stamp = lock.writeLock();
+			try {
+				int i = (int) hash & mask;
+				for(;;i = (i + 1) & mask) {
+					Object v = values[i];
+					if(v == null)
+						break;
+					if(keys[i] == key)
+						return (V) v;
+				}
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				// keep load factor <= 0.5
+				if(size * 2 > values.length)
+					resize();
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		boolean remove(long key, long hash, Object value) {
+			long stamp = lock.writeLock();
+			try {
+				return removeLocked(key, hash, value);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		boolean removeLocked(long key, long hash, Object value) {
+			int i = (int) hash & mask;
+			for(;;i = (i + 1) & mask) {
+				Object v = values[i];
+				if(v == null)
+					return false;
+				if(keys[i] == key) {
+					if(v != value)
+						return false;
+					break;
+				}
+			}
+
+			// backward-shift deletion, keeps probe sequences intact without tombstones
+			int hole = i;
+			for(int j = (hole + 1) & mask;;j = (j + 1) & mask) {
+				Object v = values[j];
+				if(v == null)
+					break;
+				int home = (int) mix(keys[j]) & mask;
+				// move j into the hole if its home slot is not within (hole, j]
+				if(((j - home) & mask) >= ((j - hole) & mask)) {
+					keys[hole] = keys[j];
+					values[hole] = v;
+					hole = j;
+				}
+			}
+			values[hole] = null;
+			keys[hole] = 0;
+			size--;
+			return true;
+		}
+
+		void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			int capacity = oldValues.length * 2;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+			for(int j=0;j<oldValues.length;j++) {
+				Object v = oldValues[j];
+				if(v == null)
+					continue;
+				int i = (int) mix(oldKeys[j]) & mask;
+				while(values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = v;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void copyValues(List<V> out) {
+			long stamp = lock.readLock();
+			try {
+				for(Object v : values)
+					if(v != null)
+						out.add((V) v);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+public class AnnounceJournalTest {
+
+	static final String PREFIX = "test";
+
+	@TempDir
+	Path dir;
+
+	List<AnnounceJournal> journals = new ArrayList<>();
+
+	@AfterEach
+	public void close() {
+		journals.forEach(AnnounceJournal::close);
+	}
+
+	static PeerAddressDBItem peer(int i, boolean seed, long createdAt) throws Exception {
+		byte[] data = PeerAddressDBItem.createFromAddress(InetAddress.getByName("93.184.216." + i), 6881, seed).getData();
+		return new PeerAddressDBItem(data, seed, createdAt);
+	}
+
+	static PeerAddressDBItem peer(int i, boolean seed) throws Exception {
+		return peer(i, seed, System.currentTimeMillis());
+	}
+
+	/**
+	 * opens a journal on the test directory and replays it into the given stores
+	 */
+	AnnounceJournal open(Database db, GenericStorage storage) throws IOException {
+		AnnounceJournal j = new AnnounceJournal(dir, PREFIX);
+		journals.add(j);
+		j.replay(db, storage);
+		return j;
+	}
+
+	static void store(AnnounceJournal j, Database db, Key k, PeerAddressDBItem item) {
+		db.store(k, item);
+		j.peerStored(k, item);
+	}
+
+	static Key put(AnnounceJournal j, GenericStorage storage, StorageItem item) {
+		// locally built items don't carry an expiration, incoming puts do
+		if(item.expirationDate == 0)
+			item.expirationDate = System.currentTimeMillis() + GenericStorage.EXPIRATION_INTERVAL_SECONDS * 1000;
+		Key k = GenericStorage.fingerprint(item.pubkey, item.salt, ByteBuffer.wrap(item.value));
+		assertEquals(GenericStorage.UpdateResult.SUCCESS, storage.putOrUpdate(k, item, -1));
+		j.itemStored(k, item);
+		return k;
+	}
+
+	static Set<String> describe(Database db) {
+		Set<String> result = new HashSet<>();
+		db.getData().forEach((k, ps) -> {
+			ps.seeds().stream().forEach(item -> result.add(k + " seed " + Arrays.toString(item.getData()) + " " + item.getCreatedAt()));
+			ps.peers().stream().forEach(item -> result.add(k + " peer " + Arrays.toString(item.getData()) + " " + item.getCreatedAt()));
+		});
+		return result;
+	}
+
+	static Set<String> describe(GenericStorage storage) {
+		Set<String> result = new HashSet<>();
+		storage.getItems().forEach((k, item) -> result.add(k + " " + Arrays.toString(item.value) + " " + item.sequenceNumber + " " + item.expirationDate));
+		return result;
+	}
+
+	@Test
+	public void compactAppendReplay() throws Exception {
+		Database db = new Database();
+		GenericStorage storage = new GenericStorage();
+		AnnounceJournal j = open(db, storage);
+
+		Key k1 = Key.createRandomKey();
+		store(j, db, k1, peer(1, false));
+		store(j, db, k1, peer(2, true));
+		put(j, storage, GenericStorage.buildImmutable("immutable"));
+
+		j.compact(db, storage);
+		assertTrue(Files.isRegularFile(dir.resolve(PREFIX + "-announces.snapshot")));
+		assertFalse(j.needsCompaction());
+
+		// after the snapshot. includes a peer that turned into a seed, the newer record has to win
+		Key k2 = Key.createRandomKey();
+		store(j, db, k2, peer(3, false));
+		store(j, db, k1, peer(1, true));
+		EdDSAPrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(new byte[32], StorageItem.spec));
+		put(j, storage, GenericStorage.buildMutable("mutable", key, "salt".getBytes(), 7));
+		j.close();
+
+		Database replayedDb = new Database();
+		GenericStorage replayedStorage = new GenericStorage();
+		AnnounceJournal reopened = open(replayedDb, replayedStorage);
+
+		assertEquals(describe(db), describe(replayedDb));
+		assertEquals(describe(storage), describe(replayedStorage));
+		assertEquals(2, replayedDb.getData().get(k1).seeds().size());
+		assertEquals(0, replayedDb.getData().get(k1).peers().size());
+
+		// a second round on the reopened journal keeps everything intact
+		Key k3 = Key.createRandomKey();
+		reopened.compact(replayedDb, replayedStorage);
+		store(reopened, replayedDb, k3, peer(4, false));
+		reopened.close();
+
+		Database thirdDb = new Database();
+		GenericStorage thirdStorage = new GenericStorage();
+		open(thirdDb, thirdStorage);
+		assertEquals(describe(replayedDb), describe(thirdDb));
+		assertEquals(describe(replayedStorage), describe(thirdStorage));
+	}
+
+	/**
+	 * writes three peer records into a fresh journal, overwrites one byte of the second record on disk and replays
+	 */
+	Database replayDamaged(int offsetInSecondRecord, byte value, boolean xor) throws Exception {
+		Database db = new Database();
+		GenericStorage storage = new GenericStorage();
+		AnnounceJournal j = open(db, storage);
+		PeerAddressDBItem first = peer(1, false);
+		for(int i=1;i<=3;i++)
+			store(j, db, Key.createRandomKey(), peer(i, false));
+		j.close();
+
+		int recordSize = AnnounceJournal.RECORD_HEADER_SIZE + AnnounceJournal.peerRecordSize(first);
+		long position = AnnounceJournal.SEGMENT_HEADER_SIZE + recordSize + offsetInSecondRecord;
+		try(FileChannel chan = FileChannel.open(dir.resolve(PREFIX + "-announces.0.journal"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer b = ByteBuffer.allocate(1);
+			chan.read(b, position);
+			b.flip();
+			b.put(0, xor ? (byte) (b.get(0) ^ value) : value);
+			chan.write(b, position);
+		}
+
+		Database replayed = new Database();
+		open(replayed, new GenericStorage());
+		return replayed;
+	}
+
+	@Test
+	public void replayStopsAtCorruptRecord() throws Exception {
+		// flip a bit in the payload, the checksum no longer matches
+		Database replayed = replayDamaged(AnnounceJournal.RECORD_HEADER_SIZE + 5, (byte) 1, true);
+		assertEquals(1, replayed.getData().size());
+	}
+
+	@Test
+	public void replayStopsAtTruncatedRecord() throws Exception {
+		// the length is written last, a record torn by a crash has none
+		Database replayed = replayDamaged(3, (byte) 0, false);
+		assertEquals(1, replayed.getData().size());
+
+		// appending resumes after the last valid record
+		journals.forEach(AnnounceJournal::close);
+		Database db = new Database();
+		GenericStorage storage = new GenericStorage();
+		AnnounceJournal j = open(db, storage);
+		Key k = Key.createRandomKey();
+		store(j, db, k, peer(9, true));
+		j.close();
+
+		Database again = new Database();
+		open(again, new GenericStorage());
+		assertTrue(again.getData().containsKey(k));
+		assertTrue(describe(again).containsAll(describe(replayed)));
+	}
+
+	@Test
+	public void expiredEntriesAreDropped() throws Exception {
+		Database db = new Database();
+		GenericStorage storage = new GenericStorage();
+		AnnounceJournal j = open(db, storage);
+		long now = System.currentTimeMillis();
+		long stale = now - DHTConstants.MAX_ITEM_AGE - 1000;
+
+		Key live = Key.createRandomKey();
+		Key expiredInSnapshot = Key.createRandomKey();
+		Key expiredInSegment = Key.createRandomKey();
+
+		store(j, db, live, peer(1, false));
+		store(j, db, expiredInSnapshot, peer(2, false, stale));
+		StorageItem liveItem = GenericStorage.buildImmutable("live");
+		Key liveItemKey = put(j, storage, liveItem);
+		StorageItem expiredItem = GenericStorage.buildImmutable("expired in snapshot");
+		expiredItem.expirationDate = now - 1;
+		put(j, storage, expiredItem);
+
+		j.compact(db, storage);
+
+		store(j, db, expiredInSegment, peer(3, true, stale));
+		StorageItem expiredSegmentItem = GenericStorage.buildImmutable("expired in segment");
+		expiredSegmentItem.expirationDate = now - 1;
+		put(j, storage, expiredSegmentItem);
+		j.close();
+
+		Database replayedDb = new Database();
+		GenericStorage replayedStorage = new GenericStorage();
+		open(replayedDb, replayedStorage);
+
+		assertEquals(new HashSet<>(Arrays.asList(live)), replayedDb.getData().keySet());
+		assertEquals(new HashSet<>(Arrays.asList(liveItemKey)), replayedStorage.getItems().keySet());
+	}
+
+}
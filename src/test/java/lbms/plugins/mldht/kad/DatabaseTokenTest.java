@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import lbms.plugins.mldht.kad.Database.TokenAlgorithm;
+
+public class DatabaseTokenTest {
+
+	@ParameterizedTest
+	@EnumSource(TokenAlgorithm.class)
+	public void tokensBindToRequestInputs(TokenAlgorithm algorithm) throws Exception {
+		Database db = new Database();
+		db.tokenAlgorithm = algorithm;
+
+		Key node = Key.createRandomKey();
+		Key infohash = Key.createRandomKey();
+
+		for(String ip : new String[] {"93.184.216.34", "2606:2800:220:1:248:1893:25c8:1946"}) {
+			InetAddress addr = InetAddress.getByName(ip);
+			byte[] token = db.genToken(node, addr, 6881, infohash);
+			assertEquals(4, token.length);
+
+			assertTrue(db.checkToken(token, node, addr, 6881, infohash));
+			// same address, parsed into a separate instance
+			assertTrue(db.checkToken(token, node, InetAddress.getByName(ip), 6881, infohash));
+
+			assertFalse(db.checkToken(token, node, addr, 6882, infohash));
+			assertFalse(db.checkToken(token, Key.createRandomKey(), addr, 6881, infohash));
+			assertFalse(db.checkToken(token, node, addr, 6881, Key.createRandomKey()));
+			assertFalse(db.checkToken(token, node, InetAddress.getByName("93.184.216.35"), 6881, infohash));
+			assertFalse(db.checkToken(null, node, addr, 6881, infohash));
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+public class NodeSnapshotTest {
+
+	ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	@AfterEach
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	static Set<Key> snapshotIds(RoutingTableSnapshot s) {
+		Set<Key> ids = new HashSet<>();
+		for(int i=0;i<s.size();i++)
+			ids.add(s.get(i).getID());
+		return ids;
+	}
+
+	static Set<Key> tableIds(Node node) {
+		Set<Key> ids = new HashSet<>();
+		node.table().stream().forEach(e -> e.getBucket().entriesStream().forEach(be -> ids.add(be.getID())));
+		return ids;
+	}
+
+	@Test
+	public void snapshotFollowsMerges() {
+		DHT dht = new DHT(DHTtype.IPV4_DHT);
+		dht.setScheduler(scheduler);
+		Node node = new Node(dht);
+		node.initKey(null);
+		node.registerId();
+
+		List<KBucketEntry> inserted = new ArrayList<>();
+		for(int i=0;i<DHTConstants.MAX_ENTRIES_PER_BUCKET + 1;i++) {
+			// split evenly on the first bit so that a single split suffices
+			byte[] id = Key.createRandomKey().getHash();
+			id[0] = (byte) (i % 2 == 0 ? 0x00 : 0x80);
+			KBucketEntry e = new KBucketEntry(new InetSocketAddress("93.184.216." + (i + 1), 6881), new Key(id));
+			inserted.add(e);
+			node.insertEntry(e, true);
+		}
+
+		assertTrue(node.table().size() > 1, "root bucket should have been split");
+		assertEquals(tableIds(node), snapshotIds(node.snapshot()));
+
+		assertEquals(2, node.table().size());
+
+		// make one entry removable so that the siblings fit into a single bucket again
+		KBucketEntry dead = inserted.get(0);
+		dead.signalScheduledRequest();
+		for(int i=0;i<=KBucketEntry.MAX_TIMEOUTS;i++)
+			dead.signalRequestTimeout();
+
+		int sizeBefore = node.table().size();
+		node.mergeBuckets();
+		assertTrue(node.table().size() < sizeBefore, "buckets should have been merged");
+		assertEquals(tableIds(node), snapshotIds(node.snapshot()));
+
+		// the merged bucket must keep invalidating the snapshot
+		KBucketEntry late = new KBucketEntry(new InetSocketAddress("93.184.217.1", 6881), Key.createRandomKey());
+		node.insertEntry(late, true);
+		Set<Key> ids = tableIds(node);
+		assertTrue(ids.contains(late.getID()));
+		assertEquals(ids, snapshotIds(node.snapshot()));
+	}
+
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * runs the same operations against the heap-based and the off-heap peer storage and expects identical observable results
+ */
+public class OffHeapPeerStoreTest {
+
+	final Database heap = new Database(false);
+	final Database offHeap = new Database(true);
+	final long now = System.currentTimeMillis();
+	final long stale = now - DHTConstants.MAX_ITEM_AGE - 60_000;
+
+	/**
+	 * @return a key that lands in the given shard
+	 */
+	static Key key(int shard, int n) {
+		byte[] id = new byte[Key.SHA1_HASH_LENGTH];
+		id[0] = (byte) (shard << (8 - OffHeapPeerStore.SHARD_BITS));
+		id[1] = (byte) (n >>> 16);
+		id[2] = (byte) (n >>> 8);
+		id[3] = (byte) n;
+		return new Key(id);
+	}
+
+	/**
+	 * v4 addresses are 10.x.y.z, v6 addresses share their leading 4 bytes with the v4 one of the same number
+	 */
+	static PeerAddressDBItem peer(int n, boolean v6, boolean seed, long createdAt, int port) {
+		byte[] data = new byte[v6 ? 18 : 6];
+		data[0] = 10;
+		data[1] = (byte) (n >>> 16);
+		data[2] = (byte) (n >>> 8);
+		data[3] = (byte) n;
+		if(v6)
+			data[15] = 1;
+		data[data.length - 2] = (byte) (port >>> 8);
+		data[data.length - 1] = (byte) port;
+		return new PeerAddressDBItem(data, seed, createdAt);
+	}
+
+	PeerAddressDBItem peer(int n, boolean v6, boolean seed) {
+		return peer(n, v6, seed, now, 6881);
+	}
+
+	void store(Key k, PeerAddressDBItem item) {
+		heap.store(k, item);
+		offHeap.store(k, item);
+	}
+
+	void expire() {
+		long now = System.currentTimeMillis();
+		heap.expire(now);
+		offHeap.expire(now);
+	}
+
+	OffHeapPeerStore.Shard shard(int idx) {
+		return offHeap.offHeap.shards[idx];
+	}
+
+	static String describe(DBItem item) {
+		PeerAddressDBItem p = (PeerAddressDBItem) item;
+		return Arrays.toString(p.getData()) + (p.isSeed() ? " seed" : " peer");
+	}
+
+	static Map<Key, Set<String>> describe(Database db) {
+		Map<Key, Set<String>> result = new HashMap<>();
+		db.getData().forEach((k, ps) -> {
+			Set<String> items = new TreeSet<>();
+			ps.seeds().stream().map(OffHeapPeerStoreTest::describe).forEach(items::add);
+			ps.peers().stream().map(OffHeapPeerStoreTest::describe).forEach(items::add);
+			result.put(k, items);
+		});
+		return result;
+	}
+
+	static byte[] filter(Database db, Key k, boolean seeds) {
+		BloomFilterBEP33 f = db.createScrapeFilter(k, seeds);
+		return f == null ? null : f.serialize();
+	}
+
+	static Set<String> sample(Database db, Key k, int max, boolean preferPeers) {
+		List<DBItem> items = db.sample(k, max, DHTtype.IPV4_DHT, preferPeers);
+		return items == null ? null : items.stream().map(OffHeapPeerStoreTest::describe).collect(Collectors.toSet());
+	}
+
+	void assertEquivalent() {
+		Map<Key, Set<String>> expected = describe(heap);
+		assertEquals(expected, describe(offHeap));
+		assertEquals(heap.getStats().getKeyCount(), offHeap.getStats().getKeyCount());
+		assertEquals(heap.getStats().getItemCount(), offHeap.getStats().getItemCount());
+
+		Set<Key> keys = new HashSet<>(expected.keySet());
+		// absent keys behave the same too
+		keys.add(key(63, 12345));
+
+		for(Key k : keys) {
+			assertArrayEquals(filter(heap, k, true), filter(offHeap, k, true));
+			assertArrayEquals(filter(heap, k, false), filter(offHeap, k, false));
+
+			Set<String> all = expected.get(k);
+			if(all == null) {
+				assertNull(sample(offHeap, k, 8, false));
+				continue;
+			}
+
+			// everything fits
+			assertEquals(all, sample(heap, k, all.size() + 1, false));
+			assertEquals(all, sample(offHeap, k, all.size() + 1, false));
+
+			// random subsets, only the shape can be compared
+			int max = Math.max(1, all.size() / 2);
+			Set<String> heapSample = sample(heap, k, max, true);
+			Set<String> offHeapSample = sample(offHeap, k, max, true);
+			assertEquals(heapSample.size(), offHeapSample.size());
+			assertTrue(all.containsAll(offHeapSample));
+			assertEquals(heapSample.stream().filter(s -> s.endsWith("peer")).count(), offHeapSample.stream().filter(s -> s.endsWith("peer")).count());
+		}
+	}
+
+	@Test
+	public void flipsPortsAndAddressFamilies() {
+		Key small = key(0, 1);
+		Key large = key(0, 2);
+		Key other = key(5, 1);
+
+		for(int i=0;i<10;i++) {
+			store(small, peer(i, false, i % 3 == 0));
+			store(small, peer(i, true, i % 2 == 0));
+			store(other, peer(i, i % 2 == 0, false));
+		}
+		assertEquivalent();
+
+		// seed status and port of an existing address change in place
+		store(small, peer(1, false, true, now, 7000));
+		store(small, peer(3, false, false, now, 7001));
+		store(small, peer(3, true, true, now, 7002));
+		assertEquivalent();
+
+		// large enough for counting filters, flips after the first scrape have to update the counts
+		for(int i=0;i<2 * CountingBloomFilterBEP33.MIN_SET_SIZE + 10;i++)
+			store(large, peer(i, i % 4 == 0, i % 2 == 0));
+		assertEquivalent();
+		for(int i=0;i<20;i++)
+			store(large, peer(i, i % 4 == 0, i % 2 != 0));
+		assertEquivalent();
+	}
+
+	@Test
+	public void expiryCompactsInPlace() {
+		Key k = key(1, 1);
+		Key gone = key(1, 2);
+		for(int i=0;i<100;i++)
+			store(k, peer(i, i % 5 == 0, i % 3 == 0, i % 4 == 0 ? now : stale, 6881));
+		store(gone, peer(1000, false, false, stale, 6881));
+		// scraped before expiry so that the counting filters have to follow the removals
+		assertEquivalent();
+
+		expire();
+		assertEquivalent();
+		assertEquals(25, offHeap.getData().get(k).size());
+		assertNull(offHeap.getData().get(gone));
+	}
+
+	@Test
+	public void freeListsRecycleBlocks() {
+		OffHeapPeerStore.Shard shard = shard(2);
+		Key expiring = key(2, 1);
+		Key kept = key(2, 2);
+		Key growing = key(2, 3);
+
+		store(expiring, peer(1, false, false, stale, 6881));
+		store(kept, peer(2, false, false));
+		// outgrows its first block, which goes onto the free list of size class 0
+		for(int i=0;i<OffHeapPeerStore.MIN_BLOCK_RECORDS + 1;i++)
+			store(growing, peer(100 + i, false, i % 2 == 0));
+		assertEquals(1, shard.freeCounts[0]);
+		assertEquivalent();
+
+		expire();
+		assertEquals(2, shard.freeCounts[0]);
+
+		int top = shard.top;
+		store(key(2, 4), peer(3, true, true));
+		store(key(2, 5), peer(4, false, true));
+		assertEquals(top, shard.top, "new keys should reuse the released blocks");
+		assertEquals(0, shard.freeCounts[0]);
+		assertEquivalent();
+	}
+
+	@Test
+	public void growsWhileCompacting() {
+		OffHeapPeerStore.Shard shard = shard(3);
+		int keys = 100;
+		for(int i=0;i<keys;i++)
+			store(key(3, i), peer(i, false, false));
+
+		// growing every key to the next size class leaves its old block behind, eventually allocate() has to repack
+		// the slab to find room for the next grown block
+		boolean compacted = false;
+		for(int i=0;i<keys;i++) {
+			for(int j=1;j<=OffHeapPeerStore.MIN_BLOCK_RECORDS;j++) {
+				long freeBefore = shard.freeBytes;
+				store(key(3, i), peer(i + j * 1000, j % 2 == 0, j % 3 == 0));
+				if(shard.freeBytes < freeBefore && shard.freeCounts[0] == 1 && freeBefore > OffHeapPeerStore.blockSize(0))
+					compacted = true;
+			}
+			if(i % 20 == 0)
+				assertEquivalent();
+		}
+
+		assertTrue(compacted, "expected a compaction during allocation");
+		assertEquivalent();
+	}
+
+	@Test
+	public void slabGrowthAndSparseRepacking() {
+		OffHeapPeerStore.Shard shard = shard(4);
+		Key k = key(4, 1);
+		int count = 3000;
+		for(int i=0;i<count;i++)
+			store(k, peer(i, i % 7 == 0, i % 2 == 0, i % 10 == 0 ? now : stale, 6881));
+
+		int grownCapacity = shard.slab.capacity();
+		assertTrue(grownCapacity > OffHeapPeerStore.INITIAL_SLAB_SIZE);
+		assertEquivalent();
+
+		// each pass only removes a limited number per set. which ones depends on the (shuffled) order of the heap-based
+		// sets, so only the sizes can be compared until everything stale is gone
+		expire();
+		assertEquals(heap.getData().get(k).seeds().size(), offHeap.getData().get(k).seeds().size());
+		assertEquals(heap.getData().get(k).peers().size(), offHeap.getData().get(k).peers().size());
+		assertTrue(offHeap.getData().get(k).size() > count / 10);
+		expire();
+		assertEquivalent();
+
+		assertEquals(count / 10, offHeap.getData().get(k).size());
+		assertTrue(shard.slab.capacity() < grownCapacity, "mostly empty slab should have been repacked");
+		assertEquals(0, shard.freeBytes);
+
+		// and keeps working afterwards
+		for(int i=0;i<50;i++)
+			store(k, peer(count + i, i % 2 == 0, true));
+		assertEquivalent();
+	}
+
+}
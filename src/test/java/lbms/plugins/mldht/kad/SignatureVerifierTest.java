@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.GenericStorage.StorageItem;
+import lbms.plugins.mldht.kad.GenericStorage.UpdateResult;
+import lbms.plugins.mldht.kad.messages.PutRequest;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+
+public class SignatureVerifierTest {
+
+	static final EdDSAPrivateKey KEY = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(new byte[32], StorageItem.spec));
+
+	ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	@AfterEach
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	static StorageItem signed(long seq) throws Exception {
+		return GenericStorage.buildMutable("value " + seq, KEY, null, seq);
+	}
+
+	static StorageItem tampered(StorageItem valid) {
+		byte[] sig = valid.signature.clone();
+		sig[0] ^= 1;
+		return new StorageItem(valid.value, valid.pubkey, sig, null, valid.sequenceNumber);
+	}
+
+	@Test
+	public void pendingQueueIsBounded() throws Exception {
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		SignatureVerifier verifier = new SignatureVerifier(tasks::add, 1);
+		StorageItem valid = signed(0);
+		List<Boolean> results = new ArrayList<>();
+
+		// distinct sequence numbers so that none of them are cache hits
+		for(int i=0;i<SignatureVerifier.MAX_PENDING;i++)
+			assertTrue(verifier.submit(new StorageItem(valid.value, valid.pubkey, valid.signature, null, i + 1), results::add));
+		assertFalse(verifier.submit(tampered(valid), results::add));
+		assertEquals(SignatureVerifier.MAX_PENDING, verifier.pendingCount());
+		assertEquals(1, tasks.size(), "worker count should be capped");
+
+		// each drain reschedules itself while work remains
+		while(!tasks.isEmpty())
+			tasks.poll().run();
+
+		assertEquals(0, verifier.pendingCount());
+		assertEquals(SignatureVerifier.MAX_PENDING, results.size(), "the rejected item must not get a callback");
+		assertTrue(results.stream().noneMatch(Boolean::booleanValue));
+		assertTrue(verifier.submit(tampered(valid), results::add));
+	}
+
+	@Test
+	public void validTuplesAreCached() throws Exception {
+		SignatureVerifier verifier = new SignatureVerifier(Runnable::run, 1);
+		StorageItem valid = signed(1);
+		List<Boolean> results = new ArrayList<>();
+
+		assertTrue(verifier.submit(valid, results::add));
+		assertEquals(1, verifier.verifications());
+		assertEquals(0, verifier.cacheHits());
+
+		assertTrue(verifier.submit(signed(1), results::add));
+		assertEquals(1, verifier.verifications());
+		assertEquals(1, verifier.cacheHits());
+
+		// failures are not remembered
+		assertTrue(verifier.submit(tampered(valid), results::add));
+		assertTrue(verifier.submit(tampered(valid), results::add));
+		assertEquals(3, verifier.verifications());
+		assertEquals(1, verifier.cacheHits());
+
+		assertEquals(Arrays.asList(true, true, false, false), results);
+	}
+
+	UpdateResult put(StorageItem item) throws Exception {
+		CompletableFuture<UpdateResult> completed = new CompletableFuture<>();
+		DHT dht = new DHT(DHTtype.IPV4_DHT) {
+			@Override
+			void completePut(PutRequest req, Key k, StorageItem stored, UpdateResult result) {
+				completed.complete(result);
+			}
+		};
+		dht.setScheduler(scheduler);
+		dht.config = new DHTConfiguration() {
+			public boolean isPersistingID() { return false; }
+			public Path getStoragePath() { return Paths.get("."); }
+			public int getListeningPort() { return 0; }
+			public boolean noRouterBootstrap() { return true; }
+			public boolean allowMultiHoming() { return false; }
+		};
+		dht.populate();
+
+		PutRequest req = new PutRequest();
+		req.populateFromStorage(item);
+		req.setID(Key.createRandomKey());
+		req.setOrigin(new InetSocketAddress("93.184.216.34", 6881));
+		req.setToken(dht.getDatabase().genToken(req.getID(), req.getOrigin().getAddress(), req.getOrigin().getPort(), req.deriveTargetKey()));
+
+		dht.put(req);
+		return completed.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void invalidSignatureFailsPut() throws Exception {
+		StorageItem valid = signed(2);
+		assertEquals(UpdateResult.SIG_FAIL, put(tampered(valid)));
+		assertEquals(UpdateResult.SUCCESS, put(valid));
+	}
+
+}
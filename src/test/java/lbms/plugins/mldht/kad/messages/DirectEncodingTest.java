@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DBItem;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.NodeList;
+import lbms.plugins.mldht.kad.NodeList.AddressType;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import the8472.bencode.BEncoder;
+
+public class DirectEncodingTest {
+
+	static final byte[] MTID = {1, 2, 3, 4};
+
+	static byte[] random(int length) {
+		byte[] b = new byte[length];
+		ThreadLocalRandom.current().nextBytes(b);
+		return b;
+	}
+
+	static NodeList nodes(AddressType type, int count) {
+		int entryLength = type == AddressType.V4 ? DHTtype.IPV4_DHT.NODES_ENTRY_LENGTH : DHTtype.IPV6_DHT.NODES_ENTRY_LENGTH;
+		return NodeList.fromBuffer(ByteBuffer.wrap(random(entryLength * count)), type);
+	}
+
+	static <T extends MessageBase> T init(T msg) {
+		msg.setID(Key.createRandomKey());
+		return msg;
+	}
+
+	static void assertSameAsMapEncoding(MessageBase msg) throws Exception {
+		assertTrue(msg.canEncodeDirectly());
+
+		ByteBuffer direct = ByteBuffer.allocate(1500);
+		msg.encode(direct);
+
+		ByteBuffer mapBased = ByteBuffer.allocate(1500);
+		new BEncoder().encodeInto(msg.getBase(), mapBased);
+
+		assertArrayEquals(toArray(mapBased), toArray(direct));
+
+		// the external IP is part of the outer dictionary
+		msg.setPublicIP(new InetSocketAddress(InetAddress.getByName("93.184.216.34"), 6881));
+		direct.clear();
+		msg.encode(direct);
+		mapBased.clear();
+		new BEncoder().encodeInto(msg.getBase(), mapBased);
+
+		assertArrayEquals(toArray(mapBased), toArray(direct));
+	}
+
+	static byte[] toArray(ByteBuffer buf) {
+		byte[] b = new byte[buf.remaining()];
+		buf.duplicate().get(b);
+		return b;
+	}
+
+	@Test
+	public void ping() throws Exception {
+		assertSameAsMapEncoding(init(new PingResponse(MTID)));
+	}
+
+	@Test
+	public void announce() throws Exception {
+		assertSameAsMapEncoding(init(new AnnounceResponse(MTID)));
+	}
+
+	@Test
+	public void findNode() throws Exception {
+		assertSameAsMapEncoding(init(new FindNodeResponse(MTID)));
+
+		FindNodeResponse full = init(new FindNodeResponse(MTID));
+		full.setNodes(nodes(AddressType.V4, 8));
+		full.setNodes(nodes(AddressType.V6, 8));
+		full.setToken(random(4));
+		assertSameAsMapEncoding(full);
+	}
+
+	@Test
+	public void getPeers() throws Exception {
+		GetPeersResponse nodesOnly = init(new GetPeersResponse(MTID));
+		nodesOnly.setNodes(nodes(AddressType.V4, 8));
+		nodesOnly.setToken(random(4));
+		assertSameAsMapEncoding(nodesOnly);
+
+		GetPeersResponse values = init(new GetPeersResponse(MTID));
+		values.setNodes(nodes(AddressType.V6, 3));
+		values.setToken(random(4));
+		values.setPeerItems(Arrays.<DBItem>asList(
+				PeerAddressDBItem.createFromAddress(InetAddress.getByName("93.184.216.34"), 6881, false),
+				PeerAddressDBItem.createFromAddress(InetAddress.getByName("93.184.216.35"), 51413, true)));
+		values.setScrapePeers(random(256));
+		values.setScrapeSeeds(random(256));
+		assertSameAsMapEncoding(values);
+	}
+
+	@Test
+	public void sample() throws Exception {
+		SampleResponse rsp = init(new SampleResponse(MTID));
+		rsp.setNodes(nodes(AddressType.V4, 8));
+		rsp.setInterval(3600);
+		rsp.setNum(1234);
+		rsp.setSamples(ByteBuffer.wrap(random(Key.SHA1_HASH_LENGTH * 20)));
+		assertSameAsMapEncoding(rsp);
+	}
+
+	@Test
+	public void fallsBackToInnerMap() throws Exception {
+		byte[] extra = random(7);
+		// opts into the direct path without providing its own inner encoding
+		MessageBase msg = init(new MessageBase(MTID, Method.PING, Type.RSP_MSG) {
+			@Override
+			public void apply(DHT dh_table) {}
+
+			@Override
+			public Map<String, Object> getInnerMap() {
+				Map<String, Object> inner = new TreeMap<>();
+				inner.put("id", id.getHash());
+				inner.put("n", 42L);
+				inner.put("z", extra);
+				return inner;
+			}
+
+			@Override
+			protected boolean canEncodeDirectly() {
+				return true;
+			}
+		});
+
+		assertSameAsMapEncoding(msg);
+	}
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.messages;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.Key;
+import the8472.bencode.BEncoder;
+import the8472.bencode.BFlyweight;
+
+public class FastPathPrecheckTest {
+
+	static final byte[] MTID = {1, 2, 3, 4, 5, 6};
+
+	static ByteBuffer encode(MessageBase msg) {
+		msg.setMTID(MTID);
+		msg.setID(Key.createRandomKey());
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		new BEncoder().encodeInto(msg.getBase(), buf);
+		return buf;
+	}
+
+	static boolean takesFastPath(ByteBuffer buf) {
+		BFlyweight fw = new BFlyweight();
+		try {
+			fw.decode(buf);
+			return MessageDecoder.parseRequest(fw, DHTtype.IPV4_DHT) != null;
+		} finally {
+			fw.release();
+		}
+	}
+
+	static void assertPrecheck(boolean expected, MessageBase msg) {
+		ByteBuffer buf = encode(msg);
+		int position = buf.position();
+		int limit = buf.limit();
+
+		assertEquals(expected, MessageDecoder.mayBeFastPathRequest(buf), msg.toString());
+		assertEquals(position, buf.position());
+		assertEquals(limit, buf.limit());
+		assertEquals(expected, takesFastPath(buf), msg.toString());
+	}
+
+	@Test
+	public void fastPathRequests() {
+		assertPrecheck(true, new PingRequest());
+
+		FindNodeRequest findNode = new FindNodeRequest(Key.createRandomKey());
+		findNode.setWant4(true);
+		assertPrecheck(true, findNode);
+
+		GetPeersRequest getPeers = new GetPeersRequest(Key.createRandomKey());
+		getPeers.setWant6(true);
+		getPeers.setScrape(true);
+		assertPrecheck(true, getPeers);
+
+		assertPrecheck(true, new AnnounceRequest(Key.createRandomKey(), 6881, new byte[] {9, 8, 7, 6}));
+	}
+
+	@Test
+	public void everythingElseIsFilteredOut() {
+		assertPrecheck(false, new PingResponse(MTID));
+		assertPrecheck(false, new FindNodeResponse(MTID));
+		assertPrecheck(false, new AnnounceResponse(MTID));
+		assertPrecheck(false, new GetRequest(Key.createRandomKey()));
+		assertPrecheck(false, new ErrorMessage(MTID, 201, "generic error"));
+	}
+
+	@Test
+	public void garbage() {
+		assertFalse(MessageDecoder.mayBeFastPathRequest(ByteBuffer.allocate(0)));
+		assertFalse(MessageDecoder.mayBeFastPathRequest(ByteBuffer.wrap("1:y1:".getBytes())));
+		// a matching tail alone is not enough, the method has to be present too
+		assertFalse(MessageDecoder.mayBeFastPathRequest(ByteBuffer.wrap("d1:y1:qe".getBytes())));
+		assertTrue(MessageDecoder.mayBeFastPathRequest(ByteBuffer.wrap("d1:q4:ping1:y1:qe".getBytes())));
+	}
+
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.IDMismatchDetector;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+public class IterativeLookupCandidatesTest {
+
+	static final Key TARGET = new Key(new byte[Key.SHA1_HASH_LENGTH]);
+
+	/**
+	 * @return an entry whose distance to the all-zero target grows with the given value
+	 */
+	static KBucketEntry entry(int distance) {
+		byte[] id = new byte[Key.SHA1_HASH_LENGTH];
+		id[0] = (byte) distance;
+		return new KBucketEntry(new InetSocketAddress("93.184.216." + distance, 6881), new Key(id));
+	}
+
+	static IterativeLookupCandidates candidates() {
+		return new IterativeLookupCandidates(TARGET, new IDMismatchDetector(new DHT(DHTtype.IPV4_DHT)));
+	}
+
+	static void respond(IterativeLookupCandidates c, KBucketEntry e) {
+		c.nodeForEntry(e).accept();
+	}
+
+	@Test
+	public void noResponder() {
+		IterativeLookupCandidates c = candidates();
+		c.addCandidates(null, Collections.singletonList(entry(100)));
+		assertEquals(-1, c.hopsToClosestResponder());
+	}
+
+	@Test
+	public void closestIsInitialCandidate() {
+		IterativeLookupCandidates c = candidates();
+		KBucketEntry a = entry(100);
+		KBucketEntry b = entry(10);
+		c.addCandidates(null, Arrays.asList(a, b));
+		c.addCandidates(a, Collections.singletonList(entry(50)));
+		respond(c, a);
+		respond(c, b);
+		assertEquals(0, c.hopsToClosestResponder());
+	}
+
+	@Test
+	public void referralChain() {
+		IterativeLookupCandidates c = candidates();
+		KBucketEntry root = entry(120);
+		KBucketEntry hop1 = entry(60);
+		KBucketEntry hop2 = entry(30);
+		KBucketEntry hop3 = entry(5);
+
+		c.addCandidates(null, Collections.singletonList(root));
+		c.addCandidates(root, Collections.singletonList(hop1));
+		c.addCandidates(hop1, Collections.singletonList(hop2));
+		c.addCandidates(hop2, Collections.singletonList(hop3));
+		respond(c, root);
+		respond(c, hop1);
+		respond(c, hop2);
+		assertEquals(2, c.hopsToClosestResponder());
+
+		respond(c, hop3);
+		assertEquals(3, c.hopsToClosestResponder());
+	}
+
+	@Test
+	public void shortestPathCounts() {
+		IterativeLookupCandidates c = candidates();
+		KBucketEntry far = entry(120);
+		KBucketEntry near = entry(70);
+		KBucketEntry mid = entry(40);
+		KBucketEntry closest = entry(5);
+
+		// closest is reachable via far -> mid -> closest and directly via near
+		c.addCandidates(null, Arrays.asList(far, near));
+		c.addCandidates(far, Collections.singletonList(mid));
+		c.addCandidates(mid, Collections.singletonList(closest));
+		c.addCandidates(near, Collections.singletonList(closest));
+		respond(c, far);
+		respond(c, mid);
+		respond(c, near);
+		respond(c, closest);
+		assertEquals(1, c.hopsToClosestResponder());
+	}
+
+}
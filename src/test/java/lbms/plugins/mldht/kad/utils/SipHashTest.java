@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.kad.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class SipHashTest {
+
+	// key 00 01 02 .. 0f as in the reference implementation's test vectors
+	static final long K0 = 0x0706050403020100L;
+	static final long K1 = 0x0f0e0d0c0b0a0908L;
+
+	/**
+	 * @return the little-endian word of the reference message (00 01 02 ..) starting at byte offset 8 * index
+	 */
+	static long messageWord(int index) {
+		long w = 0;
+		for(int i=7;i>=0;i--)
+			w = w << 8 | (index * 8 + i);
+		return w;
+	}
+
+	static long hash(SipHash h, int words) {
+		h.reset();
+		for(int i=0;i<words;i++)
+			h.update(messageWord(i));
+		return h.finish();
+	}
+
+	@Test
+	public void referenceVectors() {
+		SipHash h = new SipHash(K0, K1);
+		// vectors for message lengths 0, 8, 16, 24 and 32, read as little-endian 64bit values
+		assertEquals(0x726fdb47dd0e0e31L, hash(h, 0));
+		assertEquals(0x93f5f5799a932462L, hash(h, 1));
+		assertEquals(0x3f2acc7f57c29bdbL, hash(h, 2));
+		assertEquals(0xb8ad50c6f649af94L, hash(h, 3));
+		assertEquals(0x7127512f72f27cceL, hash(h, 4));
+	}
+
+	@Test
+	public void resetAllowsReuse() {
+		SipHash h = new SipHash(K0, K1);
+		long first = hash(h, 3);
+		h.update(42);
+		assertEquals(first, hash(h, 3));
+		assertEquals(first, hash(new SipHash(K0, K1), 3));
+	}
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package lbms.plugins.mldht.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.utils.TimingWheel.Timeout;
+
+public class TimingWheelTest {
+
+	static void tickUntil(TimingWheel wheel, long deadlineNanos) throws InterruptedException {
+		while(System.nanoTime() < deadlineNanos) {
+			wheel.tick();
+			Thread.sleep(1);
+		}
+		wheel.tick();
+	}
+
+	@Test
+	public void slotCountRoundsUpToPowerOfTwo() {
+		assertEquals(8, new TimingWheel(1, TimeUnit.MILLISECONDS, 5).slots.size());
+		assertEquals(8, new TimingWheel(1, TimeUnit.MILLISECONDS, 8).slots.size());
+		assertEquals(2, new TimingWheel(1, TimeUnit.MILLISECONDS, 1).slots.size());
+	}
+
+	@Test
+	public void firesOnceAndNotEarly() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel(5, TimeUnit.MILLISECONDS, 64);
+		AtomicInteger runs = new AtomicInteger();
+		AtomicLong firedAt = new AtomicLong();
+
+		long scheduledAt = System.nanoTime();
+		Timeout t = wheel.schedule(() -> {
+			runs.incrementAndGet();
+			firedAt.set(System.nanoTime());
+		}, 50, TimeUnit.MILLISECONDS);
+
+		wheel.tick();
+		assertEquals(0, runs.get());
+
+		tickUntil(wheel, scheduledAt + TimeUnit.MILLISECONDS.toNanos(50 + 10));
+		assertEquals(1, runs.get());
+		assertTrue(t.isExpired());
+		assertTrue(firedAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertFalse(t.cancel());
+
+		tickUntil(wheel, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void cancelledTimeoutsDontFire() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel(5, TimeUnit.MILLISECONDS, 16);
+		AtomicInteger runs = new AtomicInteger();
+
+		long start = System.nanoTime();
+		// cancelled while still pending and after being moved into a slot
+		Timeout beforeTransfer = wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		assertTrue(beforeTransfer.cancel());
+		Timeout afterTransfer = wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		wheel.tick();
+		assertTrue(afterTransfer.cancel());
+		assertFalse(afterTransfer.cancel());
+
+		Timeout kept = wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+
+		tickUntil(wheel, start + TimeUnit.MILLISECONDS.toNanos(40));
+		assertEquals(1, runs.get());
+		assertTrue(kept.isExpired());
+		assertFalse(beforeTransfer.isExpired());
+		assertFalse(afterTransfer.isExpired());
+	}
+
+	@Test
+	public void wrapsAround() throws InterruptedException {
+		// 4 slots of 5ms, the delays span several rotations
+		TimingWheel wheel = new TimingWheel(5, TimeUnit.MILLISECONDS, 4);
+		long[] delays = {3, 17, 20, 41, 77};
+		long[] firedAfter = new long[delays.length];
+
+		long start = System.nanoTime();
+		for(int i=0;i<delays.length;i++) {
+			int idx = i;
+			wheel.schedule(() -> firedAfter[idx] = System.nanoTime() - start, delays[i], TimeUnit.MILLISECONDS);
+		}
+
+		tickUntil(wheel, start + TimeUnit.MILLISECONDS.toNanos(77 + 10));
+
+		for(int i=0;i<delays.length;i++) {
+			assertTrue(firedAfter[i] > 0, "timeout with delay " + delays[i] + "ms did not fire");
+			assertTrue(firedAfter[i] >= TimeUnit.MILLISECONDS.toNanos(delays[i]), "timeout with delay " + delays[i] + "ms fired early");
+		}
+	}
+
+	@Test
+	public void catchesUpOnMissedTicks() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8);
+		AtomicInteger runs = new AtomicInteger();
+		wheel.schedule(runs::incrementAndGet, 5, TimeUnit.MILLISECONDS);
+		wheel.schedule(runs::incrementAndGet, 25, TimeUnit.MILLISECONDS);
+		wheel.tick();
+
+		// no ticks for several rotations
+		Thread.sleep(40);
+		wheel.tick();
+		assertEquals(2, runs.get());
+	}
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.bt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import the8472.bt.MetadataPool.Completion;
+
+public class MetadataPoolTest {
+
+	static final int LENGTH = 2 * MetadataPool.PIECE_SIZE + 100;
+
+	List<SocketChannel> channels = new ArrayList<>();
+	byte[] info;
+	byte[] hash;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		info = new byte[LENGTH];
+		ThreadLocalRandom.current().nextBytes(info);
+		hash = MessageDigest.getInstance("SHA-1").digest(info);
+	}
+
+	@AfterEach
+	public void closeChannels() throws IOException {
+		for(SocketChannel c : channels)
+			c.close();
+	}
+
+	/**
+	 * the pool only uses connections as identities, an unconnected channel is enough
+	 */
+	PullMetaDataConnection connection() throws IOException {
+		SocketChannel chan = SocketChannel.open();
+		channels.add(chan);
+		return new PullMetaDataConnection(chan);
+	}
+
+	ByteBuffer piece(MetadataPool pool, int idx, boolean corrupt) {
+		byte[] data = new byte[pool.pieceLength(idx)];
+		System.arraycopy(info, idx * MetadataPool.PIECE_SIZE, data, 0, data.length);
+		if(corrupt)
+			data[0] ^= 1;
+		return ByteBuffer.wrap(data);
+	}
+
+	void deliver(MetadataPool pool, int idx, PullMetaDataConnection con, boolean corrupt) {
+		pool.addBuffer(idx, piece(pool, idx, corrupt), con);
+	}
+
+	void assertGoodData(MetadataPool pool) {
+		assertEquals(Completion.SUCCESS, pool.status());
+		assertEquals(ByteBuffer.wrap(info), pool.merge());
+	}
+
+	@Test
+	public void racedCopiesReplaceBadPeer() throws Exception {
+		MetadataPool pool = new MetadataPool(LENGTH);
+		PullMetaDataConnection good = connection();
+		PullMetaDataConnection bad = connection();
+
+		assertEquals(0, pool.reservePiece(bad));
+		assertEquals(1, pool.reservePiece(bad));
+		assertEquals(2, pool.reservePiece(good));
+		// endgame, good races the pieces bad is still working on
+		Set<Integer> raced = new HashSet<>();
+		raced.add(pool.reservePiece(good));
+		raced.add(pool.reservePiece(good));
+		assertEquals(new HashSet<>(Arrays.asList(0, 1)), raced);
+
+		deliver(pool, 0, bad, true);
+		deliver(pool, 1, bad, true);
+		deliver(pool, 0, good, false);
+		deliver(pool, 1, good, false);
+		deliver(pool, 2, good, false);
+
+		pool.checkComletion(hash);
+
+		assertGoodData(pool);
+		assertTrue(pool.isBanned(bad));
+		assertFalse(pool.isBanned(good));
+		assertEquals(0, pool.hashFailures, "alternate copies should avoid a refetch");
+	}
+
+	@Test
+	public void peerWithMostPiecesIsBanned() throws Exception {
+		MetadataPool pool = new MetadataPool(LENGTH);
+		PullMetaDataConnection good = connection();
+		PullMetaDataConnection bad = connection();
+
+		assertEquals(0, pool.reservePiece(bad));
+		assertEquals(1, pool.reservePiece(bad));
+		assertEquals(2, pool.reservePiece(good));
+		deliver(pool, 0, bad, true);
+		deliver(pool, 1, bad, true);
+		deliver(pool, 2, good, false);
+
+		pool.checkComletion(hash);
+		assertEquals(Completion.PROGRESS, pool.status());
+		assertTrue(pool.isBanned(bad));
+		assertEquals(-1, pool.reservePiece(bad));
+
+		// the good peer fills the gaps left by the discarded pieces
+		assertEquals(0, pool.reservePiece(good));
+		assertEquals(1, pool.reservePiece(good));
+		// late deliveries from the banned peer are ignored
+		deliver(pool, 0, bad, true);
+		deliver(pool, 0, good, false);
+		deliver(pool, 1, good, false);
+
+		pool.checkComletion(hash);
+		assertGoodData(pool);
+		assertFalse(pool.isBanned(good));
+	}
+
+	@Test
+	public void onlyContributorBad() throws Exception {
+		MetadataPool pool = new MetadataPool(LENGTH);
+		PullMetaDataConnection bad = connection();
+
+		for(int i=0;i<3;i++) {
+			assertEquals(i, pool.reservePiece(bad));
+			deliver(pool, i, bad, true);
+		}
+
+		pool.checkComletion(hash);
+		assertEquals(Completion.FAILED, pool.status());
+		assertTrue(pool.isBanned(bad));
+	}
+
+	@Test
+	public void failsAfterRepeatedHashFailures() throws Exception {
+		MetadataPool pool = new MetadataPool(LENGTH);
+		PullMetaDataConnection good = connection();
+
+		PullMetaDataConnection bad = connection();
+		assertEquals(0, pool.reservePiece(bad));
+		assertEquals(1, pool.reservePiece(bad));
+		assertEquals(2, pool.reservePiece(good));
+		deliver(pool, 2, good, false);
+
+		// each round a fresh bad peer corrupts the two pieces the good one doesn't have
+		for(int round=1;round<=MetadataPool.MAX_HASH_FAILURES;round++) {
+			assertEquals(Completion.PROGRESS, pool.status());
+			if(round > 1) {
+				bad = connection();
+				assertEquals(0, pool.reservePiece(bad));
+				assertEquals(1, pool.reservePiece(bad));
+			}
+			deliver(pool, 0, bad, true);
+			deliver(pool, 1, bad, true);
+			pool.checkComletion(hash);
+			assertEquals(round, pool.hashFailures);
+		}
+
+		assertEquals(Completion.FAILED, pool.status());
+	}
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.mldht.sim;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+
+/**
+ * boots a small population, takes a minute or more. excluded from the default test run
+ */
+@Tag("slow")
+public class SimulationTest {
+
+	@Test
+	public void smallPopulationConverges() throws Exception {
+		DHT.setLogLevel(LogLevel.Fatal);
+		Simulation sim = new Simulation(new ArrayList<>(Arrays.asList("-nodes", "50", "-warmup", "2", "-torrents", "5", "-lookups", "50", "-threads", "4")));
+		try {
+			sim.boot();
+			// more than a single bucket's worth means responses made it into the tables and buckets got split
+			assertTrue(Simulation.percentile(sim.tableSizes, 0.1) > DHTConstants.MAX_ENTRIES_PER_BUCKET, "routing tables did not fill: " + Arrays.toString(sim.tableSizes));
+
+			List<Key> hashes = sim.announce();
+			sim.lookup(hashes);
+			assertTrue(sim.hopCounts.length > 0, "no lookup reached a responding node");
+			assertTrue(Arrays.stream(sim.hopCounts).max().getAsInt() > 0, "every lookup was answered by its initial candidates: " + Arrays.toString(sim.hopCounts));
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ ******************************************************************************/
+package the8472.utils.concurrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentLongMapTest {
+
+	/**
+	 * @return keys that land in the same segment and share the same home slot in a fresh segment
+	 */
+	static long[] collidingKeys(ConcurrentLongMap<?> map, int count) {
+		long[] found = new long[count];
+		found[0] = 1;
+		long first = ConcurrentLongMap.mix(1);
+		ConcurrentLongMap.Segment<?> segment = map.segmentFor(first);
+		int n = 1;
+		for(long k = 2;n < count;k++) {
+			long h = ConcurrentLongMap.mix(k);
+			if(map.segmentFor(h) == segment && ((int) h & segment.mask) == ((int) first & segment.mask))
+				found[n++] = k;
+		}
+		return found;
+	}
+
+	@Test
+	public void putGetRemove() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<>(16);
+		String a = "a";
+
+		assertTrue(map.isEmpty());
+		assertNull(map.putIfAbsent(42, a));
+		assertSame(a, map.putIfAbsent(42, "b"));
+		assertSame(a, map.get(42));
+		assertNull(map.get(43));
+		assertEquals(1, map.size());
+
+		// removal is by identity
+		assertFalse(map.remove(42, new String("a")));
+		assertFalse(map.remove(43, a));
+		assertTrue(map.remove(42, a));
+		assertNull(map.get(42));
+		assertTrue(map.isEmpty());
+
+		// 0 is a valid key, emptiness is determined by the value
+		assertNull(map.putIfAbsent(0, a));
+		assertSame(a, map.get(0));
+	}
+
+	@Test
+	public void collidingKeysAndRemovalMidChain() {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(16);
+		long[] keys = collidingKeys(map, 3);
+		List<Long> values = new ArrayList<>();
+		for(long k : keys) {
+			Long v = Long.valueOf(k);
+			values.add(v);
+			assertNull(map.putIfAbsent(k, v));
+		}
+		for(int i=0;i<keys.length;i++)
+			assertSame(values.get(i), map.get(keys[i]));
+
+		// removing from the middle of the probe chain must keep the tail reachable
+		assertTrue(map.remove(keys[1], values.get(1)));
+		assertNull(map.get(keys[1]));
+		assertSame(values.get(0), map.get(keys[0]));
+		assertSame(values.get(2), map.get(keys[2]));
+
+		assertTrue(map.remove(keys[0], values.get(0)));
+		assertSame(values.get(2), map.get(keys[2]));
+		assertEquals(1, map.size());
+
+		assertNull(map.putIfAbsent(keys[1], values.get(1)));
+		assertSame(values.get(1), map.get(keys[1]));
+		assertSame(values.get(2), map.get(keys[2]));
+	}
+
+	@Test
+	public void resize() {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(0);
+		int capacityBefore = map.segments.get(0).values.length;
+		int count = 20_000;
+		for(long k=0;k<count;k++)
+			assertNull(map.putIfAbsent(k * 31, Long.valueOf(k)));
+
+		assertEquals(count, map.size());
+		assertTrue(map.segments.get(0).values.length > capacityBefore);
+		for(long k=0;k<count;k++)
+			assertEquals(Long.valueOf(k), map.get(k * 31));
+		assertEquals(count, map.values().size());
+
+		for(long k=0;k<count;k+=2)
+			assertTrue(map.remove(k * 31, map.get(k * 31)));
+		for(long k=0;k<count;k++)
+			assertEquals(k % 2 == 0 ? null : Long.valueOf(k), map.get(k * 31));
+	}
+
+	@Test
+	public void concurrentUse() throws Exception {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(64);
+		int threads = 8;
+		int perThread = 20_000;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for(int t=0;t<threads;t++) {
+				long base = (long) t * perThread;
+				futures.add(pool.submit(() -> {
+					start.await();
+					for(long k=base;k<base+perThread;k++) {
+						Long v = Long.valueOf(k);
+						assertNull(map.putIfAbsent(k, v));
+						assertSame(v, map.get(k));
+						// keep every third key
+						if(k % 3 != 0)
+							assertTrue(map.remove(k, v));
+					}
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for(Future<?> f : futures)
+				f.get(1, TimeUnit.MINUTES);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		long total = (long) threads * perThread;
+		assertEquals((total + 2) / 3, map.size());
+		for(long k=0;k<total;k++)
+			assertEquals(k % 3 == 0 ? Long.valueOf(k) : null, map.get(k));
+	}
+
+	@Test
+	public void readersDuringChurn() throws Exception {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<>(0);
+		int stable = 2_000;
+		// stable keys are even, churned keys odd. both share segments and probe chains so removals shift stable entries around
+		for(long k=0;k<stable;k++)
+			map.putIfAbsent(k * 2, Long.valueOf(k * 2));
+
+		int readers = 4;
+		ExecutorService pool = Executors.newFixedThreadPool(readers + 1);
+		AtomicBoolean done = new AtomicBoolean();
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			futures.add(pool.submit(() -> {
+				try {
+					// repeatedly grows the segments past their previous capacity and shrinks the population again
+					long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+					for(long base=0;System.nanoTime() < deadline;base+=100_000) {
+						for(long k=0;k<4_000;k++)
+							map.putIfAbsent((base + k) * 2 + 1, Long.valueOf(k));
+						for(long k=0;k<4_000;k++)
+							assertTrue(map.remove((base + k) * 2 + 1, map.get((base + k) * 2 + 1)));
+					}
+				} finally {
+					done.set(true);
+				}
+				return null;
+			}));
+			for(int t=0;t<readers;t++) {
+				futures.add(pool.submit(() -> {
+					while(!done.get()) {
+						for(long k=0;k<stable;k++)
+							assertEquals(Long.valueOf(k * 2), map.get(k * 2));
+					}
+					return null;
+				}));
+			}
+
+			for(Future<?> f : futures)
+				f.get(1, TimeUnit.MINUTES);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		assertEquals(stable, map.size());
+	}
+
+}